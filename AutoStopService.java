@@ -3,11 +3,23 @@ package com.allan.services;
 
 import android.app.Service;
 import android.content.Intent;
+import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
-import android.text.TextUtils;
+import android.os.Looper;
 import android.util.Log;
 
-import java.util.ArrayList;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
  * 与JobIntentService的区别：
@@ -37,32 +49,84 @@ import java.util.ArrayList;
 public abstract class AutoStopService extends Service {
     protected static final String TAG = "AutoStopService";
 
-    static final boolean DEBUG = true;
+    static final boolean DEBUG = false;
+
+    /**
+     * 在onStartCommand里面直接执行
+     */
+    public static final int EXCUTE_TYPE_DIRECTLY_IN_OnStartCmd = 0;
+    /**
+     * post到主线程Handler执行，不阻塞这次onStartCommand
+     */
+    public static final int EXCUTE_TYPE_IN_MainHandler = 1;
+    /**
+     * 在有上限的子线程池执行，可以做耗时操作
+     */
+    public static final int EXCUTE_TYPE_DIRECTLY_IN_SubThread = 2;
+    /**
+     * 异步执行，由子类自己管理完成时机
+     */
+    public static final int EXCUTE_TYPE_DIRECTLY_IN_ExecuteAsync = 3;
+
+    private static final int DEFAULT_MAIN_QUEUE_LIMIT = 64;
+    private static final int DEFAULT_BACKGROUND_QUEUE_LIMIT = 64;
 
-    private final ArrayList<String> mStartIds = new ArrayList<>(2);
+    private static final int ASYNC_POOL_SIZE =
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static volatile ThreadPoolExecutor sAsyncExecutor;
+    private static volatile Executor sCustomAsyncExecutor;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicIntegerArray mRoutePending = new AtomicIntegerArray(4);
+
+    /**
+     * 还没有stopWrap的startId
+     */
+    private final InFlightIds mStartIds = new InFlightIds();
+
+    /**
+     * MainHandler和SubThread两种执行类型各有一个队列和一个engine：MainHandler的worker是post到主线程的一条消息，
+     * 每条消息只处理一个任务，队列里还有的话再post一条，排在它后面的别的消息不会被一整串任务挡住；
+     * SubThread的worker跑在{@link #getAsyncExecutor()}上，最多同时ASYNC_POOL_SIZE个。
+     */
+    private final ConcurrentLinkedQueue<RouteTask> mMainQueue = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<RouteTask> mBackgroundQueue = new ConcurrentLinkedQueue<>();
+    private final WorkEngine<RouteTask> mMainEngine = new WorkEngine<>(new RouteSource(mMainQueue),
+            new RouteCallback(), new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    mMainHandler.post(command);
+                }
+            });
+    private final WorkEngine<RouteTask> mBackgroundEngine = new WorkEngine<>(new RouteSource(mBackgroundQueue),
+            new RouteCallback(), getAsyncExecutor());
+
+    public AutoStopService() {
+        mMainEngine.setMaxWorkPerRun(1);
+        mBackgroundEngine.setMaxWorkers(ASYNC_POOL_SIZE);
+    }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
         if(DEBUG) Log.d(TAG, "on Destroy!");
+        // 所有startId都stopWrap了才会走到这里，队列已经空了
+        mMainEngine.shutdown();
+        mBackgroundEngine.shutdown();
     }
 
     protected final void stopWrap(String startId) {
-        if(DEBUG) Log.d(TAG, "stop wrap #" + startId);
-        synchronized (mStartIds) {
-            if (mStartIds.size() > 1) {
-                mStartIds.remove(startId); //注意一定要转为Integer是元素否则错误当成index
-                return;
-            }
-
-            if (TextUtils.equals(startId, mStartIds.get(0))) {
-                mStartIds.clear();
-                stopSelf();
-                return;
-            }
+        stopWrap(Integer.parseInt(startId));
+    }
 
-            //size == 0?
-            throw new RuntimeException("impossible when stopWrap!");
+    /**
+     * 完成一个startId的工作。只有所有收到的startId都stopWrap了，才会真正停止服务。
+     */
+    protected final void stopWrap(int startId) {
+        int stopId = mStartIds.finished(startId);
+        WorkTrace.trace(TAG, WorkTrace.EVENT_FINISH, startId, stopId > 0 ? stopId : -1, null);
+        if (stopId > 0) {
+            stopSelf(stopId);
         }
     }
 
@@ -73,20 +137,249 @@ public abstract class AutoStopService extends Service {
 
     @Override
     public int onStartCommand(final Intent intent, int flags, final int startIdInt) {
-        if (DEBUG) Log.d(TAG, "onStart Command #" + startIdInt + ": " + intent);
-        final String startId = "" + startIdInt;
+        WorkTrace.trace(TAG, WorkTrace.EVENT_RECEIVE, startIdInt, intent);
+        mStartIds.started(startIdInt);
 
-        synchronized (mStartIds) {
-            mStartIds.add(startId);
+        dispatch(intent, executeType(intent), startIdInt);
+        return START_REDELIVER_INTENT;
+    }
+
+    /**
+     * 按照执行类型分发，除了caller-managed的ExecuteAsync之外，做完都会自动stopWrap。
+     */
+    private void dispatch(final Intent intent, final int executeType, final int startId) {
+        if (executeType < EXCUTE_TYPE_DIRECTLY_IN_OnStartCmd || executeType > EXCUTE_TYPE_DIRECTLY_IN_ExecuteAsync) {
+            throw new IllegalArgumentException("Unknown execute type " + executeType);
+        }
+        if (executeType == EXCUTE_TYPE_DIRECTLY_IN_OnStartCmd) {
+            try {
+                onHandleWork(intent, executeType, startId);
+            } finally {
+                stopWrap(startId);
+            }
+            return;
         }
 
-        onHandleWork(intent, startId);
-        return START_REDELIVER_INTENT;
+        if (!tryAcquireRoute(executeType)) {
+            onWorkRejected(intent, executeType, startId);
+            stopWrap(startId);
+            return;
+        }
+
+        switch (executeType) {
+            case EXCUTE_TYPE_IN_MainHandler:
+                mMainQueue.offer(new RouteTask(intent, executeType, startId));
+                mMainEngine.signal();
+                break;
+            case EXCUTE_TYPE_DIRECTLY_IN_SubThread:
+                mBackgroundQueue.offer(new RouteTask(intent, executeType, startId));
+                mBackgroundEngine.signal();
+                break;
+            default:
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N && dispatchAsync(intent, startId)) {
+                    break;
+                }
+                //ExecuteAsync由子类自己管理，完成的时候自己stopWrap
+                releaseRoute(executeType);
+                onHandleWork(intent, executeType, startId);
+                break;
+        }
+    }
+
+    private static final class RouteSource implements WorkEngine.Source<RouteTask> {
+        private final ConcurrentLinkedQueue<RouteTask> mQueue;
+
+        RouteSource(ConcurrentLinkedQueue<RouteTask> queue) {
+            mQueue = queue;
+        }
+
+        @Override
+        public RouteTask poll() {
+            return mQueue.poll();
+        }
+    }
+
+    /**
+     * 这个服务没有wakelock要管，开始和结束处理的时候什么都不用做。
+     */
+    private final class RouteCallback implements WorkEngine.Callback<RouteTask> {
+        @Override
+        public void onProcessingStarted() {
+        }
+
+        @Override
+        public void onHandleWork(RouteTask work) {
+            work.run();
+        }
+
+        @Override
+        public void onHandleWorkBatch(List<RouteTask> batch) {
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).run();
+            }
+        }
+
+        @Override
+        public void onProcessingFinished() {
+        }
+    }
+
+    /**
+     * 在主线程Handler或者子线程池上执行一次onHandleWork，结束以后自动stopWrap。
+     */
+    private final class RouteTask implements Runnable {
+        private final Intent mIntent;
+        private final int mExecuteType;
+        private final int mStartId;
+
+        RouteTask(Intent intent, int executeType, int startId) {
+            mIntent = intent;
+            mExecuteType = executeType;
+            mStartId = startId;
+        }
+
+        @Override
+        public void run() {
+            try {
+                onHandleWork(mIntent, mExecuteType, mStartId);
+            } finally {
+                releaseRoute(mExecuteType);
+                stopWrap(mStartId);
+            }
+        }
+    }
+
+    private boolean tryAcquireRoute(int executeType) {
+        int limit = getRouteQueueLimit(executeType);
+        while (true) {
+            int pending = mRoutePending.get(executeType);
+            if (pending >= limit) {
+                return false;
+            }
+            if (mRoutePending.compareAndSet(executeType, pending, pending + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void releaseRoute(int executeType) {
+        mRoutePending.decrementAndGet(executeType);
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.N)
+    private boolean dispatchAsync(Intent intent, final int startId) {
+        CompletableFuture<?> future;
+        try {
+            future = onHandleWorkAsync(intent, startId);
+        } catch (Throwable e) {
+            // 没有future会来stopWrap了，在这里放掉名额并结束这个startId
+            releaseRoute(EXCUTE_TYPE_DIRECTLY_IN_ExecuteAsync);
+            stopWrap(startId);
+            throw e;
+        }
+        if (future == null) {
+            return false;
+        }
+        future.whenComplete((result, error) -> {
+            if (error != null) {
+                Log.w(TAG, "async work #" + startId + " failed", error);
+            }
+            releaseRoute(EXCUTE_TYPE_DIRECTLY_IN_ExecuteAsync);
+            stopWrap(startId);
+        });
+        return true;
+    }
+
+    /**
+     * 决定一个intent怎么执行，默认在onStartCommand里面直接执行。
+     *
+     * @return EXCUTE_TYPE_*之一
+     */
+    protected int executeType(Intent intent) {
+        return EXCUTE_TYPE_DIRECTLY_IN_OnStartCmd;
     }
 
     /**
-     * 替代你的onStartCommand。
-     * 不论这里面同步或者异步，最后完成本次工作后，请调用stopWrap(startIdStr)
+     * 每种执行类型同时排队+执行中的上限，超过的任务会交给{@link #onWorkRejected(Intent, int, int)}并直接stopWrap。
+     * 对于ExecuteAsync，只有{@link #onHandleWorkAsync(Intent, int)}返回的future计入。
      */
-    protected abstract void onHandleWork(Intent intent, String startIdStr);
+    protected int getRouteQueueLimit(int executeType) {
+        switch (executeType) {
+            case EXCUTE_TYPE_IN_MainHandler:
+                return DEFAULT_MAIN_QUEUE_LIMIT;
+            case EXCUTE_TYPE_DIRECTLY_IN_SubThread:
+            case EXCUTE_TYPE_DIRECTLY_IN_ExecuteAsync:
+                return DEFAULT_BACKGROUND_QUEUE_LIMIT;
+            default:
+                return Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * 某种执行类型排满了，这个任务不会执行。默认只打印日志。
+     */
+    protected void onWorkRejected(Intent intent, int executeType, int startId) {
+        Log.w(TAG, "#" + startId + " rejected, execute type " + executeType + " is full: " + intent);
+    }
+
+    /**
+     * {@link #EXCUTE_TYPE_DIRECTLY_IN_ExecuteAsync}的异步版本，返回非null的时候就不会再调用onHandleWork。
+     * 不需要自己stopWrap：future不论成功还是失败结束，都会自动stopWrap(startId)。
+     * 异步的工作请放在{@link #getAsyncExecutor()}上跑，不要自己new Thread，比如：
+     * <pre>
+     * return CompletableFuture.runAsync(() -> doWork(intent), getAsyncExecutor());
+     * </pre>
+     *
+     * @return 这次工作的future；返回null表示交给{@link #onHandleWork(Intent, int, int)}，由子类自己stopWrap（默认）
+     */
+    @RequiresApi(api = Build.VERSION_CODES.N)
+    @Nullable
+    protected CompletableFuture<?> onHandleWorkAsync(Intent intent, int startId) {
+        return null;
+    }
+
+    /**
+     * 替换所有AutoStopService共用的线程池，比如和别的服务共用一组线程：
+     * setAsyncExecutor(WorkExecutors.limit(WorkExecutors.shared(), 4))。请在Application.onCreate里面调用，
+     * 已经创建的服务继续用原来的线程池。
+     *
+     * @param executor null表示恢复默认
+     */
+    public static void setAsyncExecutor(@Nullable Executor executor) {
+        sCustomAsyncExecutor = executor;
+    }
+
+    /**
+     * 所有AutoStopService共用的线程池，线程数量有上限，空闲的线程会自己回收；设置过{@link #setAsyncExecutor(Executor)}的话是设置的那个。
+     */
+    protected static Executor getAsyncExecutor() {
+        Executor custom = sCustomAsyncExecutor;
+        if (custom != null) {
+            return custom;
+        }
+        ThreadPoolExecutor executor = sAsyncExecutor;
+        if (executor == null) {
+            synchronized (AutoStopService.class) {
+                executor = sAsyncExecutor;
+                if (executor == null) {
+                    executor = new ThreadPoolExecutor(ASYNC_POOL_SIZE, ASYNC_POOL_SIZE,
+                            30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                            WorkEngine.newThreadFactory(TAG + "-async"));
+                    executor.allowCoreThreadTimeOut(true);
+                    sAsyncExecutor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * 替代你的onStartCommand，执行在{@link #executeType(Intent)}决定的线程上：
+     * OnStartCmd、MainHandler在主线程，SubThread在子线程池；这三种返回以后基类会自动stopWrap。
+     * ExecuteAsync也在主线程调用，但是由你自己管理，异步工作完成后请调用stopWrap(startId)；
+     * 更推荐用{@link #onHandleWorkAsync(Intent, int)}，那样这里不会被调用。
+     */
+    protected void onHandleWork(Intent intent, int executeType, int startId) {
+        throw new RuntimeException("Override onHandleWork or onHandleWorkAsync in " + getClass().getName());
+    }
 }
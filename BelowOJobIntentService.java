@@ -6,15 +6,31 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.os.AsyncTask;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Parcel;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 本类用于处理排队的任务；当跑在O（8.0）以上的机器，你的工作将被当做一个job分发JobScheduler.enqueue.
@@ -46,7 +62,32 @@ import java.util.HashMap;
 public abstract class BelowOJobIntentService extends Service {
     protected static final String TAG = "JobIntentService";
 
-    static final boolean DEBUG = true;
+    static final boolean DEBUG = false;
+
+    /**
+     * int类型的extra，任务的优先级通道，0最高。见{@link #getWorkPriority(Intent)}。
+     */
+    public static final String EXTRA_WORK_PRIORITY = "com.allan.services.extra.WORK_PRIORITY";
+
+    /**
+     * String类型的extra，按key串行执行的key，见{@link #getSerialKey(Intent)}
+     */
+    public static final String EXTRA_SERIAL_KEY = "com.allan.services.extra.SERIAL_KEY";
+
+    /**
+     * String类型的extra，任务的tag，用{@link #cancelWork(Context, Class, String)}取消同一个tag的任务
+     */
+    public static final String EXTRA_WORK_TAG = "com.allan.services.extra.WORK_TAG";
+
+    /**
+     * long类型的extra，重放的任务在日志里的id，见{@link #enableWorkJournal()}
+     */
+    static final String EXTRA_JOURNAL_ID = "com.allan.services.extra.JOURNAL_ID";
+
+    /**
+     * boolean类型的extra，按{@link WorkCapacity#OVERFLOW_DROP_OLDEST}接受的任务，服务收到它的时候丢掉最早的任务
+     */
+    static final String EXTRA_DROP_OLDEST = "com.allan.services.extra.DROP_OLDEST";
 
     @Nullable
     @Override
@@ -54,14 +95,59 @@ public abstract class BelowOJobIntentService extends Service {
         return null;
     }
 
-    CommandProcessor mCurProcessor;
+    /**
+     * 出列和处理任务的引擎，默认一个worker跑在{@link AsyncTask#THREAD_POOL_EXECUTOR}上，即原来的顺序执行。
+     */
+    final EngineCallback mEngineCallback = new EngineCallback();
+    final WorkEngine<GenericWorkItem> mEngine = new WorkEngine<>(new WorkEngine.Source<GenericWorkItem>() {
+        @Override
+        public GenericWorkItem poll() {
+            return dequeueWork();
+        }
+    }, mEngineCallback, AsyncTask.THREAD_POOL_EXECUTOR);
     boolean mDestroyed = false;
 
-    static final Object sLock = new Object();
-    static final HashMap<ComponentName, WorkEnqueuer> sClassWorkEnqueuer = new HashMap<>();
+    ThreadPoolExecutor mWorkerExecutor;
+    // 设置过setWorkExecutor以后，setMaxWorkers不再建自己的线程池
+    boolean mSharedExecutor;
+    final StartIdTracker mStartIdTracker = new StartIdTracker();
+
+    /**
+     * 每个ComponentName一个WorkEnqueuer。不同的服务类可以并行enqueueWork，不再共用一把全局锁去等别人的Binder调用。
+     */
+    static final ConcurrentHashMap<ComponentName, WorkEnqueuer> sClassWorkEnqueuer = new ConcurrentHashMap<>();
 
     WorkEnqueuer mCompatWorkEnqueuer;
-    final ArrayList<CompatWorkItem> mCompatQueue = new ArrayList<>(); //这边单独就直接写了。便于学习。
+    /**
+     * 无锁的队列：onStartCommand入队和engine出列不会互相抢锁，出列也不需要像ArrayList.remove(0)那样搬动整个数组。
+     * 默认只有一条通道，即FIFO；见{@link #setPriorityWeights(int...)}。
+     */
+    volatile WorkQueue<CompatWorkItem> mCompatQueue = new WorkQueue<>(new int[] {1});
+    /**
+     * 还在mCompatQueue里的带tag的任务，cancelWork用它马上移除，不用扫整个队列。由它自己保护。
+     */
+    final HashMap<String, HashSet<CompatWorkItem>> mQueuedByTag = new HashMap<>();
+    volatile WorkCoalescer mCoalescer;
+    /**
+     * 任务统计，null表示没有打开，见{@link #enableWorkMetrics()}
+     */
+    volatile WorkMetrics mMetrics;
+    /**
+     * 磁盘日志，null表示没有打开，见{@link #enableWorkJournal()}
+     */
+    volatile WorkJournal mJournal;
+    /**
+     * 失败以后的重试策略，null表示不重试，见{@link #setRetryPolicy(WorkRetryPolicy)}
+     */
+    volatile WorkRetryPolicy mRetryPolicy;
+    /**
+     * 每个worker线程正在onHandleWork里面处理的任务，给{@link #isWorkCancelled()}用
+     */
+    final ThreadLocal<CompatWorkItem> mCurrentWork = new ThreadLocal<>();
+    /**
+     * 按key串行执行，见{@link #getSerialKey(Intent)}
+     */
+    final WorkSerializer<CompatWorkItem> mSerializer = new WorkSerializer<>();
     /**
      * 抽象目标服务，用于传递任务；并且实现怎么样去传递
      */
@@ -71,6 +157,26 @@ public abstract class BelowOJobIntentService extends Service {
         boolean mHasJobId;
         int mJobId;
 
+        // 容量限制，null表示不限制（默认），见setWorkCapacity
+        volatile WorkCapacity mCapacity;
+        volatile WorkCoalescer mCapacityCoalescer;
+        // 用完了重试次数的任务
+        final WorkDeadLetters mDeadLetters = new WorkDeadLetters(WorkDeadLetters.DEFAULT_CAPACITY);
+        // 带tag的任务的计数，见cancelWork
+        final WorkTags mTags = new WorkTags();
+        // 这个进程里正在运行的服务，cancelWork用它马上移除排队的任务
+        volatile BelowOJobIntentService mService;
+
+        // 到期了、等着一起排队的延时任务，由mDueLock保护
+        private final Object mDueLock = new Object();
+        private ArrayList<Intent> mDueWork;
+        private final Runnable mFlushDueWork = new Runnable() {
+            @Override
+            public void run() {
+                flushDueWork();
+            }
+        };
+
         WorkEnqueuer(Context context, ComponentName cn) {
             mComponentName = cn;
         }
@@ -78,7 +184,7 @@ public abstract class BelowOJobIntentService extends Service {
         /**
          * 检查设置的jobId是否相同
          */
-        void ensureJobId(int jobId) {
+        synchronized void ensureJobId(int jobId) {
             if (!mHasJobId) {
                 mHasJobId = true;
                 mJobId = jobId;
@@ -88,7 +194,134 @@ public abstract class BelowOJobIntentService extends Service {
             }
         }
 
-        abstract void enqueueWork(Intent work);
+        /**
+         * @return 是否被系统接受了
+         */
+        abstract boolean enqueueWork(Intent work);
+
+        /**
+         * work是enqueueWork自己新建的，调用方拿不到它，所以可以直接修改而不用先复制一份。
+         */
+        boolean enqueueOwnedWork(Intent work) {
+            return enqueueWork(work);
+        }
+
+        /**
+         * 按照容量限制排队，没有限制的时候直接排队。
+         *
+         * @param mayBlock false的话不会因为OVERFLOW_BLOCK等待
+         * @return WorkCapacity.ENQUEUE_*
+         */
+        int enqueueBounded(Intent work, boolean owned, boolean mayBlock) {
+            WorkCapacity capacity = mCapacity;
+            if (capacity == null) {
+                boolean accepted = owned ? enqueueOwnedWork(work) : enqueueWork(work);
+                return accepted ? WorkCapacity.ENQUEUE_ACCEPTED : WorkCapacity.ENQUEUE_FAILED;
+            }
+            Object key = capacityKey(capacity, work);
+            int result = capacity.acquire(key, mayBlock);
+            if (result == WorkCapacity.ENQUEUE_REJECTED) {
+                return result;
+            }
+            if (result == WorkCapacity.ENQUEUE_DROPPED_OLDEST) {
+                // 到了onStartCommand再丢：排在它前面的任务那时候都已经进了队列
+                if (!owned) {
+                    work = new Intent(work);
+                    owned = true;
+                }
+                work.putExtra(EXTRA_DROP_OLDEST, true);
+            }
+            if (!(owned ? enqueueOwnedWork(work) : enqueueWork(work))) {
+                capacity.cancel(key, result);
+                return WorkCapacity.ENQUEUE_FAILED;
+            }
+            return result;
+        }
+
+        private Object capacityKey(WorkCapacity capacity, Intent work) {
+            WorkCoalescer coalescer = mCapacityCoalescer;
+            return capacity.needsKey() && coalescer != null ? coalescer.getCoalesceKey(work) : null;
+        }
+
+        /**
+         * 服务完成了一个任务（包括被丢掉的），让出它占的位置
+         */
+        void releaseCapacity(Intent work) {
+            WorkCapacity capacity = mCapacity;
+            if (capacity != null) {
+                capacity.release(capacityKey(capacity, work));
+            }
+        }
+
+        /**
+         * 延时任务到期了，在定时器线程调用。先攒起来，同一时刻到期的任务一次性批量排队。
+         */
+        void enqueueDue(Intent work) {
+            synchronized (mDueLock) {
+                if (mDueWork == null) {
+                    mDueWork = new ArrayList<>();
+                    // 排在所有已经到期的定时器后面执行，所以同一时刻到期的任务都会进这一批
+                    WorkEngine.getTimer().execute(mFlushDueWork);
+                }
+                mDueWork.add(work);
+            }
+        }
+
+        private void flushDueWork() {
+            ArrayList<Intent> due;
+            synchronized (mDueLock) {
+                due = mDueWork;
+                mDueWork = null;
+            }
+            if (mCapacity == null) {
+                enqueueWork(due);
+                return;
+            }
+            // 定时器线程不能等，OVERFLOW_BLOCK满了直接拒绝
+            for (int i = 0; i < due.size(); i++) {
+                enqueueBounded(due.get(i), false, false);
+            }
+        }
+
+        /**
+         * delayMillis以后在定时器线程重新排队一个失败的任务，排不进去的话放进死信。work是新复制的，可以直接修改。
+         */
+        void enqueueRetry(final Intent work, final Throwable error, final int attempts, long delayMillis) {
+            WorkEngine.getTimer().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    // 定时器线程不能等，OVERFLOW_BLOCK满了直接拒绝
+                    int result = enqueueBounded(work, true, false);
+                    if (result == WorkCapacity.ENQUEUE_REJECTED || result == WorkCapacity.ENQUEUE_FAILED) {
+                        Log.w(TAG, "Can't requeue failed work: " + work);
+                        mDeadLetters.add(work, error, attempts);
+                    }
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * 服务从队列里取出了一个任务，它和合并进去的任务都不能再被{@link WorkCapacity#OVERFLOW_DROP_OLDEST}丢掉了
+         */
+        void workDequeued(CompatWorkItem item) {
+            WorkCapacity capacity = mCapacity;
+            if (capacity != null) {
+                capacity.dequeued(item.mMerged != null ? 1 + item.mMerged.size() : 1);
+            }
+        }
+
+        /**
+         * 批量排队，返回被接受的数量。子类可以覆盖来合并每次排队的额外开销。
+         */
+        int enqueueWork(List<Intent> works) {
+            int accepted = 0;
+            for (Intent work : works) {
+                if (enqueueWork(work)) {
+                    accepted++;
+                }
+            }
+            return accepted;
+        }
 
         public void serviceStartReceived() {
         }
@@ -98,17 +331,76 @@ public abstract class BelowOJobIntentService extends Service {
 
         public void serviceProcessingFinished() {
         }
+
+        /**
+         * 服务销毁了，不需要再等下一轮处理
+         */
+        public void serviceDestroyed() {
+            serviceProcessingFinished();
+        }
     }
 
     /**
      * 给androidO以下的设备实现，纯Service的方式。
+     *
+     * wakelock的超时不再是固定的60秒和10分钟，而是按照观察到的启动延迟和每一轮处理的耗时来定，
+     * 处理中的run wakelock快到期的时候再续上。一轮处理结束的时候，如果任务一般都是紧接着到来的，
+     * run wakelock会多留一小会儿，免得频繁地release再acquire（每次都是一次到PowerManager的Binder调用）。
      */
     static final class CompatWorkEnqueuer extends WorkEnqueuer {
+        static final long MIN_LAUNCH_TIMEOUT = 5 * 1000L;
+        static final long MAX_LAUNCH_TIMEOUT = 60 * 1000L;
+        static final long MIN_RUN_TIMEOUT = 60 * 1000L;
+        static final long MAX_RUN_TIMEOUT = 10 * 60 * 1000L;
+        /**
+         * 一轮处理结束以后run wakelock最多多留这么久
+         */
+        static final long MAX_RELEASE_DELAY = 2 * 1000L;
+
         private final Context mContext;
         private final PowerManager.WakeLock mLaunchWakeLock;
         private final PowerManager.WakeLock mRunWakeLock;
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+        private final Runnable mReleaseRunLock = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (CompatWorkEnqueuer.this) {
+                    if (!mServiceProcessing) {
+                        releaseRunLocked();
+                    }
+                }
+            }
+        };
+        private final Runnable mRenewRunLock = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (CompatWorkEnqueuer.this) {
+                    if (mServiceProcessing) {
+                        acquireRunLocked();
+                    } else {
+                        releaseRunLocked();
+                    }
+                }
+            }
+        };
+        // 以下由this保护
         boolean mLaunchingService;
         boolean mServiceProcessing;
+        private long mLaunchRequestTime;
+        private long mProcessingStartTime;
+        private long mProcessingFinishTime;
+        // 指数平均，-1表示还没有样本
+        private long mAvgLaunchMillis = -1;
+        private long mAvgProcessingMillis = -1;
+        private long mAvgIdleMillis = -1;
+        // 持有中的锁从什么时候开始、超时是多少，0表示没有持有
+        private long mLaunchHeldSince;
+        private long mLaunchTimeout;
+        private long mRunHeldSince;
+        private long mRunTimeout;
+        private long mLaunchHeldMillis;
+        private long mRunHeldMillis;
+        private int mAcquireCount;
 
         CompatWorkEnqueuer(Context context, ComponentName cn) {
             super(context, cn);
@@ -126,22 +418,74 @@ public abstract class BelowOJobIntentService extends Service {
         }
 
         @Override
-        void enqueueWork(Intent work) {
-            Intent intent = new Intent(work);
+        boolean enqueueWork(Intent work) {
+            return enqueueWork(work, false);
+        }
+
+        @Override
+        boolean enqueueOwnedWork(Intent work) {
+            return enqueueWork(work, true);
+        }
+
+        private boolean enqueueWork(Intent work, boolean owned) {
+            if (startService(work, owned)) {
+                markLaunching();
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * 一批任务只需要在第一个被接受的时候处理一次launch wakelock。
+         */
+        @Override
+        int enqueueWork(List<Intent> works) {
+            int accepted = 0;
+            for (Intent work : works) {
+                if (startService(work, false)) {
+                    if (accepted == 0) {
+                        markLaunching();
+                    }
+                    accepted++;
+                }
+            }
+            return accepted;
+        }
+
+        private boolean startService(Intent work, boolean owned) {
+            Intent intent = owned ? work : new Intent(work);
             intent.setComponent(mComponentName);
-            if (DEBUG) Log.d(TAG, "Starting service for work: " + work);
+            WorkMetrics.stampEnqueueTime(intent);
+            WorkTrace.trace(TAG, WorkTrace.EVENT_ENQUEUE, work);
+            String tag = intent.getStringExtra(EXTRA_WORK_TAG);
+            long seq = 0;
+            if (tag != null) {
+                seq = mTags.enqueued(tag);
+                intent.putExtra(WorkTags.EXTRA_SEQ, seq);
+            }
             if (mContext.startService(intent) != null) {
-                synchronized (this) {
-                    if (!mLaunchingService) {
-                        mLaunchingService = true;
-                        if (!mServiceProcessing) {
-                            // If the service is not already holding the wake lock for
-                            // itself, acquire it now to keep the system running until
-                            // we get this work dispatched.  We use a timeout here to
-                            // protect against whatever problem may cause it to not get
-                            // the work.
-                            mLaunchWakeLock.acquire(60 * 1000);
-                        }
+                return true;
+            }
+            if (tag != null) {
+                mTags.rejected(tag, seq);
+            }
+            return false;
+        }
+
+        private void markLaunching() {
+            synchronized (this) {
+                if (!mLaunchingService) {
+                    mLaunchingService = true;
+                    mLaunchRequestTime = SystemClock.elapsedRealtime();
+                    // 正在处理，或者刚处理完还留着run wakelock，都不需要再拿launch wakelock：
+                    // 后者在release的时候会看到mLaunchingService，补上launch wakelock。
+                    if (!mServiceProcessing && mRunHeldSince == 0) {
+                        // If the service is not already holding the wake lock for
+                        // itself, acquire it now to keep the system running until
+                        // we get this work dispatched.  We use a timeout here to
+                        // protect against whatever problem may cause it to not get
+                        // the work.
+                        acquireLaunchLocked();
                     }
                 }
             }
@@ -152,6 +496,10 @@ public abstract class BelowOJobIntentService extends Service {
             synchronized (this) {
                 // Once we have started processing work, we can count whatever last
                 // enqueueWork() that happened as handled.
+                if (mLaunchingService) {
+                    mAvgLaunchMillis = average(mAvgLaunchMillis,
+                            SystemClock.elapsedRealtime() - mLaunchRequestTime);
+                }
                 mLaunchingService = false;
             }
         }
@@ -162,10 +510,16 @@ public abstract class BelowOJobIntentService extends Service {
                 // We hold the wake lock as long as the service is processing commands.
                 if (!mServiceProcessing) {
                     mServiceProcessing = true;
-                    // Keep the device awake, but only for at most 10 minutes at a time
-                    // (Similar to JobScheduler.)
-                    mRunWakeLock.acquire(10 * 60 * 1000L);
-                    mLaunchWakeLock.release();
+                    long now = SystemClock.elapsedRealtime();
+                    mProcessingStartTime = now;
+                    if (mProcessingFinishTime != 0) {
+                        mAvgIdleMillis = average(mAvgIdleMillis, now - mProcessingFinishTime);
+                    }
+                    mHandler.removeCallbacks(mReleaseRunLock);
+                    if (mRunHeldSince == 0) {
+                        acquireRunLocked();
+                    }
+                    releaseLaunchLocked();
                 }
             }
         }
@@ -174,16 +528,143 @@ public abstract class BelowOJobIntentService extends Service {
         public void serviceProcessingFinished() {
             synchronized (this) {
                 if (mServiceProcessing) {
-                    // If we are transitioning back to a wakelock with a timeout, do the same
-                    // as if we had enqueued work without the service running.
-                    if (mLaunchingService) {
-                        mLaunchWakeLock.acquire(60 * 1000);
-                    }
                     mServiceProcessing = false;
-                    mRunWakeLock.release();
+                    long now = SystemClock.elapsedRealtime();
+                    mProcessingFinishTime = now;
+                    mAvgProcessingMillis = average(mAvgProcessingMillis, now - mProcessingStartTime);
+                    long delay = releaseDelayLocked();
+                    if (delay > 0) {
+                        mHandler.postDelayed(mReleaseRunLock, delay);
+                    } else {
+                        releaseRunLocked();
+                    }
                 }
             }
         }
+
+        @Override
+        public void serviceDestroyed() {
+            synchronized (this) {
+                mServiceProcessing = false;
+                releaseRunLocked();
+            }
+        }
+
+        /**
+         * 按照最近几轮之间的空闲时间决定run wakelock多留多久；任务之间一般隔得比较久的话就马上release。
+         */
+        private long releaseDelayLocked() {
+            if (mAvgIdleMillis < 0 || mAvgIdleMillis > MAX_RELEASE_DELAY) {
+                return 0;
+            }
+            return Math.min(MAX_RELEASE_DELAY, Math.max(mAvgIdleMillis * 2, 100));
+        }
+
+        private void acquireLaunchLocked() {
+            long timeout = clamp(mAvgLaunchMillis < 0 ? MAX_LAUNCH_TIMEOUT : mAvgLaunchMillis * 4,
+                    MIN_LAUNCH_TIMEOUT, MAX_LAUNCH_TIMEOUT);
+            long now = SystemClock.elapsedRealtime();
+            if (mLaunchHeldSince != 0) {
+                mLaunchHeldMillis += Math.min(now - mLaunchHeldSince, mLaunchTimeout);
+            }
+            mLaunchHeldSince = now;
+            mLaunchTimeout = timeout;
+            mAcquireCount++;
+            mLaunchWakeLock.acquire(timeout);
+        }
+
+        private void releaseLaunchLocked() {
+            if (mLaunchHeldSince != 0) {
+                mLaunchHeldMillis += Math.min(SystemClock.elapsedRealtime() - mLaunchHeldSince, mLaunchTimeout);
+                mLaunchHeldSince = 0;
+                mLaunchWakeLock.release();
+            }
+        }
+
+        /**
+         * 拿或者续run wakelock，超时是平均每轮处理耗时的4倍，并在到期之前续上，所以长的一轮处理不会中途失去wakelock。
+         */
+        private void acquireRunLocked() {
+            long timeout = clamp(mAvgProcessingMillis < 0 ? MAX_RUN_TIMEOUT : mAvgProcessingMillis * 4,
+                    MIN_RUN_TIMEOUT, MAX_RUN_TIMEOUT);
+            long now = SystemClock.elapsedRealtime();
+            if (mRunHeldSince != 0) {
+                mRunHeldMillis += Math.min(now - mRunHeldSince, mRunTimeout);
+            }
+            mRunHeldSince = now;
+            mRunTimeout = timeout;
+            mAcquireCount++;
+            mRunWakeLock.acquire(timeout);
+            mHandler.removeCallbacks(mRenewRunLock);
+            mHandler.postDelayed(mRenewRunLock, timeout * 4 / 5);
+        }
+
+        private void releaseRunLocked() {
+            mHandler.removeCallbacks(mReleaseRunLock);
+            mHandler.removeCallbacks(mRenewRunLock);
+            if (mRunHeldSince == 0) {
+                return;
+            }
+            // If we are transitioning back to a wakelock with a timeout, do the same
+            // as if we had enqueued work without the service running.
+            if (mLaunchingService) {
+                acquireLaunchLocked();
+            }
+            mRunHeldMillis += Math.min(SystemClock.elapsedRealtime() - mRunHeldSince, mRunTimeout);
+            mRunHeldSince = 0;
+            mRunWakeLock.release();
+        }
+
+        synchronized WakeLockStats getWakeLockStats() {
+            long now = SystemClock.elapsedRealtime();
+            long launch = mLaunchHeldMillis;
+            if (mLaunchHeldSince != 0) {
+                launch += Math.min(now - mLaunchHeldSince, mLaunchTimeout);
+            }
+            long run = mRunHeldMillis;
+            if (mRunHeldSince != 0) {
+                run += Math.min(now - mRunHeldSince, mRunTimeout);
+            }
+            return new WakeLockStats(launch, run, mAcquireCount);
+        }
+
+        private static long average(long avg, long sample) {
+            return avg < 0 ? sample : avg + (sample - avg) / 4;
+        }
+
+        private static long clamp(long value, long min, long max) {
+            return Math.max(min, Math.min(max, value));
+        }
+    }
+
+    /**
+     * 一个服务的wakelock持有情况，见{@link #getWakeLockStats(ComponentName)}
+     */
+    public static final class WakeLockStats {
+        /**
+         * 启动服务的过程中持有的时间
+         */
+        public final long launchHeldMillis;
+        /**
+         * 处理任务的过程中持有的时间
+         */
+        public final long runHeldMillis;
+        /**
+         * acquire的次数，也就是到PowerManager的Binder调用次数（release的次数不会比它多）
+         */
+        public final int acquireCount;
+
+        WakeLockStats(long launchHeldMillis, long runHeldMillis, int acquireCount) {
+            this.launchHeldMillis = launchHeldMillis;
+            this.runHeldMillis = runHeldMillis;
+            this.acquireCount = acquireCount;
+        }
+
+        @Override
+        public String toString() {
+            return "WakeLockStats{launch=" + launchHeldMillis + "ms, run=" + runHeldMillis
+                    + "ms, acquires=" + acquireCount + "}";
+        }
     }
 
     /**
@@ -192,18 +673,40 @@ public abstract class BelowOJobIntentService extends Service {
     interface GenericWorkItem {
         Intent getIntent();
         void complete();
+
+        /**
+         * @return 排队的时间，只在打开了统计的时候才有，否则是0
+         */
+        long getEnqueueTime();
     }
 
     /**
      * 对GenericWorkItem在androidO以下平台的实现的实现: intents通过纯服务的onStartCommand做的.
      */
-    final class CompatWorkItem implements GenericWorkItem {
-        final Intent mIntent;
+    final class CompatWorkItem extends WorkQueue.Entry implements GenericWorkItem {
+        Intent mIntent;
+        // 收到的时候的Intent，排队的时候按它占的容量，合并以后mIntent变了也按它让出
+        final Intent mReceivedIntent;
         final int mStartId;
+        // 排队时的tag和序号，合并以后也不变
+        final String mTag;
+        final long mTagSeq;
+        // WorkTags.started返回了true，完成的时候要finished
+        boolean mTagStarted;
+        // 按key串行的时候，这个任务在WorkSerializer里的位置
+        WorkSerializer.Slot<CompatWorkItem> mSerialSlot;
+        long mEnqueueTime;
+        // 在日志里的id，0表示没有记到日志里
+        long mJournalId;
+        // 合并只发生在出列之前，由mCompatQueue保护
+        ArrayList<CompatWorkItem> mMerged;
 
         CompatWorkItem(Intent intent, int startId) {
             mIntent = intent;
+            mReceivedIntent = intent;
             mStartId = startId;
+            mTag = intent.getStringExtra(EXTRA_WORK_TAG);
+            mTagSeq = mTag != null ? intent.getLongExtra(WorkTags.EXTRA_SEQ, 0) : 0;
         }
 
         @Override
@@ -211,45 +714,131 @@ public abstract class BelowOJobIntentService extends Service {
             return mIntent;
         }
 
+        @Override
+        public long getEnqueueTime() {
+            return mEnqueueTime;
+        }
+
         @Override
         public void complete() {
-            if (DEBUG) Log.d(TAG, "Stopping self: #" + mStartId);
-            stopSelf(mStartId);
+            // 先从日志里去掉再完成startId：在这中间被杀的话，任务会再执行一次而不是丢掉。
+            removeFromJournal(mJournalId);
+            if (mTagStarted) {
+                mCompatWorkEnqueuer.mTags.finished(mTag);
+            }
+            mCompatWorkEnqueuer.releaseCapacity(mReceivedIntent);
+            if (mSerialSlot != null && mSerializer.finished(mSerialSlot)) {
+                // 同一个key排在后面的任务可以执行了
+                mEngine.signal();
+            }
+            int stopId = mStartIdTracker.complete(mStartId);
+            if (mMerged != null) {
+                // 被合并进来的startId也一起完成，否则stopSelf永远等不到它们。
+                for (int i = 0; i < mMerged.size(); i++) {
+                    CompatWorkItem merged = mMerged.get(i);
+                    removeFromJournal(merged.mJournalId);
+                    mCompatWorkEnqueuer.releaseCapacity(merged.mReceivedIntent);
+                    stopId = Math.max(stopId, mStartIdTracker.complete(merged.mStartId));
+                }
+            }
+            WorkTrace.trace(TAG, WorkTrace.EVENT_FINISH, mStartId, stopId, null);
+            if (stopId >= 0) {
+                stopSelf(stopId);
+            }
         }
     }
 
     /**
-     * 这里一个Task用于在后台，出列和处理任务。
+     * 合并策略：key相同、还在排队没有开始执行的任务会被合并成一个，只调用一次{@link #onHandleWork(Intent)}。
+     * 比如"刷新X"连续来了50次，真正执行的只有一次。
      */
-    final class CommandProcessor extends AsyncTask<Void, Void, Void> {
-        @Override
-        protected Void doInBackground(Void... params) {
-            GenericWorkItem work;
+    public interface WorkCoalescer {
+        /**
+         * @return 合并用的key；返回null表示这个任务不参与合并
+         */
+        @Nullable
+        Object getCoalesceKey(@NonNull Intent intent);
 
-            if (DEBUG) Log.d(TAG, "Starting to dequeue work...");
+        /**
+         * @param pending 正在排队的任务
+         * @param incoming 新来的任务
+         * @return 合并以后真正要执行的intent，比如直接返回incoming表示用新的替代旧的
+         */
+        @NonNull
+        Intent merge(@NonNull Intent pending, @NonNull Intent incoming);
+    }
 
-            while ((work = dequeueWork()) != null) {
-                if (DEBUG) Log.d(TAG, "Processing next work: " + work);
-                onHandleWork(work.getIntent());
-                if (DEBUG) Log.d(TAG, "Completing work: " + work);
-                work.complete();
+    /**
+     * 把engine的回调转给这个服务：处理完一个任务就complete，开始和结束处理的时候拿放wakelock。
+     */
+    final class EngineCallback implements WorkEngine.Callback<GenericWorkItem>,
+            WorkQueue.Merger<CompatWorkItem> {
+        @Override
+        public void onProcessingStarted() {
+            WorkTrace.trace(TAG, WorkTrace.EVENT_PROCESSING_STARTED, null);
+            if (mCompatWorkEnqueuer != null) {
+                mCompatWorkEnqueuer.serviceProcessingStarted();
             }
+        }
 
-            if (DEBUG) Log.d(TAG, "Done processing work!");
+        /**
+         * 抛了异常的任务也会complete，重试是重新排队的一个新任务；worker接着处理后面的任务。
+         */
+        @Override
+        public void onHandleWork(GenericWorkItem work) {
+            WorkTrace.trace(TAG, WorkTrace.EVENT_WORK_BEGIN, work);
+            WorkMetrics metrics = mMetrics;
+            mCurrentWork.set((CompatWorkItem) work);
+            try {
+                if (metrics == null) {
+                    BelowOJobIntentService.this.onHandleWork(work.getIntent());
+                } else {
+                    long startTime = WorkMetrics.now();
+                    metrics.onStarted(work.getEnqueueTime(), startTime);
+                    BelowOJobIntentService.this.onHandleWork(work.getIntent());
+                    metrics.onCompleted(work.getIntent(), work.getEnqueueTime(), startTime, WorkMetrics.now());
+                }
+            } catch (RuntimeException e) {
+                retryOrDeadLetter(work.getIntent(), e);
+            } finally {
+                mCurrentWork.remove();
+            }
+            WorkTrace.trace(TAG, WorkTrace.EVENT_WORK_END, work);
+            work.complete();
+        }
 
-            return null;
+        @Override
+        public void onHandleWorkBatch(List<GenericWorkItem> batch) {
+            for (int i = 0; i < batch.size(); i++) {
+                onHandleWork(batch.get(i));
+            }
         }
 
         @Override
-        protected void onCancelled(Void aVoid) {
-            if (DEBUG) Log.d(TAG, "on Cancelled!");
-            processorFinished();
+        public void onProcessingFinished() {
+            // 没有更多的任务了：要么这个服务已经在stop的过程中，要么有人又调用了startService，
+            // 新的onStartCommand会再signal一次。
+            WorkTrace.trace(TAG, WorkTrace.EVENT_PROCESSING_FINISHED, null);
+            if (!mDestroyed) {
+                mCompatWorkEnqueuer.serviceProcessingFinished();
+            }
         }
 
         @Override
-        protected void onPostExecute(Void aVoid) {
-            if (DEBUG) Log.d(TAG, "on PostExecute!");
-            processorFinished();
+        public void merge(CompatWorkItem pending, CompatWorkItem incoming) {
+            WorkTrace.trace(TAG, WorkTrace.EVENT_COALESCE, incoming.mStartId, pending.mStartId, incoming.mIntent);
+            if (incoming.mTag != null) {
+                // 之后跟着pending走，取消incoming的tag不再影响它
+                mCompatWorkEnqueuer.mTags.absorbed(incoming.mTag, incoming.mTagSeq);
+            }
+            WorkCoalescer coalescer = mCoalescer;
+            if (coalescer != null) {
+                pending.mIntent = coalescer.merge(pending.mIntent, incoming.mIntent);
+            }
+            if (pending.mMerged == null) {
+                pending.mMerged = new ArrayList<>(2);
+            }
+            pending.mMerged.add(incoming);
         }
     }
 
@@ -265,6 +854,7 @@ public abstract class BelowOJobIntentService extends Service {
         if (DEBUG) Log.d(TAG, "service CREATING: " + this);
         ComponentName cn = new ComponentName(this, this.getClass());
         mCompatWorkEnqueuer = getWorkEnqueuer(this, cn, false, 0);
+        mCompatWorkEnqueuer.mService = this;
     }
 
     /**
@@ -273,25 +863,145 @@ public abstract class BelowOJobIntentService extends Service {
     @Override
     public int onStartCommand(@Nullable Intent intent, int flags, int startId) {
         mCompatWorkEnqueuer.serviceStartReceived();
-        if (DEBUG) Log.d(TAG, "onStart Command #" + startId + ": " + intent);
-        synchronized (mCompatQueue) {
-            mCompatQueue.add(new CompatWorkItem(intent != null ? intent : new Intent(),
-                    startId));
-            ensureProcessorRunningLocked(true);
+        WorkTrace.trace(TAG, WorkTrace.EVENT_RECEIVE, startId, intent);
+        mStartIdTracker.received(startId);
+        WorkJournal journal = mJournal;
+        if (journal != null && intent == null) {
+            // START_STICKY的重启，真正的任务已经在onCreate里面从日志重新投递了
+            finishStartId(startId);
+            return START_STICKY;
+        }
+        if (intent == null) {
+            intent = new Intent();
+        }
+        long journalId = 0;
+        if (journal != null) {
+            journalId = intent.getLongExtra(EXTRA_JOURNAL_ID, 0);
+            if (journalId != 0) {
+                intent.removeExtra(EXTRA_JOURNAL_ID);
+                if (!journal.claim(journalId)) {
+                    // 已经完成了，或者这个进程里已经投递过一次了
+                    finishStartId(startId);
+                    return START_STICKY;
+                }
+            }
+        }
+        if (intent.getBooleanExtra(EXTRA_DROP_OLDEST, false)) {
+            intent.removeExtra(EXTRA_DROP_OLDEST);
+            dropOldest();
+        }
+        CompatWorkItem item = new CompatWorkItem(intent, startId);
+        WorkMetrics metrics = mMetrics;
+        if (WorkMetrics.sStampEnqueueTime) {
+            item.mEnqueueTime = WorkMetrics.takeEnqueueTime(intent);
+        }
+        if (metrics != null) {
+            if (item.mEnqueueTime == 0) {
+                item.mEnqueueTime = WorkMetrics.now();
+            }
+            metrics.onReceived((flags & START_FLAG_REDELIVERY) != 0);
+        }
+        if (journal != null) {
+            item.mJournalId = journalId != 0 ? journalId : appendToJournal(journal, intent);
+        }
+        final int startMode = journal != null ? START_STICKY : START_REDELIVER_INTENT;
+        WorkCoalescer coalescer = mCoalescer;
+        Object key = coalescer != null ? coalescer.getCoalesceKey(intent) : null;
+        // 先进索引再入队，否则worker可能在进索引之前就把它取走了
+        indexTag(item);
+        if (key == null) {
+            mCompatQueue.offer(item, getWorkPriority(intent));
+        } else if (mCompatQueue.offer(item, getWorkPriority(intent), key, mEngineCallback) != null) {
+            // 合并进了还在排队的任务，engine一定还会取到它
+            unindexTag(item);
+            if (metrics != null) {
+                metrics.onCoalesced();
+            }
+            return startMode;
+        }
+        // 先入队再signal：worker如果正好在退出，也会看到这个signal再取一轮。
+        mEngine.signal();
+        return startMode;
+    }
+
+    /**
+     * 容量满了，按{@link WorkCapacity#OVERFLOW_DROP_OLDEST}接受了一个新任务：从队列里取出最早排队的任务，不执行直接完成。
+     */
+    private void dropOldest() {
+        WorkCapacity capacity = mCompatWorkEnqueuer.mCapacity;
+        if (capacity == null) {
+            return;
+        }
+        CompatWorkItem oldest = mCompatQueue.pollOldest();
+        capacity.finishDrop(oldest != null);
+        if (oldest == null) {
+            // 排在前面的任务刚好都被worker取走了
+            return;
+        }
+        unindexTag(oldest);
+        mCompatWorkEnqueuer.workDequeued(oldest);
+        discard(oldest, WorkTrace.EVENT_DROP);
+    }
+
+    /**
+     * 出列的任务不执行，直接完成
+     */
+    private void discard(CompatWorkItem item, int event) {
+        WorkTrace.trace(TAG, event, item);
+        WorkMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.onDiscarded(1);
+        }
+        item.complete();
+    }
+
+    /**
+     * 不需要执行任务的startId，直接完成
+     */
+    private void finishStartId(int startId) {
+        int stopId = mStartIdTracker.complete(startId);
+        WorkTrace.trace(TAG, WorkTrace.EVENT_FINISH, startId, stopId, null);
+        if (stopId >= 0) {
+            stopSelf(stopId);
         }
-        return START_REDELIVER_INTENT;
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        synchronized (mCompatQueue) {
-            mDestroyed = true;
-            mCompatWorkEnqueuer.serviceProcessingFinished();
+        mDestroyed = true;
+        mEngine.shutdown();
+        mCompatWorkEnqueuer.serviceDestroyed();
+        if (mCompatWorkEnqueuer.mService == this) {
+            mCompatWorkEnqueuer.mService = null;
+        }
+        if (mWorkerExecutor != null) {
+            mWorkerExecutor.shutdown();
+            mWorkerExecutor = null;
+        }
+        // 还没退出的worker完成任务的时候不再写日志，这些记录在下一次打开的时候重放，任务至少执行一次
+        WorkJournal journal = mJournal;
+        mJournal = null;
+        if (journal != null) {
+            journal.close();
         }
         if (DEBUG) Log.d(TAG, "service on Destroy!");
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(fd, writer, args);
+        WorkMetrics metrics = mMetrics;
+        if (metrics != null) {
+            writer.println("WorkMetrics:");
+            metrics.snapshot().dump(writer, "  ");
+        }
+        if (mCompatWorkEnqueuer instanceof CompatWorkEnqueuer) {
+            writer.println(((CompatWorkEnqueuer) mCompatWorkEnqueuer).getWakeLockStats());
+        }
+        writer.println(mCompatWorkEnqueuer.mDeadLetters);
+    }
+
     /**
      * 在子类中调用这个方法，去排队的你的任务.这个将在androidO以下直接起一个Service；或者在androidO以上当做一个Job排队任务.
      * 不管哪种情况，都会有wakelock帮你持有，来确保工作运行。任务将排队，最终会在{@link #onHandleWork(Intent)}出现.
@@ -301,7 +1011,7 @@ public abstract class BelowOJobIntentService extends Service {
      * @param jobId 一个单独用于调度的jobID; 同一个类所有的任务都必须是相同的
      * @param work 任务就是一个Intent，用于排队用的.
      */
-    public static void enqueueWork(@NonNull Context context, @NonNull Class cls, int jobId,
+    public static void enqueueWork(@NonNull Context context, @NonNull Class<?> cls, int jobId,
                                    @NonNull Intent work) {
         enqueueWork(context, new ComponentName(context, cls), jobId, work);
     }
@@ -311,11 +1021,252 @@ public abstract class BelowOJobIntentService extends Service {
      */
     public static void enqueueWork(@NonNull Context context, @NonNull ComponentName component,
                                    int jobId, @NonNull Intent work) {
-        synchronized (sLock) {
-            WorkEnqueuer we = getWorkEnqueuer(context, component, true, jobId);
-            we.ensureJobId(jobId);
-            we.enqueueWork(work);
+        // 不持有任何锁去做startService/JobScheduler.enqueue这样的IPC，enqueuer自己是线程安全的。
+        WorkEnqueuer we = getWorkEnqueuer(context, component, true, jobId);
+        we.ensureJobId(jobId);
+        we.enqueueBounded(work, false, true);
+    }
+
+    /**
+     * 延时delayMillis以后再排队。定时器在这个进程里面，不会因为等待而启动服务或者持有wakelock；
+     * 同一时刻到期的任务会一次性批量排队，服务只被启动一次。
+     *
+     * 定时器按照System.nanoTime计时，设备深度休眠的时候不会走，进程被杀以后还没到期的任务也就没有了；
+     * 需要跨过休眠或者进程死亡的话请用AlarmManager。
+     *
+     * @return 用{@link ScheduledFuture#cancel(boolean)}取消还没到期的任务
+     */
+    @NonNull
+    public static ScheduledFuture<?> enqueueWorkDelayed(@NonNull Context context, @NonNull Class<?> cls, int jobId,
+                                                        @NonNull Intent work, long delayMillis) {
+        return enqueueWorkDelayed(context, new ComponentName(context, cls), jobId, work, delayMillis);
+    }
+
+    /**
+     * 就像 {@link #enqueueWorkDelayed(Context, Class, int, Intent, long)}, 但是提供了ComponentName替代class。
+     */
+    @NonNull
+    public static ScheduledFuture<?> enqueueWorkDelayed(@NonNull Context context, @NonNull ComponentName component,
+                                                        int jobId, @NonNull Intent work, long delayMillis) {
+        return WorkEngine.getTimer().schedule(newDueTask(context, component, jobId, work),
+                delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 周期性地排队，第一次在initialDelayMillis以后，之后每periodMillis一次（fixed rate）。限制同
+     * {@link #enqueueWorkDelayed(Context, Class, int, Intent, long)}。
+     *
+     * @return 用{@link ScheduledFuture#cancel(boolean)}停止
+     */
+    @NonNull
+    public static ScheduledFuture<?> enqueueWorkPeriodic(@NonNull Context context, @NonNull Class<?> cls, int jobId,
+                                                         @NonNull Intent work, long initialDelayMillis,
+                                                         long periodMillis) {
+        return enqueueWorkPeriodic(context, new ComponentName(context, cls), jobId, work,
+                initialDelayMillis, periodMillis);
+    }
+
+    /**
+     * 就像 {@link #enqueueWorkPeriodic(Context, Class, int, Intent, long, long)}, 但是提供了ComponentName替代class。
+     */
+    @NonNull
+    public static ScheduledFuture<?> enqueueWorkPeriodic(@NonNull Context context, @NonNull ComponentName component,
+                                                         int jobId, @NonNull Intent work, long initialDelayMillis,
+                                                         long periodMillis) {
+        return WorkEngine.getTimer().scheduleAtFixedRate(newDueTask(context, component, jobId, work),
+                initialDelayMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static Runnable newDueTask(Context context, ComponentName component, int jobId, Intent work) {
+        final WorkEnqueuer we = getWorkEnqueuer(context, component, true, jobId);
+        we.ensureJobId(jobId);
+        // 复制一份，调用方之后修改work不影响；排队的时候enqueuer还会再复制，所以周期任务可以一直用这一份
+        final Intent due = new Intent(work);
+        return new Runnable() {
+            @Override
+            public void run() {
+                we.enqueueDue(due);
+            }
+        };
+    }
+
+    /**
+     * 不会阻塞的{@link #enqueueWork(Context, Class, int, Intent)}，返回排队的结果。
+     * 设置了{@link WorkCapacity#OVERFLOW_BLOCK}的话，满了直接拒绝而不是等待。
+     *
+     * @return WorkCapacity.ENQUEUE_*
+     */
+    public static int tryEnqueueWork(@NonNull Context context, @NonNull Class<?> cls, int jobId,
+                                     @NonNull Intent work) {
+        return tryEnqueueWork(context, new ComponentName(context, cls), jobId, work);
+    }
+
+    /**
+     * 就像 {@link #tryEnqueueWork(Context, Class, int, Intent)}, 但是提供了ComponentName替代class。
+     */
+    public static int tryEnqueueWork(@NonNull Context context, @NonNull ComponentName component,
+                                     int jobId, @NonNull Intent work) {
+        WorkEnqueuer we = getWorkEnqueuer(context, component, true, jobId);
+        we.ensureJobId(jobId);
+        return we.enqueueBounded(work, false, false);
+    }
+
+    /**
+     * 限制这个服务最多有多少个已经排队、还没完成的任务，满了以后按照overflowPolicy处理，见{@link WorkCapacity}。
+     * 请在第一次排队之前调用，服务必须和调用方在同一个进程。
+     *
+     * @param overflowPolicy WorkCapacity.OVERFLOW_*
+     * @param blockTimeoutMillis {@link WorkCapacity#OVERFLOW_BLOCK}最多等多久
+     * @param coalescer {@link WorkCapacity#OVERFLOW_COALESCE}用它算key，应该和服务的合并策略一致；其他策略传null
+     * @return 用来查看排队、拒绝和丢掉的数量
+     */
+    @NonNull
+    public static WorkCapacity setWorkCapacity(@NonNull Context context, @NonNull Class<?> cls, int jobId,
+                                               int capacity, int overflowPolicy, long blockTimeoutMillis,
+                                               @Nullable WorkCoalescer coalescer) {
+        WorkCapacity workCapacity = new WorkCapacity(capacity, overflowPolicy, blockTimeoutMillis);
+        WorkEnqueuer we = getWorkEnqueuer(context, new ComponentName(context, cls), true, jobId);
+        we.ensureJobId(jobId);
+        we.mCapacityCoalescer = coalescer;
+        we.mCapacity = workCapacity;
+        return workCapacity;
+    }
+
+    /**
+     * 批量版本的{@link #enqueueWork(Context, Class, int, Intent)}，一次性排队一批任务。
+     * enqueuer的查找和jobId的检查只做一次，适合一次性产生大量任务的场景。
+     *
+     * @param works 按顺序排队的任务
+     * @return 被接受的任务数量
+     */
+    public static int enqueueWork(@NonNull Context context, @NonNull Class<?> cls, int jobId,
+                                  @NonNull List<Intent> works) {
+        return enqueueWork(context, new ComponentName(context, cls), jobId, works);
+    }
+
+    /**
+     * 就像 {@link #enqueueWork(Context, Class, int, List)}, 但是提供了ComponentName替代class。
+     */
+    public static int enqueueWork(@NonNull Context context, @NonNull ComponentName component,
+                                  int jobId, @NonNull List<Intent> works) {
+        if (works.isEmpty()) {
+            return 0;
+        }
+        WorkEnqueuer we = getWorkEnqueuer(context, component, true, jobId);
+        we.ensureJobId(jobId);
+        if (we.mCapacity != null) {
+            // 有容量限制的时候逐个排队，每个都要占位置
+            int accepted = 0;
+            for (Intent work : works) {
+                int result = we.enqueueBounded(work, false, true);
+                if (result != WorkCapacity.ENQUEUE_REJECTED && result != WorkCapacity.ENQUEUE_FAILED) {
+                    accepted++;
+                }
+            }
+            return accepted;
+        }
+        return we.enqueueWork(works);
+    }
+
+    /**
+     * 带类型的版本：work由codec编码成一个紧凑的byte[]排队，不用复制也不用Parcel一大堆extras。
+     * 在{@link #onHandleWork(Intent)}里面用{@link WorkPayload#decode(Intent, WorkPayload.Codec)}取出来，解码发生在worker线程。
+     */
+    public static <T> void enqueueWork(@NonNull Context context, @NonNull Class<?> cls, int jobId,
+                                       @NonNull WorkPayload.Codec<T> codec, @NonNull T work) {
+        enqueueWork(context, new ComponentName(context, cls), jobId, codec, work);
+    }
+
+    /**
+     * 就像 {@link #enqueueWork(Context, Class, int, WorkPayload.Codec, Object)}, 但是提供了ComponentName替代class。
+     */
+    public static <T> void enqueueWork(@NonNull Context context, @NonNull ComponentName component,
+                                       int jobId, @NonNull WorkPayload.Codec<T> codec, @NonNull T work) {
+        WorkEnqueuer we = getWorkEnqueuer(context, component, true, jobId);
+        we.ensureJobId(jobId);
+        we.enqueueBounded(WorkPayload.encode(codec, work), true, true);
+    }
+
+    /**
+     * 就像 {@link #enqueueWork(Context, Class, int, WorkPayload.Codec, Object)}，但是排队的Intent是base的副本，
+     * 可以带上{@link #EXTRA_WORK_TAG}、{@link #EXTRA_SERIAL_KEY}这些extra，也会交给合并策略。base本身不会被修改。
+     */
+    public static <T> void enqueueWork(@NonNull Context context, @NonNull Class<?> cls, int jobId,
+                                       @NonNull Intent base, @NonNull WorkPayload.Codec<T> codec,
+                                       @NonNull T work) {
+        enqueueWork(context, new ComponentName(context, cls), jobId, base, codec, work);
+    }
+
+    /**
+     * 就像 {@link #enqueueWork(Context, Class, int, Intent, WorkPayload.Codec, Object)}, 但是提供了ComponentName替代class。
+     */
+    public static <T> void enqueueWork(@NonNull Context context, @NonNull ComponentName component,
+                                       int jobId, @NonNull Intent base, @NonNull WorkPayload.Codec<T> codec,
+                                       @NonNull T work) {
+        WorkEnqueuer we = getWorkEnqueuer(context, component, true, jobId);
+        we.ensureJobId(jobId);
+        we.enqueueBounded(WorkPayload.encode(base, codec, work), true, true);
+    }
+
+    /**
+     * 取消这个服务所有{@link #EXTRA_WORK_TAG}是tag的任务：还在排队的出列的时候直接完成，不再执行；
+     * 正在执行的可以通过{@link #isWorkCancelled()}知道，自己决定是不是提前返回。
+     *
+     * 按排队的先后判断：调用之前排的任务都会被取消，包括还没出列的、按key排在后面等着的；
+     * 之后再排的同tag任务照常执行，不管它的优先级多高。被合并进别的任务的跟着那个任务走。
+     * 已经到了服务队列里的马上被移除并完成它们的startId，不用等worker出列；startService还在路上的出列的时候丢掉。
+     * 取消只对这个进程排的、还没走完的任务有效：这个tag的任务都走完以后记录就清掉了，见{@link WorkTags}。
+     *
+     * @return 这个进程里排队、还没出列的被取消的任务数
+     */
+    public static int cancelWork(@NonNull Context context, @NonNull Class<?> cls, @NonNull String tag) {
+        return cancelWork(new ComponentName(context, cls), tag);
+    }
+
+    /**
+     * 就像 {@link #cancelWork(Context, Class, String)}, 但是提供了ComponentName替代class。
+     */
+    public static int cancelWork(@NonNull ComponentName component, @NonNull String tag) {
+        WorkEnqueuer we = sClassWorkEnqueuer.get(component);
+        if (we == null) {
+            return 0;
+        }
+        int cancelled = we.mTags.cancel(tag);
+        BelowOJobIntentService service = we.mService;
+        if (service != null) {
+            service.removeCancelledWork(tag);
+        }
+        return cancelled;
+    }
+
+    /**
+     * 当前任务的tag在它开始以后有没有被{@link #cancelWork(Context, Class, String)}取消，只能在{@link #onHandleWork(Intent)}里面调用。
+     * 被取消的任务提前返回就可以了，之后照常完成。
+     */
+    protected final boolean isWorkCancelled() {
+        CompatWorkItem work = mCurrentWork.get();
+        if (work == null) {
+            throw new IllegalStateException("Only available inside onHandleWork");
         }
+        return work.mTag != null && mCompatWorkEnqueuer.mTags.isCancelled(work.mTag, work.mTagSeq);
+    }
+
+    /**
+     * @return 这个服务的死信；这个进程里还没有排队过任务的话返回null
+     */
+    @Nullable
+    public static WorkDeadLetters getDeadLetters(@NonNull ComponentName component) {
+        WorkEnqueuer we = sClassWorkEnqueuer.get(component);
+        return we != null ? we.mDeadLetters : null;
+    }
+
+    /**
+     * @return 这个服务的wakelock持有情况；这个进程里还没有排队过任务的话返回null
+     */
+    @Nullable
+    public static WakeLockStats getWakeLockStats(@NonNull ComponentName component) {
+        WorkEnqueuer we = sClassWorkEnqueuer.get(component);
+        return we instanceof CompatWorkEnqueuer ? ((CompatWorkEnqueuer) we).getWakeLockStats() : null;
     }
 
     static WorkEnqueuer getWorkEnqueuer(Context context, ComponentName cn, boolean hasJobId,
@@ -323,7 +1274,11 @@ public abstract class BelowOJobIntentService extends Service {
         WorkEnqueuer we = sClassWorkEnqueuer.get(cn);
         if (we == null) {
             we = new CompatWorkEnqueuer(context, cn);
-            sClassWorkEnqueuer.put(cn, we);
+            // 两个线程同时第一次创建的时候，以先放进去的为准。
+            WorkEnqueuer prev = sClassWorkEnqueuer.putIfAbsent(cn, we);
+            if (prev != null) {
+                we = prev;
+            }
         }
         return we;
     }
@@ -337,45 +1292,337 @@ public abstract class BelowOJobIntentService extends Service {
      * 但是在androidO以上，需要注意，因为任务被当做Job来运行，执行是有最大限制时间的。这样的话，
      * 某个任务或者整串任务超过了限制，服务就会被停止掉（即使你正在工作），然后，过会儿重启最后一个没有完成的任务。
      *
+     * 抛出RuntimeException不会影响后面的任务：这个任务按照{@link #setRetryPolicy(WorkRetryPolicy)}重试，
+     * 用完了次数以后放进死信，见{@link #onWorkFailed(Intent, Throwable, int)}。
+     *
      * @param intent Intent用于描述你的任务
      */
     protected abstract void onHandleWork(@NonNull Intent intent);
 
-    void ensureProcessorRunningLocked(boolean reportStarted) {
-        if (mCurProcessor == null) {
-            mCurProcessor = new CommandProcessor();
-            if (mCompatWorkEnqueuer != null && reportStarted) {
-                mCompatWorkEnqueuer.serviceProcessingStarted();
+    /**
+     * 任务用完了重试次数（没有设置重试策略的话是第一次失败）还是失败，已经放进了死信，见{@link #getDeadLetters(ComponentName)}。
+     * 在worker线程调用，默认什么也不做。
+     *
+     * @param attempts 一共执行了几次
+     */
+    protected void onWorkFailed(@NonNull Intent intent, @NonNull Throwable error, int attempts) {
+    }
+
+    /**
+     * 设置失败以后的重试策略，null表示不重试（默认），失败的任务直接放进死信。
+     *
+     * 重试的任务由进程里的定时器重新排队，等待期间不占worker也不持有wakelock；
+     * 但是进程在等待期间被杀的话，这个任务就没有了（打开了磁盘日志也一样，失败的任务已经从日志里完成了）。
+     */
+    public void setRetryPolicy(@Nullable WorkRetryPolicy policy) {
+        mRetryPolicy = policy;
+    }
+
+    /**
+     * onHandleWork抛了异常：还有次数的话过一会儿重新排队，否则放进死信。
+     */
+    private void retryOrDeadLetter(Intent intent, RuntimeException error) {
+        int attempts = intent.getIntExtra(WorkRetryPolicy.EXTRA_ATTEMPT, 0) + 1;
+        WorkRetryPolicy policy = mRetryPolicy;
+        if (policy != null && policy.shouldRetry(attempts)) {
+            long delay = policy.getDelayMillis(attempts);
+            Log.w(TAG, "Work failed " + attempts + " times, retrying in " + delay + "ms: " + intent, error);
+            WorkTrace.trace(TAG, WorkTrace.EVENT_RETRY, attempts, delay, intent);
+            mCompatWorkEnqueuer.enqueueRetry(new Intent(intent).putExtra(WorkRetryPolicy.EXTRA_ATTEMPT, attempts),
+                    error, attempts, delay);
+            return;
+        }
+        Log.e(TAG, "Work failed " + attempts + " times, giving up: " + intent, error);
+        WorkTrace.trace(TAG, WorkTrace.EVENT_DEAD_LETTER, attempts, intent);
+        mCompatWorkEnqueuer.mDeadLetters.add(intent, error, attempts);
+        onWorkFailed(intent, error, attempts);
+    }
+
+    /**
+     * 打开并发模式：最多同时有workers个{@link #onHandleWork(Intent)}在跑，
+     * 它们跑在这个服务专属的线程池上，而不是{@link AsyncTask#THREAD_POOL_EXECUTOR}。
+     * 默认是1，也就是原来的顺序执行，一个慢任务会卡住后面所有的任务。
+     *
+     * 开了并发以后任务的完成顺序不再和startId的顺序一致，stopSelf只会在前面的任务都完成以后才调用。
+     * 一般在{@link #onCreate()}里面调用；之后再改的话线程池会跟着变大或者变小。
+     *
+     * @param workers 并发的worker数量，必须大于0
+     */
+    public void setMaxWorkers(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be > 0, but " + workers);
+        }
+        if (mWorkerExecutor != null) {
+            // 先把线程加上再放开worker的数量，多出来的worker不会排在旧的线程后面
+            WorkEngine.resizePool(mWorkerExecutor, workers);
+        } else if (workers > 1 && !mSharedExecutor) {
+            mWorkerExecutor = WorkEngine.newWorkerPool(getClass().getSimpleName() + "-worker", workers);
+            mEngine.setExecutor(mWorkerExecutor);
+        }
+        mEngine.setMaxWorkers(workers);
+    }
+
+    /**
+     * 让worker跑在executor上，比如{@link WorkExecutors#shared()}，几个服务共用一组线程，而不是
+     * {@link AsyncTask#THREAD_POOL_EXECUTOR}或者{@link #setMaxWorkers(int)}建的专属线程池。
+     * maxWorkers仍然有效，就是这个服务在executor上最多同时占用的线程数。请在{@link #onCreate()}里面调用。
+     */
+    public void setWorkExecutor(@NonNull Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor must not be null");
+        }
+        mSharedExecutor = true;
+        if (mWorkerExecutor != null) {
+            mWorkerExecutor.shutdown();
+            mWorkerExecutor = null;
+        }
+        mEngine.setExecutor(executor);
+    }
+
+    /**
+     * 打开优先级通道。lane 0优先级最高，权重决定出列时各通道被优先查看的比例，见{@link WorkQueue}。
+     * 请在{@link #onCreate()}里面、还没有任务的时候调用。
+     *
+     * @param weights 每条通道的权重，长度就是通道数量
+     */
+    public void setPriorityWeights(@NonNull int... weights) {
+        if (!mCompatQueue.isEmpty()) {
+            throw new IllegalStateException("Can't change lanes while work is queued");
+        }
+        mCompatQueue = new WorkQueue<>(weights.clone());
+    }
+
+    /**
+     * 决定一个任务进入哪条通道，0优先级最高，超出范围的会被截到最近的通道。
+     * 默认读取{@link #EXTRA_WORK_PRIORITY}；没有这个extra的任务进入优先级最低的通道，
+     * 这样只有明确标记过的任务才会被提前。
+     */
+    protected int getWorkPriority(@NonNull Intent intent) {
+        return intent.getIntExtra(EXTRA_WORK_PRIORITY, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 按key串行：返回非null的任务，key相同的按出列的顺序一个一个执行，key不同的照常在{@link #setMaxWorkers(int)}个worker上并行。
+     * 比如同一个账号的任务必须有序，不同账号之间不需要。只有一个worker的时候所有任务本来就是顺序的，key不起作用。
+     *
+     * 默认读取{@link #EXTRA_SERIAL_KEY}，没有这个extra的任务不受限制。同一个key的任务请放在同一条优先级通道里，
+     * 否则高优先级的会先出列；重试的任务会排到这个key的最后。
+     */
+    @Nullable
+    protected Object getSerialKey(@NonNull Intent intent) {
+        return intent.getStringExtra(EXTRA_SERIAL_KEY);
+    }
+
+    /**
+     * 设置合并策略，null表示不合并（默认）。只影响之后到来的任务。
+     */
+    public void setWorkCoalescer(@Nullable WorkCoalescer coalescer) {
+        mCoalescer = coalescer;
+    }
+
+    /**
+     * 打开任务统计，之后到来的任务都会被记录。可以重复调用，返回的是同一个对象。
+     * 打开以后enqueueWork会给任务打上排队的时间，见{@link WorkMetrics#EXTRA_ENQUEUE_TIME}。
+     */
+    @NonNull
+    public synchronized WorkMetrics enableWorkMetrics() {
+        if (mMetrics == null) {
+            mMetrics = new WorkMetrics();
+        }
+        return mMetrics;
+    }
+
+    /**
+     * @return 统计，没有打开的时候返回null
+     */
+    @Nullable
+    public WorkMetrics getWorkMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * 打开磁盘日志：排队的任务在完成之前都会记在一个mmap的文件里，进程被杀以后，下一次服务创建的时候重新排队执行，
+     * 而不是像START_REDELIVER_INTENT那样只能找回一部分。任务至少执行一次，被杀的时候正在执行的任务会再执行一遍。
+     *
+     * 打开以后服务以START_STICKY运行，系统会在进程被杀以后重启它。
+     * 请在{@link #onCreate()}里面、super.onCreate()之后调用；任务的Intent必须能写进Parcel（不能带Binder和文件描述符）。
+     */
+    public void enableWorkJournal() {
+        if (mJournal != null) {
+            return;
+        }
+        File file = new File(new File(getFilesDir(), "work-journal"), getClass().getName());
+        WorkJournal journal;
+        try {
+            journal = WorkJournal.open(file);
+        } catch (IOException e) {
+            Log.w(TAG, "Can't open work journal " + file, e);
+            return;
+        }
+        mJournal = journal;
+        // 上一个进程留下来的任务，通过startService重新投递给自己，这样每个任务都有自己的startId。
+        ComponentName cn = new ComponentName(this, getClass());
+        for (long id : journal.liveIds()) {
+            Intent work;
+            try {
+                work = unmarshallIntent(journal.read(id));
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Dropping unreadable journal record #" + id, e);
+                removeFromJournal(id);
+                continue;
             }
-            if (DEBUG) Log.d(TAG, "Starting processor: " + mCurProcessor);
-            mCurProcessor.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+            work.putExtra(EXTRA_JOURNAL_ID, id);
+            work.setComponent(cn);
+            startService(work);
         }
     }
 
-    void processorFinished() {
-        synchronized (mCompatQueue) {
-            mCurProcessor = null;
-            // AsyncTask已经结束，但是此时我们却有排队任务。
-            // 因此，我们需要去重启新的流程来执行。如果没有更多的任务，
-            // 要么这个服务已经在stop的过程中（因为我们调用了stopSelf在最后一个任务开始的时候）了，
-            // 要么，有人又调用了startService一个新的任务又快来了，不管哪种情况，我们都期望直接结束掉等待，
-            //即destroyed或者起一个新的onStartCommand，这样就能触发一个新的流程。
-            if (mCompatQueue.size() > 0) {
-                ensureProcessorRunningLocked(false);
-            } else if (!mDestroyed) {
-                mCompatWorkEnqueuer.serviceProcessingFinished();
+    /**
+     * @return 日志里的id；写不进去的话返回0，这个任务只存在内存里
+     */
+    private long appendToJournal(WorkJournal journal, Intent intent) {
+        try {
+            return journal.append(marshallIntent(intent));
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Can't journal work: " + intent, e);
+            return 0;
+        }
+    }
+
+    void removeFromJournal(long journalId) {
+        WorkJournal journal = mJournal;
+        if (journal == null || journalId == 0) {
+            return;
+        }
+        journal.remove(journalId);
+    }
+
+    static byte[] marshallIntent(Intent intent) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            intent.writeToParcel(parcel, 0);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    Intent unmarshallIntent(byte[] bytes) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(bytes, 0, bytes.length);
+            parcel.setDataPosition(0);
+            Intent intent = Intent.CREATOR.createFromParcel(parcel);
+            intent.setExtrasClassLoader(getClassLoader());
+            return intent;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private void indexTag(CompatWorkItem item) {
+        if (item.mTag == null) {
+            return;
+        }
+        synchronized (mQueuedByTag) {
+            HashSet<CompatWorkItem> items = mQueuedByTag.get(item.mTag);
+            if (items == null) {
+                items = new HashSet<>();
+                mQueuedByTag.put(item.mTag, items);
+            }
+            items.add(item);
+        }
+    }
+
+    private void unindexTag(CompatWorkItem item) {
+        if (item.mTag == null) {
+            return;
+        }
+        synchronized (mQueuedByTag) {
+            HashSet<CompatWorkItem> items = mQueuedByTag.get(item.mTag);
+            if (items != null && items.remove(item) && items.isEmpty()) {
+                mQueuedByTag.remove(item.mTag);
+            }
+        }
+    }
+
+    /**
+     * cancelWork以后马上把队列里被取消的任务拿出来完成，不用等worker出列，stopSelf也不用等它们。
+     * 只看这个tag的任务，和队列的长度无关。
+     */
+    void removeCancelledWork(String tag) {
+        WorkTags tags = mCompatWorkEnqueuer.mTags;
+        ArrayList<CompatWorkItem> cancelled = null;
+        synchronized (mQueuedByTag) {
+            HashSet<CompatWorkItem> items = mQueuedByTag.get(tag);
+            if (items == null) {
+                return;
+            }
+            for (Iterator<CompatWorkItem> it = items.iterator(); it.hasNext(); ) {
+                CompatWorkItem item = it.next();
+                // 取消以后才到的同tag任务照常执行
+                if (tags.isCancelled(tag, item.mTagSeq)) {
+                    it.remove();
+                    if (cancelled == null) {
+                        cancelled = new ArrayList<>();
+                    }
+                    cancelled.add(item);
+                }
+            }
+            if (items.isEmpty()) {
+                mQueuedByTag.remove(tag);
+            }
+        }
+        if (cancelled == null) {
+            return;
+        }
+        WorkQueue<CompatWorkItem> queue = mCompatQueue;
+        for (int i = 0; i < cancelled.size(); i++) {
+            CompatWorkItem item = cancelled.get(i);
+            // 被worker抢先取走的话由worker丢掉
+            if (queue.remove(item)) {
+                mCompatWorkEnqueuer.workDequeued(item);
+                tags.started(tag, item.mTagSeq);
+                discard(item, WorkTrace.EVENT_CANCEL);
             }
         }
     }
 
     GenericWorkItem dequeueWork() {
-        synchronized (mCompatQueue) {
-            if (mCompatQueue.size() > 0) {
-                return mCompatQueue.remove(0);
-            } else {
-                return null;
+        CompatWorkItem item;
+        WorkSerializer.Slot<CompatWorkItem> ready;
+        while ((ready = mSerializer.pollReady()) != null) {
+            item = ready.mRunning;
+            item.mSerialSlot = ready;
+            if (item.mTag == null || !mCompatWorkEnqueuer.mTags.isCancelled(item.mTag, item.mTagSeq)) {
+                return item;
             }
+            // 排在同一个key后面等着的时候被取消了；完成它会放出这个key的下一个任务
+            discard(item, WorkTrace.EVENT_CANCEL);
         }
+        while ((item = mCompatQueue.poll()) != null) {
+            mCompatWorkEnqueuer.workDequeued(item);
+            if (item.mTag != null) {
+                unindexTag(item);
+                item.mTagStarted = mCompatWorkEnqueuer.mTags.started(item.mTag, item.mTagSeq);
+                if (!item.mTagStarted) {
+                    // 取消的时候还没到服务，或者刚好和cancelWork同时
+                    discard(item, WorkTrace.EVENT_CANCEL);
+                    continue;
+                }
+            }
+            Object key = getSerialKey(item.mIntent);
+            if (key == null) {
+                return item;
+            }
+            WorkSerializer.Slot<CompatWorkItem> slot = mSerializer.start(key, item);
+            if (slot != null) {
+                item.mSerialSlot = slot;
+                return item;
+            }
+            // 同一个key前面还有任务在执行，排在它后面，等它完成的时候再取；
+            // 它可能已经被另一个worker取走了，不能再碰它
+        }
+        return null;
     }
 }
-
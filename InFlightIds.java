@@ -0,0 +1,98 @@
+package com.allan.services;
+
+/**
+ * 记录还没有完成的startId，决定什么时候可以stopSelf：只有所有收到的startId都完成了才可以。
+ *
+ * 内部是开放寻址的int集合，加入和删除都不需要装箱也不分配对象。
+ * startId从1开始，所以0可以当做空槽。
+ */
+final class InFlightIds {
+    private static final int EMPTY = 0;
+    private static final int REMOVED = -1;
+
+    private int[] mTable = new int[8];
+    private int mSize;
+    private int mUsed; // mSize加上REMOVED的槽位
+    private int mLastStartId;
+
+    synchronized void started(int startId) {
+        add(startId);
+        mLastStartId = startId;
+    }
+
+    /**
+     * @return 可以交给stopSelf的startId，也就是最后收到的那个；-1表示还有没完成的
+     * @throws IllegalStateException 重复完成或者根本没有收到过这个startId
+     */
+    synchronized int finished(int startId) {
+        if (!remove(startId)) {
+            throw new IllegalStateException("impossible when stopWrap! #" + startId + " is not running");
+        }
+        //用最后收到的startId，如果系统那边又投递了新的startCommand还没到达，这次stop不会生效
+        return mSize == 0 ? mLastStartId : -1;
+    }
+
+    synchronized boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    private void add(int id) {
+        if ((mUsed + 1) * 2 > mTable.length) {
+            // 有效元素多就扩容，否则只是清理掉REMOVED
+            rehash(mSize * 4 > mTable.length ? mTable.length * 2 : mTable.length);
+        }
+        int mask = mTable.length - 1;
+        int index = hash(id) & mask;
+        int removed = -1;
+        while (mTable[index] != EMPTY) {
+            if (mTable[index] == id) {
+                return;
+            }
+            if (mTable[index] == REMOVED && removed < 0) {
+                removed = index;
+            }
+            index = (index + 1) & mask;
+        }
+        if (removed >= 0) {
+            mTable[removed] = id;
+        } else {
+            mTable[index] = id;
+            mUsed++;
+        }
+        mSize++;
+    }
+
+    /**
+     * @return id之前是否在集合里面
+     */
+    private boolean remove(int id) {
+        int mask = mTable.length - 1;
+        int index = hash(id) & mask;
+        while (mTable[index] != EMPTY) {
+            if (mTable[index] == id) {
+                mTable[index] = REMOVED;
+                mSize--;
+                return true;
+            }
+            index = (index + 1) & mask;
+        }
+        return false;
+    }
+
+    private void rehash(int capacity) {
+        int[] old = mTable;
+        mTable = new int[capacity];
+        mSize = 0;
+        mUsed = 0;
+        for (int id : old) {
+            if (id != EMPTY && id != REMOVED) {
+                add(id);
+            }
+        }
+    }
+
+    private static int hash(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -9,7 +9,6 @@ import android.app.job.JobWorkItem;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.os.IBinder;
 import android.os.PowerManager;
@@ -19,8 +18,20 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 本类用于处理排队的任务；当跑在O（8.0）以上的机器，你的工作将被当做一个job分发JobScheduler.enqueue.
@@ -55,13 +66,71 @@ public abstract class JobIntentXService extends Service {
 
     static final boolean DEBUG = false;
 
+    /**
+     * String类型的extra，按key串行执行的key，见{@link #getSerialKey(Intent)}
+     */
+    public static final String EXTRA_SERIAL_KEY = "com.allan.services.extra.SERIAL_KEY";
+
+    /**
+     * String类型的extra，任务的tag，用{@link #cancelWork(Context, Class, String)}取消同一个tag的任务
+     */
+    public static final String EXTRA_WORK_TAG = "com.allan.services.extra.WORK_TAG";
+
     CompatJobEngine mJobImpl;
-    CommandProcessor mCurProcessor;
+    /**
+     * 常驻的单线程：队列取空以后线程停在线程池的队列上等待，下一个job到来时直接唤醒，不需要每一轮再new一个AsyncTask。
+     * 第一次真正用到的时候才建，换成了别的executor的服务不会多出一个闲着的线程。由mProcessorLock保护。
+     */
+    ExecutorService mProcessorExecutor;
+    private final Object mProcessorLock = new Object();
+    final WorkEngine<GenericWorkItem> mEngine = new WorkEngine<>(new WorkEngine.Source<GenericWorkItem>() {
+        @Override
+        public GenericWorkItem poll() {
+            return dequeueWork();
+        }
+    }, new EngineCallback(), new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            getProcessorExecutor().execute(command);
+        }
+    });
+    /**
+     * {@link #setMaxWorkers(int)}大于1的时候建的专属线程池
+     */
+    ThreadPoolExecutor mWorkerExecutor;
+    // 设置过setWorkExecutor以后，setMaxWorkers不再建自己的线程池
+    boolean mSharedExecutor;
+    /**
+     * 按key串行执行，见{@link #getSerialKey(Intent)}
+     */
+    final WorkSerializer<GenericWorkItem> mSerializer = new WorkSerializer<>();
     boolean mInterruptIfStopped = false;
-    boolean mStopped = false;
+    volatile boolean mStopped = false;
+    volatile WorkCoalescer mCoalescer;
+    /**
+     * 任务统计，null表示没有打开，见{@link #enableWorkMetrics()}
+     */
+    volatile WorkMetrics mMetrics;
+    /**
+     * 失败以后的重试策略，null表示不重试，见{@link #setRetryPolicy(WorkRetryPolicy)}
+     */
+    volatile WorkRetryPolicy mRetryPolicy;
+    /**
+     * 当前job的id，重新排队失败的任务的时候用
+     */
+    volatile int mJobId;
+    WorkCheckpoints mCheckpoints;
+    ComponentName mComponentName;
+    /**
+     * 每个处理线程正在onHandleWork里面处理的任务，给{@link #getCheckpoint()}和{@link #setCheckpoint(byte[])}用；
+     * job被停止的时候要保存所有正在处理的任务的进度
+     */
+    final ConcurrentHashMap<Thread, GenericWorkItem> mRunningWork = new ConcurrentHashMap<>();
 
-    static final Object sLock = new Object();
-    static final HashMap<ComponentName, WorkEnqueuer> sClassWorkEnqueuer = new HashMap<>();
+    /**
+     * 每个ComponentName一个WorkEnqueuer。不同的服务类可以并行enqueueWork，不再共用一把全局锁去等别人的Binder调用。
+     */
+    static final ConcurrentHashMap<ComponentName, WorkEnqueuer> sClassWorkEnqueuer = new ConcurrentHashMap<>();
 
     /**
      * 抽象目标服务，用于传递任务；并且实现怎么样去传递
@@ -72,11 +141,19 @@ public abstract class JobIntentXService extends Service {
         boolean mHasJobId;
         int mJobId;
 
+        // 容量限制，null表示不限制（默认），见setWorkCapacity
+        volatile WorkCapacity mCapacity;
+        volatile WorkCoalescer mCapacityCoalescer;
+        // 用完了重试次数的任务
+        final WorkDeadLetters mDeadLetters = new WorkDeadLetters(WorkDeadLetters.DEFAULT_CAPACITY);
+        // 带tag的任务的计数，见cancelWork
+        final WorkTags mTags = new WorkTags();
+
         WorkEnqueuer(Context context, ComponentName cn) {
             mComponentName = cn;
         }
 
-        void ensureJobId(int jobId) {
+        synchronized void ensureJobId(int jobId) {
             if (!mHasJobId) {
                 mHasJobId = true;
                 mJobId = jobId;
@@ -86,7 +163,114 @@ public abstract class JobIntentXService extends Service {
             }
         }
 
-        abstract void enqueueWork(Intent work);
+        /**
+         * @return 是否被系统接受了
+         */
+        abstract boolean enqueueWork(Intent work);
+
+        /**
+         * work是enqueueWork自己新建的，调用方拿不到它，所以可以直接修改而不用先复制一份。
+         */
+        boolean enqueueOwnedWork(Intent work) {
+            return enqueueWork(work);
+        }
+
+        /**
+         * 按照容量限制排队，没有限制的时候直接排队。
+         *
+         * @param mayBlock false的话不会因为OVERFLOW_BLOCK等待
+         * @return WorkCapacity.ENQUEUE_*
+         */
+        int enqueueBounded(Intent work, boolean owned, boolean mayBlock) {
+            WorkCapacity capacity = mCapacity;
+            if (capacity == null) {
+                boolean accepted = owned ? enqueueOwnedWork(work) : enqueueWork(work);
+                return accepted ? WorkCapacity.ENQUEUE_ACCEPTED : WorkCapacity.ENQUEUE_FAILED;
+            }
+            Object key = capacityKey(capacity, work);
+            int result = capacity.acquire(key, mayBlock);
+            if (result == WorkCapacity.ENQUEUE_REJECTED) {
+                return result;
+            }
+            if (!(owned ? enqueueOwnedWork(work) : enqueueWork(work))) {
+                capacity.cancel(key, result);
+                return WorkCapacity.ENQUEUE_FAILED;
+            }
+            return result;
+        }
+
+        private Object capacityKey(WorkCapacity capacity, Intent work) {
+            WorkCoalescer coalescer = mCapacityCoalescer;
+            return capacity.needsKey() && coalescer != null ? coalescer.getCoalesceKey(work) : null;
+        }
+
+        /**
+         * 服务完成了一个任务（包括被丢掉的），让出它占的位置
+         */
+        void releaseCapacity(Intent work) {
+            WorkCapacity capacity = mCapacity;
+            if (capacity != null) {
+                capacity.release(capacityKey(capacity, work));
+            }
+        }
+
+        /**
+         * delayMillis以后在定时器线程重新排队一个失败的任务，排不进去的话放进死信。work是新复制的，可以直接修改。
+         */
+        void enqueueRetry(final Intent work, final Throwable error, final int attempts, long delayMillis) {
+            WorkEngine.getTimer().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    // 定时器线程不能等，OVERFLOW_BLOCK满了直接拒绝
+                    int result = enqueueBounded(work, true, false);
+                    if (result == WorkCapacity.ENQUEUE_REJECTED || result == WorkCapacity.ENQUEUE_FAILED) {
+                        Log.w(TAG, "Can't requeue failed work: " + work);
+                        mDeadLetters.add(work, error, attempts);
+                    }
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * 从JobScheduler取出了一个第一次投递的任务，它不能再算作{@link WorkCapacity#OVERFLOW_DROP_OLDEST}可以丢掉的任务了
+         */
+        void workDequeued() {
+            WorkCapacity capacity = mCapacity;
+            if (capacity != null) {
+                capacity.dequeued(1);
+            }
+        }
+
+        /**
+         * @return true表示出列的这个任务应该被丢掉，见{@link WorkCapacity#OVERFLOW_DROP_OLDEST}
+         */
+        boolean takeDrop() {
+            WorkCapacity capacity = mCapacity;
+            return capacity != null && capacity.takeDrop();
+        }
+
+        /**
+         * job连同还没完成的任务一起被放弃了，它们不会再complete，让出它们占的位置
+         */
+        void workAbandoned() {
+            WorkCapacity capacity = mCapacity;
+            if (capacity != null) {
+                capacity.reset();
+            }
+        }
+
+        /**
+         * 批量排队，返回被接受的数量。子类可以覆盖来合并每次排队的额外开销。
+         */
+        int enqueueWork(List<Intent> works) {
+            int accepted = 0;
+            for (Intent work : works) {
+                if (enqueueWork(work)) {
+                    accepted++;
+                }
+            }
+            return accepted;
+        }
 
         public void serviceStartReceived() {
         }
@@ -116,27 +300,180 @@ public abstract class JobIntentXService extends Service {
 
         static final boolean DEBUG = false;
 
+        /**
+         * 合并的窗口：每次出列最多从JobParameters多取这么多个任务来合并
+         */
+        static final int COALESCE_WINDOW = 32;
+
         final JobIntentXService mService;
         final Object mLock = new Object();
         JobParameters mParams;
 
+        // 有合并策略的时候，从JobParameters取出来、合并过、还没交给processor的任务。由mLock保护。
+        final ArrayDeque<WrapperWorkItem> mPendingWork = new ArrayDeque<>();
+        final HashMap<Object, WrapperWorkItem> mPendingByKey = new HashMap<>();
+
         final class WrapperWorkItem implements GenericWorkItem {
             final JobWorkItem mJobWork;
+            // 取出这个任务的那一次job，只能在它上面completeWork
+            final JobParameters mParams;
+            long mEnqueueTime;
+            // 排队时的tag和序号
+            String mTag;
+            long mTagSeq;
+            // WorkTags.started返回了true，完成的时候要finished
+            boolean mTagStarted;
+            // 按key串行的时候，这个任务在WorkSerializer里的位置
+            WorkSerializer.Slot<GenericWorkItem> mSerialSlot;
+            Object mCoalesceKey;
+            Intent mMergedIntent;
+            ArrayList<JobWorkItem> mMergedWork;
+            // 进度，由this保护：处理线程读写，job被停止的时候主线程也会保存它
+            private byte[] mCheckpoint;
+            private boolean mCheckpointLoaded;
+            private boolean mCheckpointDirty;
+            private boolean mCheckpointSaved;
 
-            WrapperWorkItem(JobWorkItem jobWork) {
+            WrapperWorkItem(JobWorkItem jobWork, JobParameters params) {
                 mJobWork = jobWork;
+                mParams = params;
+            }
+
+            /**
+             * 第一次投递的任务不会有进度，只有重新投递的才去读文件。
+             */
+            synchronized byte[] getCheckpoint() {
+                if (!mCheckpointLoaded) {
+                    mCheckpointLoaded = true;
+                    WorkCheckpoints checkpoints = mService.mCheckpoints;
+                    if (mJobWork.getDeliveryCount() > 1) {
+                        try {
+                            mCheckpoint = checkpoints.load(mParams.getJobId(), mJobWork.getWorkId());
+                        } catch (IOException e) {
+                            Log.w(TAG, "Can't load checkpoint of " + mJobWork, e);
+                        }
+                        mCheckpointSaved = mCheckpoint != null;
+                    } else {
+                        // workId在job重新调度以后会重新开始，清掉以前丢弃的任务留下来的进度
+                        checkpoints.delete(mParams.getJobId(), mJobWork.getWorkId());
+                    }
+                }
+                return mCheckpoint;
+            }
+
+            synchronized void setCheckpoint(byte[] token) {
+                if (!mCheckpointLoaded) {
+                    getCheckpoint();
+                }
+                mCheckpoint = token;
+                mCheckpointDirty = true;
+            }
+
+            /**
+             * 把内存里的进度写到磁盘，只在job被停止的时候调用，所以setCheckpoint可以很频繁。会fsync，不能在主线程调用。
+             */
+            synchronized void persistCheckpoint() {
+                if (!mCheckpointDirty) {
+                    return;
+                }
+                mCheckpointDirty = false;
+                WorkCheckpoints checkpoints = mService.mCheckpoints;
+                if (mCheckpoint == null) {
+                    if (mCheckpointSaved) {
+                        checkpoints.delete(mParams.getJobId(), mJobWork.getWorkId());
+                        mCheckpointSaved = false;
+                    }
+                    return;
+                }
+                try {
+                    checkpoints.save(mParams.getJobId(), mJobWork.getWorkId(), mCheckpoint);
+                    mCheckpointSaved = true;
+                } catch (IOException e) {
+                    Log.w(TAG, "Can't save checkpoint of " + mJobWork, e);
+                }
+            }
+
+            /**
+             * @return false表示这个任务的tag已经被取消了
+             */
+            boolean startTag(WorkEnqueuer we) {
+                if (mTag == null) {
+                    return true;
+                }
+                if (mJobWork.getDeliveryCount() > 1) {
+                    // 第一次投递的时候已经出列过了
+                    return !we.mTags.isCancelled(mTag, mTagSeq);
+                }
+                mTagStarted = we.mTags.started(mTag, mTagSeq);
+                return mTagStarted;
+            }
+
+            boolean isTagCancelled() {
+                WorkEnqueuer we = mService.findWorkEnqueuer();
+                return mTag != null && we != null && we.mTags.isCancelled(mTag, mTagSeq);
+            }
+
+            void merge(WorkCoalescer coalescer, JobWorkItem incoming) {
+                mMergedIntent = coalescer.merge(getIntent(), incoming.getIntent());
+                if (mMergedWork == null) {
+                    mMergedWork = new ArrayList<>(2);
+                }
+                mMergedWork.add(incoming);
             }
 
             @Override
             public Intent getIntent() {
-                return mJobWork.getIntent();
+                return mMergedIntent != null ? mMergedIntent : mJobWork.getIntent();
+            }
+
+            @Override
+            public long getEnqueueTime() {
+                return mEnqueueTime;
             }
 
             @Override
             public void complete() {
+                if (mSerialSlot != null && mService.mSerializer.finished(mSerialSlot)) {
+                    // 同一个key排在后面的任务可以执行了
+                    mService.mEngine.signal();
+                }
                 synchronized (mLock) {
-                    if (mParams != null) {
-                        mParams.completeWork(mJobWork);
+                    if (JobServiceEngineImpl.this.mParams != mParams) {
+                        // 取出它的job已经停止了（可能已经开始了新的job），这个任务会被重新投递，保留它的进度。
+                        // 旧的JobWorkItem不能交给新的JobParameters
+                        return;
+                    }
+                    mParams.completeWork(mJobWork);
+                    if (mMergedWork != null) {
+                        // 被合并掉的JobWorkItem也要complete，否则JobScheduler会一直当它没做完。
+                        for (int i = 0; i < mMergedWork.size(); i++) {
+                            mParams.completeWork(mMergedWork.get(i));
+                        }
+                    }
+                }
+                WorkEnqueuer we = mService.findWorkEnqueuer();
+                if (we != null) {
+                    if (mTagStarted) {
+                        // 被停止的job里的任务走不到这里，它的取消记录留给重新投递
+                        we.mTags.finished(mTag);
+                    }
+                    we.releaseCapacity(mJobWork.getIntent());
+                    if (mMergedWork != null) {
+                        for (int i = 0; i < mMergedWork.size(); i++) {
+                            we.releaseCapacity(mMergedWork.get(i).getIntent());
+                        }
+                    }
+                }
+                // workId会被重新使用：不管是第几次投递、这次有没有读过，都要删掉可能留下来的进度，
+                // 包括被取消、被丢掉的任务，否则之后同一个workId的另一个任务会从这份进度开始
+                int jobId = mParams.getJobId();
+                synchronized (this) {
+                    mService.mCheckpoints.delete(jobId, mJobWork.getWorkId());
+                    mCheckpointSaved = false;
+                }
+                if (mMergedWork != null) {
+                    for (int i = 0; i < mMergedWork.size(); i++) {
+                        mService.mCheckpoints.delete(jobId, mMergedWork.get(i).getWorkId());
                     }
                 }
             }
@@ -154,21 +491,41 @@ public abstract class JobIntentXService extends Service {
 
         @Override
         public boolean onStartJob(JobParameters params) {
-            if (DEBUG) Log.d(TAG, "onStartJob: " + params);
+            WorkTrace.trace(TAG, WorkTrace.EVENT_START_JOB, params);
             mParams = params;
+            mService.mJobId = params.getJobId();
             // We can now start dequeuing work!
-            mService.ensureProcessorRunningLocked(false);
+            mService.mStopped = false;
+            mService.mEngine.signal();
             return true;
         }
 
         @Override
         public boolean onStopJob(JobParameters params) {
-            if (DEBUG) Log.d(TAG, "onStartJob: " + params);
+            WorkTrace.trace(TAG, WorkTrace.EVENT_STOP_JOB, params);
             boolean result = mService.doStopCurrentWork();
+            int abandoned;
             synchronized (mLock) {
                 // Once we return, the job is stopped, so its JobParameters are no
                 // longer valid and we should not be doing anything with them.
                 mParams = null;
+                // 这些已经出列但没有complete的任务，JobScheduler下次会重新投递。
+                abandoned = mPendingWork.size();
+                mPendingWork.clear();
+                mPendingByKey.clear();
+            }
+            // 按key排着的任务也一样
+            abandoned += mService.mSerializer.clear();
+            if (!result) {
+                // 不重新调度：JobScheduler丢掉了这个job剩下的所有任务，包括正在执行的，它们都不会再complete
+                WorkEnqueuer we = mService.findWorkEnqueuer();
+                if (we != null) {
+                    we.workAbandoned();
+                }
+            }
+            WorkMetrics metrics = mService.mMetrics;
+            if (metrics != null && abandoned > 0) {
+                metrics.onDiscarded(abandoned);
             }
             return result;
         }
@@ -179,19 +536,97 @@ public abstract class JobIntentXService extends Service {
         @Override
         public GenericWorkItem dequeueWork() {
             JobWorkItem work;
+            JobParameters params;
             synchronized (mLock) {
-                if (mParams == null) {
+                params = mParams;
+                if (params == null) {
                     return null;
                 }
-                work = mParams.dequeueWork();
+                WorkCoalescer coalescer = mService.mCoalescer;
+                if (coalescer != null || !mPendingWork.isEmpty()) {
+                    return dequeueCoalescedLocked(coalescer);
+                }
+                work = params.dequeueWork();
             }
             if (work != null) {
-                work.getIntent().setExtrasClassLoader(mService.getClassLoader());
-                return new JobServiceEngineImpl.WrapperWorkItem(work);
+                return newWorkItem(work, params);
             } else {
                 return null;
             }
         }
+
+        /**
+         * 从JobParameters取出来的任务，到这里才算到了服务，统计也从这里开始。
+         */
+        private WrapperWorkItem newWorkItem(JobWorkItem work, JobParameters params) {
+            Intent intent = work.getIntent();
+            intent.setExtrasClassLoader(mService.getClassLoader());
+            WrapperWorkItem item = new WrapperWorkItem(work, params);
+            item.mTag = intent.getStringExtra(EXTRA_WORK_TAG);
+            if (item.mTag != null) {
+                item.mTagSeq = intent.getLongExtra(WorkTags.EXTRA_SEQ, 0);
+            }
+            if (work.getDeliveryCount() == 1) {
+                WorkEnqueuer we = mService.findWorkEnqueuer();
+                if (we != null) {
+                    we.workDequeued();
+                }
+            }
+            if (WorkMetrics.sStampEnqueueTime) {
+                item.mEnqueueTime = WorkMetrics.takeEnqueueTime(intent);
+            }
+            WorkMetrics metrics = mService.mMetrics;
+            if (metrics != null) {
+                if (item.mEnqueueTime == 0) {
+                    item.mEnqueueTime = WorkMetrics.now();
+                }
+                metrics.onReceived(work.getDeliveryCount() > 1);
+            }
+            return item;
+        }
+
+        /**
+         * 从JobScheduler里面再取最多一个窗口的任务，key相同的合并成一个，再按顺序返回第一个。
+         * 窗口是{@link #COALESCE_WINDOW}和批量大小里大的那个：只在这么多个排在前面的任务里合并，
+         * 积压很多的时候也不会在mLock里把整个队列都搬到内存里。
+         */
+        private GenericWorkItem dequeueCoalescedLocked(WorkCoalescer coalescer) {
+            if (coalescer != null) {
+                int window = Math.max(COALESCE_WINDOW, mService.mEngine.getMaxBatchSize());
+                JobWorkItem work;
+                for (int pulled = 0; pulled < window && mPendingWork.size() < window
+                        && (work = mParams.dequeueWork()) != null; pulled++) {
+                    WrapperWorkItem item = newWorkItem(work, mParams);
+                    Object key = coalescer.getCoalesceKey(work.getIntent());
+                    WrapperWorkItem pending = key != null ? mPendingByKey.get(key) : null;
+                    if (pending != null) {
+                        WorkTrace.trace(TAG, WorkTrace.EVENT_COALESCE, -1, -1, work);
+                        pending.merge(coalescer, work);
+                        WorkEnqueuer we = mService.findWorkEnqueuer();
+                        if (item.mTag != null && we != null) {
+                            // 之后跟着pending走，取消它的tag不再影响它
+                            we.mTags.absorbed(item.mTag, item.mTagSeq);
+                        }
+                        WorkMetrics metrics = mService.mMetrics;
+                        if (metrics != null) {
+                            metrics.onCoalesced();
+                        }
+                        continue;
+                    }
+                    if (key != null) {
+                        item.mCoalesceKey = key;
+                        mPendingByKey.put(key, item);
+                    }
+                    mPendingWork.add(item);
+                }
+            }
+            WrapperWorkItem item = mPendingWork.poll();
+            if (item != null && item.mCoalesceKey != null
+                    && mPendingByKey.get(item.mCoalesceKey) == item) {
+                mPendingByKey.remove(item.mCoalesceKey);
+            }
+            return item;
+        }
     }
 
     @RequiresApi(26)
@@ -209,50 +644,175 @@ public abstract class JobIntentXService extends Service {
         }
 
         @Override
-        void enqueueWork(Intent work) {
-            if (DEBUG) Log.d(TAG, "Enqueueing work: " + work);
-            mJobScheduler.enqueue(mJobInfo, new JobWorkItem(work));
+        boolean enqueueWork(Intent work) {
+            WorkTrace.trace(TAG, WorkTrace.EVENT_ENQUEUE, work);
+            boolean owned = false;
+            if (WorkMetrics.sStampEnqueueTime) {
+                work = new Intent(work);
+                WorkMetrics.stampEnqueueTime(work);
+                owned = true;
+            }
+            return enqueue(work, owned);
+        }
+
+        @Override
+        boolean enqueueOwnedWork(Intent work) {
+            WorkTrace.trace(TAG, WorkTrace.EVENT_ENQUEUE, work);
+            WorkMetrics.stampEnqueueTime(work);
+            return enqueue(work, true);
+        }
+
+        private boolean enqueue(Intent work, boolean owned) {
+            String tag = work.getStringExtra(EXTRA_WORK_TAG);
+            long seq = 0;
+            if (tag != null) {
+                if (!owned) {
+                    work = new Intent(work);
+                }
+                seq = mTags.enqueued(tag);
+                work.putExtra(WorkTags.EXTRA_SEQ, seq);
+            }
+            if (mJobScheduler.enqueue(mJobInfo, new JobWorkItem(work)) == JobScheduler.RESULT_SUCCESS) {
+                return true;
+            }
+            if (tag != null) {
+                mTags.rejected(tag, seq);
+            }
+            return false;
         }
     }
 
+    /**
+     * 合并策略：key相同、还在排队没有开始执行的任务会被合并成一个，只调用一次{@link #onHandleWork(Intent)}，
+     * 被合并的每一个JobWorkItem都会在执行完以后completeWork。
+     */
+    public interface WorkCoalescer {
+        /**
+         * @return 合并用的key；返回null表示这个任务不参与合并
+         */
+        @Nullable
+        Object getCoalesceKey(@NonNull Intent intent);
+
+        /**
+         * @param pending 正在排队的任务
+         * @param incoming 新来的任务
+         * @return 合并以后真正要执行的intent，比如直接返回incoming表示用新的替代旧的
+         */
+        @NonNull
+        Intent merge(@NonNull Intent pending, @NonNull Intent incoming);
+    }
+
     /**
      * 抽象定义了一份被分发的任务
      */
     interface GenericWorkItem {
         Intent getIntent();
         void complete();
+
+        /**
+         * @return 排队的时间，只在打开了统计的时候才有，否则是0
+         */
+        long getEnqueueTime();
     }
 
     /**
-     * 这里一个Task用于在后台，出列和处理任务。
+     * 把engine的回调转给这个服务：处理完一个任务（或者一整批）以后再complete。
+     * 在androidO以上wakelock由JobScheduler负责，开始和结束处理的时候不需要做什么。
      */
-    final class CommandProcessor extends AsyncTask<Void, Void, Void> {
+    final class EngineCallback implements WorkEngine.Callback<GenericWorkItem> {
+        private final ArrayList<Intent> mBatchIntents = new ArrayList<>();
+
         @Override
-        protected Void doInBackground(Void... params) {
-            GenericWorkItem work;
+        public void onProcessingStarted() {
+            WorkTrace.trace(TAG, WorkTrace.EVENT_PROCESSING_STARTED, null);
+        }
 
-            if (DEBUG) Log.d(TAG, "Starting to dequeue work...");
+        @Override
+        public void onHandleWork(GenericWorkItem work) {
+            handleWork(work, mMetrics);
+        }
 
-            while ((work = dequeueWork()) != null) {
-                if (DEBUG) Log.d(TAG, "Processing next work: " + work);
-                onHandleWork(work.getIntent());
-                if (DEBUG) Log.d(TAG, "Completing work: " + work);
-                work.complete();
+        /**
+         * 抛了异常的任务也会complete，重试是重新排队的一个新任务；处理线程接着处理后面的任务。
+         * job已经被停止的时候例外：异常多半是被打断引起的，不complete，交给JobScheduler重新投递。
+         */
+        private void handleWork(GenericWorkItem work, WorkMetrics metrics) {
+            WorkTrace.trace(TAG, WorkTrace.EVENT_WORK_BEGIN, work);
+            mRunningWork.put(Thread.currentThread(), work);
+            try {
+                if (metrics == null) {
+                    JobIntentXService.this.onHandleWork(work.getIntent());
+                } else {
+                    long startTime = WorkMetrics.now();
+                    metrics.onStarted(work.getEnqueueTime(), startTime);
+                    JobIntentXService.this.onHandleWork(work.getIntent());
+                    metrics.onCompleted(work.getIntent(), work.getEnqueueTime(), startTime, WorkMetrics.now());
+                }
+            } catch (RuntimeException e) {
+                if (mStopped) {
+                    return;
+                }
+                retryOrDeadLetter(work.getIntent(), e);
+            } finally {
+                mRunningWork.remove(Thread.currentThread());
+                if (mStopped) {
+                    // 被停止以后返回的任务不会complete，把它最后的进度留给重新投递
+                    persistCheckpoint(work);
+                }
             }
-
-            if (DEBUG) Log.d(TAG, "Done processing work!");
-
-            return null;
+            WorkTrace.trace(TAG, WorkTrace.EVENT_WORK_END, work);
+            work.complete();
         }
 
+        /**
+         * 整批成功以后才逐个complete；整批失败的话拆开逐个重新执行，只有真正出问题的那几个进入重试。
+         * 批量模式下只有一个处理线程，所以intents的list可以复用。
+         */
         @Override
-        protected void onCancelled(Void aVoid) {
-            processorFinished();
+        public void onHandleWorkBatch(List<GenericWorkItem> batch) {
+            WorkMetrics metrics = mMetrics;
+            long startTime = 0;
+            if (metrics != null) {
+                startTime = WorkMetrics.now();
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                mBatchIntents.add(batch.get(i).getIntent());
+                if (metrics != null) {
+                    metrics.onStarted(batch.get(i).getEnqueueTime(), startTime);
+                }
+            }
+            try {
+                WorkTrace.trace(TAG, WorkTrace.EVENT_BATCH_BEGIN, batch.size(), null);
+                JobIntentXService.this.onHandleWorkBatch(mBatchIntents);
+            } catch (RuntimeException e) {
+                if (mStopped) {
+                    return;
+                }
+                Log.w(TAG, "Batch of " + batch.size() + " failed, retrying one by one", e);
+                // 这一批已经计过onStarted了，逐个执行的时候不再统计
+                for (int i = 0; i < batch.size(); i++) {
+                    handleWork(batch.get(i), null);
+                }
+                return;
+            } finally {
+                mBatchIntents.clear();
+            }
+            if (metrics != null) {
+                long completeTime = WorkMetrics.now();
+                for (int i = 0; i < batch.size(); i++) {
+                    GenericWorkItem work = batch.get(i);
+                    metrics.onCompleted(work.getIntent(), work.getEnqueueTime(), startTime, completeTime);
+                }
+            }
+            WorkTrace.trace(TAG, WorkTrace.EVENT_BATCH_END, batch.size(), null);
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).complete();
+            }
         }
 
         @Override
-        protected void onPostExecute(Void aVoid) {
-            processorFinished();
+        public void onProcessingFinished() {
+            WorkTrace.trace(TAG, WorkTrace.EVENT_PROCESSING_FINISHED, null);
         }
     }
 
@@ -266,7 +826,41 @@ public abstract class JobIntentXService extends Service {
     public void onCreate() {
         super.onCreate();
         if (DEBUG) Log.d(TAG, "CREATING: " + this);
+        mComponentName = new ComponentName(this, getClass());
         mJobImpl = new JobServiceEngineImpl(this);
+        mCheckpoints = new WorkCheckpoints(
+                new File(new File(getNoBackupFilesDir(), "work-checkpoints"), getClass().getName()));
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mEngine.shutdown();
+        synchronized (mProcessorLock) {
+            if (mProcessorExecutor != null) {
+                mProcessorExecutor.shutdown();
+                mProcessorExecutor = null;
+            }
+        }
+        if (mWorkerExecutor != null) {
+            mWorkerExecutor.shutdown();
+            mWorkerExecutor = null;
+        }
+        if (DEBUG) Log.d(TAG, "Destroyed: " + this);
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(fd, writer, args);
+        WorkMetrics metrics = mMetrics;
+        if (metrics != null) {
+            writer.println("WorkMetrics:");
+            metrics.snapshot().dump(writer, "  ");
+        }
+        WorkEnqueuer we = findWorkEnqueuer();
+        if (we != null) {
+            writer.println(we.mDeadLetters);
+        }
     }
 
     /**
@@ -301,7 +895,7 @@ public abstract class JobIntentXService extends Service {
      * @param jobId 一个单独用于调度的jobID; 同一个类所有的任务都必须是相同的
      * @param work 任务就是一个Intent，用于排队用的.
      */
-    public static void enqueueWork(@NonNull Context context, @NonNull Class cls, int jobId,
+    public static void enqueueWork(@NonNull Context context, @NonNull Class<?> cls, int jobId,
                                    @NonNull Intent work) {
         enqueueWork(context, new ComponentName(context, cls), jobId, work);
     }
@@ -311,11 +905,128 @@ public abstract class JobIntentXService extends Service {
      */
     public static void enqueueWork(@NonNull Context context, @NonNull ComponentName component,
                                    int jobId, @NonNull Intent work) {
-        synchronized (sLock) {
-            WorkEnqueuer we = getWorkEnqueuer(context, component, true, jobId);
-            we.ensureJobId(jobId);
-            we.enqueueWork(work);
+        // 不持有任何锁去做startService/JobScheduler.enqueue这样的IPC，enqueuer自己是线程安全的。
+        WorkEnqueuer we = getWorkEnqueuer(context, component, true, jobId);
+        we.ensureJobId(jobId);
+        we.enqueueBounded(work, false, true);
+    }
+
+    /**
+     * 不会阻塞的{@link #enqueueWork(Context, Class, int, Intent)}，返回排队的结果。
+     * 设置了{@link WorkCapacity#OVERFLOW_BLOCK}的话，满了直接拒绝而不是等待。
+     *
+     * @return WorkCapacity.ENQUEUE_*
+     */
+    public static int tryEnqueueWork(@NonNull Context context, @NonNull Class<?> cls, int jobId,
+                                     @NonNull Intent work) {
+        return tryEnqueueWork(context, new ComponentName(context, cls), jobId, work);
+    }
+
+    /**
+     * 就像 {@link #tryEnqueueWork(Context, Class, int, Intent)}, 但是提供了ComponentName替代class。
+     */
+    public static int tryEnqueueWork(@NonNull Context context, @NonNull ComponentName component,
+                                     int jobId, @NonNull Intent work) {
+        WorkEnqueuer we = getWorkEnqueuer(context, component, true, jobId);
+        we.ensureJobId(jobId);
+        return we.enqueueBounded(work, false, false);
+    }
+
+    /**
+     * 限制这个服务最多有多少个已经排队、还没完成的任务，满了以后按照overflowPolicy处理，见{@link WorkCapacity}。
+     * 请在第一次排队之前调用，服务必须和调用方在同一个进程。
+     *
+     * @param overflowPolicy WorkCapacity.OVERFLOW_*
+     * @param blockTimeoutMillis {@link WorkCapacity#OVERFLOW_BLOCK}最多等多久
+     * @param coalescer {@link WorkCapacity#OVERFLOW_COALESCE}用它算key，应该和服务的合并策略一致；其他策略传null
+     * @return 用来查看排队、拒绝和丢掉的数量
+     */
+    @NonNull
+    public static WorkCapacity setWorkCapacity(@NonNull Context context, @NonNull Class<?> cls, int jobId,
+                                               int capacity, int overflowPolicy, long blockTimeoutMillis,
+                                               @Nullable WorkCoalescer coalescer) {
+        WorkCapacity workCapacity = new WorkCapacity(capacity, overflowPolicy, blockTimeoutMillis);
+        WorkEnqueuer we = getWorkEnqueuer(context, new ComponentName(context, cls), true, jobId);
+        we.ensureJobId(jobId);
+        we.mCapacityCoalescer = coalescer;
+        we.mCapacity = workCapacity;
+        return workCapacity;
+    }
+
+    /**
+     * 批量版本的{@link #enqueueWork(Context, Class, int, Intent)}，一次性排队一批任务。
+     * enqueuer的查找和jobId的检查只做一次，适合一次性产生大量任务的场景。
+     *
+     * @param works 按顺序排队的任务
+     * @return 被接受的任务数量
+     */
+    public static int enqueueWork(@NonNull Context context, @NonNull Class<?> cls, int jobId,
+                                  @NonNull List<Intent> works) {
+        return enqueueWork(context, new ComponentName(context, cls), jobId, works);
+    }
+
+    /**
+     * 就像 {@link #enqueueWork(Context, Class, int, List)}, 但是提供了ComponentName替代class。
+     */
+    public static int enqueueWork(@NonNull Context context, @NonNull ComponentName component,
+                                  int jobId, @NonNull List<Intent> works) {
+        if (works.isEmpty()) {
+            return 0;
         }
+        WorkEnqueuer we = getWorkEnqueuer(context, component, true, jobId);
+        we.ensureJobId(jobId);
+        if (we.mCapacity != null) {
+            // 有容量限制的时候逐个排队，每个都要占位置
+            int accepted = 0;
+            for (Intent work : works) {
+                int result = we.enqueueBounded(work, false, true);
+                if (result != WorkCapacity.ENQUEUE_REJECTED && result != WorkCapacity.ENQUEUE_FAILED) {
+                    accepted++;
+                }
+            }
+            return accepted;
+        }
+        return we.enqueueWork(works);
+    }
+
+    /**
+     * 带类型的版本：work由codec编码成一个紧凑的byte[]排队，不用复制也不用Parcel一大堆extras。
+     * 在{@link #onHandleWork(Intent)}里面用{@link WorkPayload#decode(Intent, WorkPayload.Codec)}取出来，解码发生在worker线程。
+     */
+    public static <T> void enqueueWork(@NonNull Context context, @NonNull Class<?> cls, int jobId,
+                                       @NonNull WorkPayload.Codec<T> codec, @NonNull T work) {
+        enqueueWork(context, new ComponentName(context, cls), jobId, codec, work);
+    }
+
+    /**
+     * 就像 {@link #enqueueWork(Context, Class, int, WorkPayload.Codec, Object)}, 但是提供了ComponentName替代class。
+     */
+    public static <T> void enqueueWork(@NonNull Context context, @NonNull ComponentName component,
+                                       int jobId, @NonNull WorkPayload.Codec<T> codec, @NonNull T work) {
+        WorkEnqueuer we = getWorkEnqueuer(context, component, true, jobId);
+        we.ensureJobId(jobId);
+        we.enqueueBounded(WorkPayload.encode(codec, work), true, true);
+    }
+
+    /**
+     * 就像 {@link #enqueueWork(Context, Class, int, WorkPayload.Codec, Object)}，但是排队的Intent是base的副本，
+     * 可以带上{@link #EXTRA_WORK_TAG}、{@link #EXTRA_SERIAL_KEY}这些extra，也会交给合并策略。base本身不会被修改。
+     */
+    public static <T> void enqueueWork(@NonNull Context context, @NonNull Class<?> cls, int jobId,
+                                       @NonNull Intent base, @NonNull WorkPayload.Codec<T> codec,
+                                       @NonNull T work) {
+        enqueueWork(context, new ComponentName(context, cls), jobId, base, codec, work);
+    }
+
+    /**
+     * 就像 {@link #enqueueWork(Context, Class, int, Intent, WorkPayload.Codec, Object)}, 但是提供了ComponentName替代class。
+     */
+    public static <T> void enqueueWork(@NonNull Context context, @NonNull ComponentName component,
+                                       int jobId, @NonNull Intent base, @NonNull WorkPayload.Codec<T> codec,
+                                       @NonNull T work) {
+        WorkEnqueuer we = getWorkEnqueuer(context, component, true, jobId);
+        we.ensureJobId(jobId);
+        we.enqueueBounded(WorkPayload.encode(base, codec, work), true, true);
     }
 
     static WorkEnqueuer getWorkEnqueuer(Context context, ComponentName cn, boolean hasJobId,
@@ -326,7 +1037,11 @@ public abstract class JobIntentXService extends Service {
                 throw new IllegalArgumentException("Can't be here without a job id");
             }
             we = new JobWorkEnqueuer(context, cn, jobId);
-            sClassWorkEnqueuer.put(cn, we);
+            // 两个线程同时第一次创建的时候，以先放进去的为准。
+            WorkEnqueuer prev = sClassWorkEnqueuer.putIfAbsent(cn, we);
+            if (prev != null) {
+                we = prev;
+            }
         }
         return we;
     }
@@ -340,14 +1055,118 @@ public abstract class JobIntentXService extends Service {
      * 但是在androidO以上，需要注意，因为任务被当做Job来运行，执行是有最大限制时间的。这样的话，
      * 某个任务或者整串任务超过了限制，服务就会被停止掉（即使你正在工作），然后，过会儿重启最后一个没有完成的任务。
      *
+     * 抛出RuntimeException不会影响后面的任务：这个任务按照{@link #setRetryPolicy(WorkRetryPolicy)}重试，
+     * 用完了次数以后放进死信，见{@link #onWorkFailed(Intent, Throwable, int)}。
+     *
      * @param intent Intent用于描述你的任务
      */
     protected abstract void onHandleWork(@NonNull Intent intent);
 
+    /**
+     * 任务用完了重试次数（没有设置重试策略的话是第一次失败）还是失败，已经放进了死信，见{@link #getDeadLetters(ComponentName)}。
+     * 在处理线程调用，默认什么也不做。
+     *
+     * @param attempts 一共执行了几次
+     */
+    protected void onWorkFailed(@NonNull Intent intent, @NonNull Throwable error, int attempts) {
+    }
+
+    /**
+     * 打开批量模式后，任务会一批一批地分发到这里，而不是{@link #onHandleWork(Intent)}。
+     * 比如写数据库的时候，可以整批只提交一次事务。
+     * 这个方法返回以后，这一批里面的每个任务才会被complete；如果抛出RuntimeException，这一批会被拆开，
+     * 逐个调用{@link #onHandleWork(Intent)}再执行一遍，所以请让整批的处理要么全做要么全不做（比如放在一个事务里）。
+     *
+     * 默认实现是逐个调用{@link #onHandleWork(Intent)}。
+     *
+     * @param intents 这一批任务，按照出列的顺序。方法返回以后这个list会被复用，不要持有它。
+     */
+    protected void onHandleWorkBatch(@NonNull List<Intent> intents) {
+        for (int i = 0; i < intents.size(); i++) {
+            onHandleWork(intents.get(i));
+        }
+    }
+
+    /**
+     * 打开批量模式，见{@link #onHandleWorkBatch(List)}。请在{@link #onCreate()}里面调用。
+     *
+     * @param maxBatchSize 每一批最多多少个任务；1表示关闭批量模式（默认）
+     * @param lingerMillis 一批取不满的时候，最多再等多久凑一批
+     */
+    public void setWorkBatching(int maxBatchSize, long lingerMillis) {
+        if (maxBatchSize > 1 && mEngine.getMaxWorkers() > 1) {
+            throw new IllegalStateException("Batching needs a single worker");
+        }
+        mEngine.setBatching(maxBatchSize, lingerMillis);
+    }
+
+    /**
+     * 打开并发模式：最多同时有workers个{@link #onHandleWork(Intent)}在跑，跑在这个服务专属的线程池上
+     * （设置过{@link #setWorkExecutor(Executor)}的话跑在那上面）。默认是1，也就是顺序执行。
+     * 一般和{@link #getSerialKey(Intent)}一起用：同一个key的任务仍然有序，不同key的并行。
+     *
+     * 不能和批量模式一起打开。一般在{@link #onCreate()}里面调用；之后再改的话线程池会跟着变大或者变小。
+     *
+     * @param workers 并发的worker数量，必须大于0
+     */
+    public void setMaxWorkers(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be > 0, but " + workers);
+        }
+        if (workers > 1 && mEngine.getMaxBatchSize() > 1) {
+            throw new IllegalStateException("Batching needs a single worker");
+        }
+        if (mWorkerExecutor != null) {
+            // 先把线程加上再放开worker的数量，多出来的worker不会排在旧的线程后面
+            WorkEngine.resizePool(mWorkerExecutor, workers);
+        } else if (workers > 1 && !mSharedExecutor) {
+            mWorkerExecutor = WorkEngine.newWorkerPool(getClass().getSimpleName() + "-worker", workers);
+            mEngine.setExecutor(mWorkerExecutor);
+        }
+        mEngine.setMaxWorkers(workers);
+    }
+
+    private ExecutorService getProcessorExecutor() {
+        synchronized (mProcessorLock) {
+            if (mProcessorExecutor == null) {
+                mProcessorExecutor = Executors.newSingleThreadExecutor(
+                        WorkEngine.newThreadFactory(getClass().getSimpleName() + "-processor"));
+            }
+            return mProcessorExecutor;
+        }
+    }
+
+    /**
+     * 让处理线程跑在executor上，比如{@link WorkExecutors#shared()}，几个服务共用一组线程，不再占一个常驻线程。
+     * 这个服务最多占用executor的{@link #setMaxWorkers(int)}个线程（默认1个）。请在{@link #onCreate()}里面调用。
+     */
+    public void setWorkExecutor(@NonNull Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor must not be null");
+        }
+        mSharedExecutor = true;
+        if (mWorkerExecutor != null) {
+            mWorkerExecutor.shutdown();
+            mWorkerExecutor = null;
+        }
+        mEngine.setExecutor(executor);
+    }
+
+    /**
+     * 按key串行：返回非null的任务，key相同的按出列的顺序一个一个执行，key不同的在{@link #setMaxWorkers(int)}个worker上并行。
+     * 比如同一个账号的任务必须有序，不同账号之间不需要。
+     *
+     * 默认读取{@link #EXTRA_SERIAL_KEY}，没有这个extra的任务不受限制。重试的任务会排到这个key的最后。
+     */
+    @Nullable
+    protected Object getSerialKey(@NonNull Intent intent) {
+        return intent.getStringExtra(EXTRA_SERIAL_KEY);
+    }
+
     /**
      * 控制执行在{@link #onHandleWork(Intent)} 里面的代码，是否可以被打断如果这个Job已经停止。
      * 默认是false.  如果设置了true， 当调用了{@link #onStopCurrentWork()},
-     * 此类将第一时间调用{@link AsyncTask#cancel(boolean) AsyncTask.cancel(true)} 去停止正在工作中的Task。
+     * 此类将第一时间{@link Thread#interrupt() interrupt}处理线程，去停止正在工作中的任务。
      *
      * @param interruptIfStopped 设为true，允许系统去打断正在工作中的任务
      */
@@ -355,6 +1174,76 @@ public abstract class JobIntentXService extends Service {
         mInterruptIfStopped = interruptIfStopped;
     }
 
+    /**
+     * 设置合并策略，null表示不合并（默认）。
+     */
+    public void setWorkCoalescer(@Nullable WorkCoalescer coalescer) {
+        mCoalescer = coalescer;
+    }
+
+    /**
+     * 设置失败以后的重试策略，null表示不重试（默认），失败的任务直接放进死信。
+     *
+     * 失败的JobWorkItem会马上complete，不再占着job；重试由进程里的定时器等到时间以后重新JobScheduler.enqueue，
+     * 等待期间进程被杀的话这个任务就没有了。
+     */
+    public void setRetryPolicy(@Nullable WorkRetryPolicy policy) {
+        mRetryPolicy = policy;
+    }
+
+    /**
+     * onHandleWork抛了异常：还有次数的话过一会儿重新排队，否则放进死信。
+     */
+    void retryOrDeadLetter(Intent intent, RuntimeException error) {
+        int attempts = intent.getIntExtra(WorkRetryPolicy.EXTRA_ATTEMPT, 0) + 1;
+        WorkRetryPolicy policy = mRetryPolicy;
+        // 这个进程可能是JobScheduler拉起来的，还没有人排过队，用job的id建一个
+        WorkEnqueuer we = getWorkEnqueuer(this, mComponentName, true, mJobId);
+        if (policy != null && policy.shouldRetry(attempts)) {
+            long delay = policy.getDelayMillis(attempts);
+            Log.w(TAG, "Work failed " + attempts + " times, retrying in " + delay + "ms: " + intent, error);
+            WorkTrace.trace(TAG, WorkTrace.EVENT_RETRY, attempts, delay, intent);
+            we.enqueueRetry(new Intent(intent).putExtra(WorkRetryPolicy.EXTRA_ATTEMPT, attempts),
+                    error, attempts, delay);
+            return;
+        }
+        Log.e(TAG, "Work failed " + attempts + " times, giving up: " + intent, error);
+        WorkTrace.trace(TAG, WorkTrace.EVENT_DEAD_LETTER, attempts, intent);
+        we.mDeadLetters.add(intent, error, attempts);
+        onWorkFailed(intent, error, attempts);
+    }
+
+    /**
+     * 取消这个服务所有{@link #EXTRA_WORK_TAG}是tag的任务：还在JobScheduler里排队的出列的时候直接completeWork，不再执行；
+     * 正在执行的可以通过{@link #isWorkCancelled()}知道，自己决定是不是提前返回。
+     *
+     * 按排队的先后判断：调用之前排的任务都会被取消，包括还没出列的、按key排在后面等着的和被重新投递的；
+     * 之后再排的同tag任务照常执行。被合并进别的任务的跟着那个任务走。
+     * 取消只对这个进程排的、还没走完的任务有效：这个tag的任务都走完以后记录就清掉了，见{@link WorkTags}。
+     *
+     * @return 这个进程里排队、还没出列的被取消的任务数
+     */
+    public static int cancelWork(@NonNull Context context, @NonNull Class<?> cls, @NonNull String tag) {
+        return cancelWork(new ComponentName(context, cls), tag);
+    }
+
+    /**
+     * 就像 {@link #cancelWork(Context, Class, String)}, 但是提供了ComponentName替代class。
+     */
+    public static int cancelWork(@NonNull ComponentName component, @NonNull String tag) {
+        WorkEnqueuer we = sClassWorkEnqueuer.get(component);
+        return we != null ? we.mTags.cancel(tag) : 0;
+    }
+
+    /**
+     * @return 这个服务的死信；这个进程里还没有排队过任务、也没有任务失败过的话返回null
+     */
+    @Nullable
+    public static WorkDeadLetters getDeadLetters(@NonNull ComponentName component) {
+        WorkEnqueuer we = sClassWorkEnqueuer.get(component);
+        return we != null ? we.mDeadLetters : null;
+    }
+
     /**
      * 如果{@link #onStopCurrentWork()}已经被调用过了返回true. 当你执行任务的时候，你可以通过这个方法来判断，是否应该结束了.
      */
@@ -374,31 +1263,179 @@ public abstract class JobIntentXService extends Service {
         return true;
     }
 
-    boolean doStopCurrentWork() {
-        if (mCurProcessor != null) {
-            mCurProcessor.cancel(mInterruptIfStopped);
+    /**
+     * 取出当前任务上一次保存的进度，只能在{@link #onHandleWork(Intent)}里面调用（批量模式下不支持）。
+     * 只有被重新投递的任务才会有进度，第一次投递的任务返回null。
+     */
+    @Nullable
+    protected final byte[] getCheckpoint() {
+        return currentWork().getCheckpoint();
+    }
+
+    /**
+     * 保存当前任务的进度，只能在{@link #onHandleWork(Intent)}里面调用（批量模式下不支持）。
+     * 只是记在内存里，可以很频繁地调用；job被停止的时候才写到磁盘，任务被重新投递的时候从{@link #getCheckpoint()}取回来。
+     * 任务完成以后进度会被删掉。
+     *
+     * @param token 进度，null或者空数组表示清掉
+     */
+    protected final void setCheckpoint(@Nullable byte[] token) {
+        currentWork().setCheckpoint(token);
+    }
+
+    /**
+     * 协作式的让出点：在onHandleWork的循环里面调用，返回true的时候请先{@link #setCheckpoint(byte[])}再尽快返回。
+     * 只是一次volatile读，不需要担心调用得太频繁。
+     */
+    protected final boolean shouldYield() {
+        return mStopped;
+    }
+
+    /**
+     * 当前任务的tag在它开始以后有没有被{@link #cancelWork(Context, Class, String)}取消，
+     * 只能在{@link #onHandleWork(Intent)}里面调用（批量模式下不支持）。被取消的任务提前返回就可以了，之后照常完成。
+     */
+    protected final boolean isWorkCancelled() {
+        return currentWork().isTagCancelled();
+    }
+
+    private JobServiceEngineImpl.WrapperWorkItem currentWork() {
+        GenericWorkItem work = mRunningWork.get(Thread.currentThread());
+        if (!(work instanceof JobServiceEngineImpl.WrapperWorkItem)) {
+            throw new IllegalStateException("Checkpoints are only available inside onHandleWork");
+        }
+        return (JobServiceEngineImpl.WrapperWorkItem) work;
+    }
+
+    static void persistCheckpoint(GenericWorkItem work) {
+        if (work instanceof JobServiceEngineImpl.WrapperWorkItem) {
+            ((JobServiceEngineImpl.WrapperWorkItem) work).persistCheckpoint();
         }
+    }
+
+    boolean doStopCurrentWork() {
+        mEngine.cancel(mInterruptIfStopped);
         mStopped = true;
+        // 处理线程可能来不及返回进程就被杀了，先把目前为止的进度写下来。onStopJob在主线程，写文件要fsync，交给定时器线程
+        final ArrayList<GenericWorkItem> running = new ArrayList<>(mRunningWork.values());
+        if (!running.isEmpty()) {
+            WorkEngine.getTimer().execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < running.size(); i++) {
+                        persistCheckpoint(running.get(i));
+                    }
+                }
+            });
+        }
         return onStopCurrentWork();
     }
 
-    void ensureProcessorRunningLocked(boolean reportStarted) {
-        if (mCurProcessor == null) {
-            mCurProcessor = new CommandProcessor();
-            if (DEBUG) Log.d(TAG, "Starting processor: " + mCurProcessor);
-            mCurProcessor.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    /**
+     * 打开任务统计，之后到来的任务都会被记录。可以重复调用，返回的是同一个对象。
+     * 打开以后enqueueWork会给任务打上排队的时间，这样等待时间才包括在JobScheduler里面排队的时间。
+     */
+    @NonNull
+    public synchronized WorkMetrics enableWorkMetrics() {
+        if (mMetrics == null) {
+            mMetrics = new WorkMetrics();
         }
+        return mMetrics;
     }
 
-    void processorFinished() {
+    /**
+     * @return 统计，没有打开的时候返回null
+     */
+    @Nullable
+    public WorkMetrics getWorkMetrics() {
+        return mMetrics;
     }
 
     GenericWorkItem dequeueWork() {
-        if (mJobImpl != null) {
-            return mJobImpl.dequeueWork();
-        } else {
+        if (mJobImpl == null) {
             return null;
         }
+        GenericWorkItem work;
+        WorkSerializer.Slot<GenericWorkItem> ready;
+        while ((ready = mSerializer.pollReady()) != null) {
+            work = ready.mRunning;
+            JobServiceEngineImpl.WrapperWorkItem item = (JobServiceEngineImpl.WrapperWorkItem) work;
+            item.mSerialSlot = ready;
+            if (!item.isTagCancelled()) {
+                return work;
+            }
+            // 排在同一个key后面等着的时候被取消了；完成它会放出这个key的下一个任务
+            discard(work, WorkTrace.EVENT_CANCEL);
+        }
+        while ((work = mJobImpl.dequeueWork()) != null) {
+            WorkEnqueuer we = findWorkEnqueuer();
+            if (we != null) {
+                if (work instanceof JobServiceEngineImpl.WrapperWorkItem
+                        && !((JobServiceEngineImpl.WrapperWorkItem) work).startTag(we)) {
+                    discard(work, WorkTrace.EVENT_CANCEL);
+                    continue;
+                }
+                if (isDroppable(work) && we.takeDrop()) {
+                    // 容量满了以后答应丢掉的最早的任务
+                    discard(work, WorkTrace.EVENT_DROP);
+                    continue;
+                }
+            }
+            if (startSerial(work)) {
+                return work;
+            }
+            // 同一个key前面还有任务在执行，排在它后面，等它完成的时候再取
+        }
+        return null;
+    }
+
+    /**
+     * 只有第一次出列、没有合并别的任务的才算"还在排队"的任务：重新投递的任务已经出列过（可能执行了一半），
+     * 丢掉合并过的任务会一次丢掉好几个
+     */
+    private static boolean isDroppable(GenericWorkItem work) {
+        if (!(work instanceof JobServiceEngineImpl.WrapperWorkItem)) {
+            return false;
+        }
+        JobServiceEngineImpl.WrapperWorkItem item = (JobServiceEngineImpl.WrapperWorkItem) work;
+        return item.mJobWork.getDeliveryCount() == 1 && item.mMergedWork == null;
+    }
+
+    /**
+     * 出列的任务不执行，直接完成
+     */
+    private void discard(GenericWorkItem work, int event) {
+        WorkTrace.trace(TAG, event, work);
+        WorkMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.onDiscarded(1);
+        }
+        work.complete();
+    }
+
+    /**
+     * @return false表示同一个key前面还有任务在执行，这个任务排在它后面
+     */
+    private boolean startSerial(GenericWorkItem work) {
+        Object key = getSerialKey(work.getIntent());
+        if (key == null || !(work instanceof JobServiceEngineImpl.WrapperWorkItem)) {
+            return true;
+        }
+        WorkSerializer.Slot<GenericWorkItem> slot = mSerializer.start(key, work);
+        if (slot == null) {
+            // 不能写null：它可能已经被另一个worker取走了
+            return false;
+        }
+        ((JobServiceEngineImpl.WrapperWorkItem) work).mSerialSlot = slot;
+        return true;
+    }
+
+    /**
+     * @return 这个进程里排队用的WorkEnqueuer；这个进程还没有排队过的话返回null
+     */
+    @Nullable
+    WorkEnqueuer findWorkEnqueuer() {
+        return sClassWorkEnqueuer.get(mComponentName);
     }
 }
 
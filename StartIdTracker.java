@@ -0,0 +1,61 @@
+package com.allan.services;
+
+/**
+ * 记录收到的startId和它们的完成情况。
+ * 注意stopSelf(startId)会把startId及它之前投递的intent都当做已经完成（不再REDELIVER），
+ * 所以多个worker乱序完成的时候，只能把"从头开始连续完成"的最大startId交给stopSelf。
+ * startId是递增的，所以这里用一个有序的环形数组，完成的时候二分查找。
+ */
+final class StartIdTracker {
+    private int[] mIds = new int[16];
+    private boolean[] mDone = new boolean[16];
+    private int mHead;
+    private int mSize;
+
+    synchronized void received(int startId) {
+        if (mSize == mIds.length) {
+            int[] ids = new int[mSize * 2];
+            boolean[] done = new boolean[mSize * 2];
+            for (int i = 0; i < mSize; i++) {
+                int index = (mHead + i) % mIds.length;
+                ids[i] = mIds[index];
+                done[i] = mDone[index];
+            }
+            mIds = ids;
+            mDone = done;
+            mHead = 0;
+        }
+        int tail = (mHead + mSize) % mIds.length;
+        mIds[tail] = startId;
+        mDone[tail] = false;
+        mSize++;
+    }
+
+    /**
+     * @return 可以交给stopSelf的startId；-1表示前面还有没完成的任务，暂时不能stop
+     */
+    synchronized int complete(int startId) {
+        int low = 0;
+        int high = mSize - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int id = mIds[(mHead + mid) % mIds.length];
+            if (id < startId) {
+                low = mid + 1;
+            } else if (id > startId) {
+                high = mid - 1;
+            } else {
+                mDone[(mHead + mid) % mIds.length] = true;
+                break;
+            }
+        }
+
+        int stopId = -1;
+        while (mSize > 0 && mDone[mHead]) {
+            stopId = mIds[mHead];
+            mHead = (mHead + 1) % mIds.length;
+            mSize--;
+        }
+        return stopId;
+    }
+}
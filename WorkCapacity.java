@@ -0,0 +1,274 @@
+package com.allan.services;
+
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+
+/**
+ * 不依赖Android的容量限制：一个服务最多有多少个已经排队、还没完成的任务，满了以后按照溢出策略处理。
+ *
+ * 计数在调用enqueueWork的进程里：排队的时候加一，服务完成任务的时候减一，所以服务必须和调用方在同一个进程；
+ * 进程重启以后JobScheduler里面可能还有上一个进程排的任务，这部分不计入，完成的时候计数也不会小于0。
+ * 服务放弃了还没完成的任务（它们永远不会完成）的时候计数清零，见{@link #reset()}，否则OVERFLOW_BLOCK的排队方会一直等到超时。
+ */
+public final class WorkCapacity {
+    /**
+     * 满了就等，最多等blockTimeoutMillis，超时以后拒绝。请不要在主线程排队。
+     */
+    public static final int OVERFLOW_BLOCK = 0;
+    /**
+     * 接受新任务，丢掉最早排队、还没出列的一个任务，它直接完成，不执行；已经全部出列了（都在执行）的话拒绝新任务。
+     * BelowOJobIntentService在收到新任务的时候当场从队列里取出最早的丢掉；
+     * JobIntentXService取不到JobScheduler里面的任务，丢掉的是下一个第一次出列、没有被合并的任务；
+     * 重新投递的任务已经出列过了，不会被丢。
+     */
+    public static final int OVERFLOW_DROP_OLDEST = 1;
+    /**
+     * 拒绝新任务
+     */
+    public static final int OVERFLOW_DROP_NEWEST = 2;
+    /**
+     * 新任务的key和还没完成的任务相同的话接受它（服务的合并策略会把它合并掉），否则拒绝
+     */
+    public static final int OVERFLOW_COALESCE = 3;
+
+    /** 排队成功 */
+    public static final int ENQUEUE_ACCEPTED = 0;
+    /** 满了，任务被拒绝 */
+    public static final int ENQUEUE_REJECTED = 1;
+    /** 排队成功，但是最早排队的一个任务会被丢掉 */
+    public static final int ENQUEUE_DROPPED_OLDEST = 2;
+    /** 满了，但是任务会被合并进还没完成的同key任务，所以接受了 */
+    public static final int ENQUEUE_COALESCED = 3;
+    /** 系统没有接受这个任务（startService或者JobScheduler.enqueue失败） */
+    public static final int ENQUEUE_FAILED = 4;
+
+    private final int mCapacity;
+    private final int mPolicy;
+    private final long mBlockTimeoutMillis;
+
+    // 以下由this保护
+    private int mCount;
+    // 其中还没有出列的任务数，只有它们可以被OVERFLOW_DROP_OLDEST丢掉
+    private int mWaiting;
+    // 已经答应丢掉、还没有丢的任务数；计数里面包括它们，判断满不满的时候要减掉
+    private int mPendingDrops;
+    // OVERFLOW_COALESCE的时候，还没完成的任务的key和数量
+    private final HashMap<Object, int[]> mKeys = new HashMap<>();
+    private long mRejected;
+    private long mDropped;
+    private long mCoalesced;
+
+    WorkCapacity(int capacity, int policy, long blockTimeoutMillis) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be > 0, but " + capacity);
+        }
+        if (policy < OVERFLOW_BLOCK || policy > OVERFLOW_COALESCE) {
+            throw new IllegalArgumentException("Unknown overflow policy " + policy);
+        }
+        if (blockTimeoutMillis < 0) {
+            throw new IllegalArgumentException("Illegal block timeout " + blockTimeoutMillis);
+        }
+        mCapacity = capacity;
+        mPolicy = policy;
+        mBlockTimeoutMillis = blockTimeoutMillis;
+    }
+
+    /**
+     * 占一个位置。
+     *
+     * @param key 任务的合并key，只有OVERFLOW_COALESCE用得到
+     * @param mayBlock false的话OVERFLOW_BLOCK满了直接拒绝
+     * @return ENQUEUE_ACCEPTED、ENQUEUE_REJECTED、ENQUEUE_DROPPED_OLDEST或者ENQUEUE_COALESCED
+     */
+    synchronized int acquire(@Nullable Object key, boolean mayBlock) {
+        int result = ENQUEUE_ACCEPTED;
+        if (isFullLocked()) {
+            result = overflowLocked(key, mayBlock);
+            if (result == ENQUEUE_REJECTED) {
+                mRejected++;
+                return result;
+            }
+        }
+        mCount++;
+        mWaiting++;
+        if (key != null && mPolicy == OVERFLOW_COALESCE) {
+            int[] count = mKeys.get(key);
+            if (count == null) {
+                mKeys.put(key, new int[] {1});
+            } else {
+                count[0]++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 占了位置但是系统没有接受任务，撤销{@link #acquire(Object, boolean)}。
+     */
+    synchronized void cancel(@Nullable Object key, int result) {
+        if (result == ENQUEUE_DROPPED_OLDEST && mPendingDrops > 0) {
+            mPendingDrops--;
+        } else if (result == ENQUEUE_COALESCED) {
+            mCoalesced--;
+        }
+        if (mWaiting > 0) {
+            mWaiting--;
+        }
+        releaseLocked(key);
+    }
+
+    /**
+     * 一个任务完成了（包括被丢掉的）
+     */
+    synchronized void release(@Nullable Object key) {
+        releaseLocked(key);
+    }
+
+    /**
+     * 服务放弃了所有还没完成的任务，比如job被停止的时候onStopCurrentWork返回了false，JobScheduler把它们都丢掉了。
+     * 计数清零，等着的排队方马上醒过来；同时在排队的任务不再计入，宁可多放进来几个也不能一直堵住。
+     */
+    public synchronized void reset() {
+        mCount = 0;
+        mWaiting = 0;
+        mPendingDrops = 0;
+        mKeys.clear();
+        notifyAll();
+    }
+
+    /**
+     * 服务从队列里取出了count个任务（包括被合并进去的），它们不能再被丢掉了
+     */
+    synchronized void dequeued(int count) {
+        mWaiting = Math.max(0, mWaiting - count);
+    }
+
+    /**
+     * 在出列以后丢掉任务的服务调用，取出来的任务要先{@link #dequeued(int)}。
+     *
+     * @return true表示这个任务应该被丢掉，直接完成而不执行
+     */
+    synchronized boolean takeDrop() {
+        if (mPendingDrops == 0) {
+            return false;
+        }
+        mPendingDrops--;
+        mDropped++;
+        return true;
+    }
+
+    /**
+     * 当场丢掉任务的服务收到了ENQUEUE_DROPPED_OLDEST的任务。
+     *
+     * @param dropped false表示排在前面的任务已经都被取走了，没有丢
+     */
+    synchronized void finishDrop(boolean dropped) {
+        if (mPendingDrops == 0) {
+            return;
+        }
+        mPendingDrops--;
+        if (dropped) {
+            mDropped++;
+        }
+    }
+
+    boolean needsKey() {
+        return mPolicy == OVERFLOW_COALESCE;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public int getOverflowPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * @return 已经排队、还没完成的任务数
+     */
+    public synchronized int getQueuedCount() {
+        return mCount - mPendingDrops;
+    }
+
+    public synchronized long getRejectedCount() {
+        return mRejected;
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * @return 满了以后因为会被合并而接受的任务数
+     */
+    public synchronized long getCoalescedCount() {
+        return mCoalesced;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "WorkCapacity{queued=" + (mCount - mPendingDrops) + "/" + mCapacity + ", policy=" + mPolicy
+                + ", rejected=" + mRejected + ", dropped=" + mDropped + ", coalesced=" + mCoalesced + "}";
+    }
+
+    private boolean isFullLocked() {
+        return mCount - mPendingDrops >= mCapacity;
+    }
+
+    private int overflowLocked(Object key, boolean mayBlock) {
+        switch (mPolicy) {
+            case OVERFLOW_BLOCK:
+                if (!mayBlock || !awaitSpaceLocked()) {
+                    return ENQUEUE_REJECTED;
+                }
+                return ENQUEUE_ACCEPTED;
+            case OVERFLOW_DROP_OLDEST:
+                // 只能丢还在排队、还没答应丢掉的任务；正在执行的任务丢不掉
+                if (mWaiting <= mPendingDrops) {
+                    return ENQUEUE_REJECTED;
+                }
+                mPendingDrops++;
+                return ENQUEUE_DROPPED_OLDEST;
+            case OVERFLOW_COALESCE:
+                if (key != null && mKeys.containsKey(key)) {
+                    mCoalesced++;
+                    return ENQUEUE_COALESCED;
+                }
+                return ENQUEUE_REJECTED;
+            default:
+                return ENQUEUE_REJECTED;
+        }
+    }
+
+    private boolean awaitSpaceLocked() {
+        long deadline = System.nanoTime() + mBlockTimeoutMillis * 1000000L;
+        while (isFullLocked()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                wait(remaining / 1000000L, (int) (remaining % 1000000L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void releaseLocked(Object key) {
+        if (mCount > 0) {
+            mCount--;
+        }
+        if (key != null && mPolicy == OVERFLOW_COALESCE) {
+            int[] count = mKeys.get(key);
+            if (count != null && --count[0] == 0) {
+                mKeys.remove(key);
+            }
+        }
+        notifyAll();
+    }
+}
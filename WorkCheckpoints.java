@@ -0,0 +1,91 @@
+package com.allan.services;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * 不依赖Android的进度存储：每个任务一个小文件，文件名是job的id和任务的id。
+ * 写的时候先写临时文件再rename，任何时候被杀都只会看到完整的旧进度或者新进度。
+ * 空文件等于没有进度：删不掉的文件会被清空，不能指望进程退出的时候再删（Android上进程是被杀掉的）。
+ */
+final class WorkCheckpoints {
+    private final File mDir;
+
+    WorkCheckpoints(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * @return 保存过的进度，没有的话返回null
+     */
+    byte[] load(int jobId, int workId) throws IOException {
+        File file = fileOf(jobId, workId);
+        if (!file.isFile() || file.length() == 0) {
+            return null;
+        }
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] token = new byte[(int) file.length()];
+            int read = 0;
+            while (read < token.length) {
+                int n = in.read(token, read, token.length - read);
+                if (n < 0) {
+                    throw new IOException("Truncated checkpoint " + file);
+                }
+                read += n;
+            }
+            return token;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 会fsync，请不要在主线程调用
+     */
+    void save(int jobId, int workId, byte[] token) throws IOException {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("Can't create " + mDir);
+        }
+        File file = fileOf(jobId, workId);
+        File tmp = new File(mDir, file.getName() + ".tmp");
+        boolean saved = false;
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(token);
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Can't rename " + tmp + " to " + file);
+            }
+            saved = true;
+        } finally {
+            if (!saved) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * 没有进度的时候只是一次stat
+     */
+    void delete(int jobId, int workId) {
+        File file = fileOf(jobId, workId);
+        if (file.exists() && !file.delete()) {
+            // 删不掉的话至少让它读出来是空的，之后同一个id的任务不会从这份进度开始
+            try {
+                new FileOutputStream(file).close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private File fileOf(int jobId, int workId) {
+        return new File(mDir, jobId + "-" + workId);
+    }
+}
@@ -0,0 +1,118 @@
+package com.allan.services;
+
+import android.content.Intent;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 死信：用完了重试次数还是失败的任务。有上限，满了以后丢掉最早的，所以一直失败的任务不会把内存撑大。
+ *
+ * 只在内存里，进程死了就没有了；需要持久化的话在服务的onWorkFailed里面自己记下来。
+ */
+public final class WorkDeadLetters {
+    static final int DEFAULT_CAPACITY = 64;
+
+    public static final class Entry {
+        @NonNull
+        public final Intent intent;
+        @NonNull
+        public final Throwable error;
+        /**
+         * 一共执行了几次
+         */
+        public final int attempts;
+        /**
+         * 放进死信的时间，System.currentTimeMillis()
+         */
+        public final long time;
+
+        Entry(Intent intent, Throwable error, int attempts, long time) {
+            this.intent = intent;
+            this.error = error;
+            this.attempts = attempts;
+            this.time = time;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{attempts=" + attempts + ", error=" + error + ", intent=" + intent + "}";
+        }
+    }
+
+    private final int mCapacity;
+    // 以下由this保护
+    private final ArrayDeque<Entry> mEntries = new ArrayDeque<>();
+    private long mTotal;
+    private long mEvicted;
+
+    WorkDeadLetters(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be > 0, but " + capacity);
+        }
+        mCapacity = capacity;
+    }
+
+    synchronized void add(Intent intent, Throwable error, int attempts) {
+        if (mEntries.size() >= mCapacity) {
+            mEntries.poll();
+            mEvicted++;
+        }
+        mEntries.add(new Entry(intent, error, attempts, System.currentTimeMillis()));
+        mTotal++;
+    }
+
+    /**
+     * 取出最早的一条，比如修好了问题以后重新排队
+     *
+     * @return 没有的话返回null
+     */
+    @Nullable
+    public synchronized Entry poll() {
+        return mEntries.poll();
+    }
+
+    /**
+     * @return 目前所有的死信，从旧到新
+     */
+    @NonNull
+    public synchronized List<Entry> snapshot() {
+        return new ArrayList<>(mEntries);
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return 一共放进来过多少条
+     */
+    public synchronized long getTotalCount() {
+        return mTotal;
+    }
+
+    /**
+     * @return 因为满了被丢掉的条数
+     */
+    public synchronized long getEvictedCount() {
+        return mEvicted;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "WorkDeadLetters{size=" + mEntries.size() + "/" + mCapacity + ", total=" + mTotal
+                + ", evicted=" + mEvicted + "}";
+    }
+}
@@ -0,0 +1,400 @@
+package com.allan.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 不依赖Android框架的任务分发引擎：从{@link Source}取任务，在{@link Executor}上最多同时跑maxWorkers个worker，
+ * 可以按批处理，并通过{@link Callback}通知处理的开始和结束。
+ *
+ * 几个Service只是它的适配层：任务从哪里来（mCompatQueue或者JobParameters）、怎么complete、wakelock怎么拿，
+ * 都由Service自己决定。Executor和Clock都可以替换，所以在JVM上用假的调度器和时钟就能高速驱动它。
+ *
+ * 有新任务的时候调用{@link #signal()}。worker取空队列以后，如果期间又有signal，会再取一轮，不会漏掉任务。
+ */
+final class WorkEngine<W> {
+    /**
+     * 任务的来源，必须是线程安全的
+     */
+    interface Source<W> {
+        /**
+         * @return 下一个任务，没有的话返回null
+         */
+        W poll();
+    }
+
+    /**
+     * 生命周期回调。onHandleWork/onHandleWorkBatch在worker线程调用，其余的在引擎锁里面调用，请不要在里面做耗时操作。
+     */
+    interface Callback<W> {
+        /**
+         * 从没有worker变为有worker
+         */
+        void onProcessingStarted();
+
+        void onHandleWork(W work);
+
+        /**
+         * 只在打开了批量模式的时候调用，见{@link #setBatching(int, long)}
+         */
+        void onHandleWorkBatch(List<W> batch);
+
+        /**
+         * 所有worker都退出了。{@link #shutdown()}以后不再回调。
+         */
+        void onProcessingFinished();
+    }
+
+    interface Clock {
+        long uptimeMillis();
+
+        void sleep(long millis);
+    }
+
+    static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long uptimeMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+        }
+
+        @Override
+        public void sleep(long millis) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    };
+
+    static final long BATCH_LINGER_POLL_MILLIS = 5;
+
+    /**
+     * 整个进程共用的定时器，一个线程：延时任务和重试都在这里等，不占worker线程
+     */
+    private static volatile ScheduledThreadPoolExecutor sTimer;
+
+    private final Source<W> mSource;
+    private final Callback<W> mCallback;
+    private final Object mLock = new Object();
+    // worker本身没有状态，所有worker共用一个Runnable，重启的时候不需要再分配
+    private final Runnable mWorker = new Runnable() {
+        @Override
+        public void run() {
+            runWorker();
+        }
+    };
+
+    // 以下由mLock保护（mShutdown只在锁里面写）
+    private Executor mExecutor;
+    private int mMaxWorkers = 1;
+    private int mActiveWorkers;
+    private boolean mDrainRequested;
+    private volatile boolean mShutdown;
+    private final ArrayList<Thread> mWorkerThreads = new ArrayList<>(1);
+
+    private volatile int mMaxWorkPerRun = Integer.MAX_VALUE;
+    private volatile int mMaxBatchSize = 1;
+    private volatile long mBatchLingerMillis;
+    private volatile boolean mCancelled;
+    private volatile Clock mClock = SYSTEM_CLOCK;
+
+    WorkEngine(Source<W> source, Callback<W> callback, Executor executor) {
+        mSource = source;
+        mCallback = callback;
+        mExecutor = executor;
+    }
+
+    void setExecutor(Executor executor) {
+        synchronized (mLock) {
+            mExecutor = executor;
+        }
+    }
+
+    void setMaxWorkers(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be > 0, but " + workers);
+        }
+        synchronized (mLock) {
+            mMaxWorkers = workers;
+        }
+    }
+
+    int getMaxWorkers() {
+        synchronized (mLock) {
+            return mMaxWorkers;
+        }
+    }
+
+    /**
+     * 每个worker一次最多处理多少个任务，到了以后把自己重新交给executor，排在executor里的别的任务可以先跑。
+     * 比如executor是主线程Handler的时候设为1，每个任务就是单独的一条消息，不会一条消息把整个队列跑完。默认不限制。
+     */
+    void setMaxWorkPerRun(int maxWork) {
+        if (maxWork < 1) {
+            throw new IllegalArgumentException("maxWork must be > 0, but " + maxWork);
+        }
+        mMaxWorkPerRun = maxWork;
+    }
+
+    int getMaxBatchSize() {
+        return mMaxBatchSize;
+    }
+
+    /**
+     * @param maxBatchSize 每一批最多多少个任务；1表示关闭批量模式（默认）
+     * @param lingerMillis 一批取不满的时候，最多再等多久凑一批
+     */
+    void setBatching(int maxBatchSize, long lingerMillis) {
+        if (maxBatchSize < 1 || lingerMillis < 0) {
+            throw new IllegalArgumentException("Illegal batching: " + maxBatchSize + ", " + lingerMillis);
+        }
+        mMaxBatchSize = maxBatchSize;
+        mBatchLingerMillis = lingerMillis;
+    }
+
+    void setClock(Clock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * 有新任务了：worker不够就再起一个，否则让正在跑的worker取空以后再取一轮。同时清掉之前的cancel。
+     */
+    void signal() {
+        synchronized (mLock) {
+            if (mShutdown) {
+                return;
+            }
+            mCancelled = false;
+            if (mActiveWorkers < mMaxWorkers) {
+                startWorkerLocked();
+            } else {
+                mDrainRequested = true;
+            }
+        }
+    }
+
+    /**
+     * 标记取消：正在凑批的worker会马上交出手上的这一批。
+     *
+     * @param mayInterruptIfRunning 是否同时打断正在执行任务的worker线程
+     */
+    void cancel(boolean mayInterruptIfRunning) {
+        mCancelled = true;
+        if (mayInterruptIfRunning) {
+            synchronized (mLock) {
+                for (int i = 0; i < mWorkerThreads.size(); i++) {
+                    mWorkerThreads.get(i).interrupt();
+                }
+            }
+        }
+    }
+
+    boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * 之后不再启动新的worker，也不再回调onProcessingFinished；正在跑的worker取完当前任务就退出。
+     */
+    void shutdown() {
+        synchronized (mLock) {
+            mShutdown = true;
+            mDrainRequested = false;
+        }
+    }
+
+    private void runWorker() {
+        synchronized (mLock) {
+            mWorkerThreads.add(Thread.currentThread());
+        }
+        boolean exited = false;
+        try {
+            while (true) {
+                boolean yielded = mMaxBatchSize > 1 ? drainBatches() : drain();
+                synchronized (mLock) {
+                    if (yielded && !mShutdown) {
+                        // 还没有取空，让出线程：同一个worker重新排到executor的最后
+                        exited = true;
+                        resubmitWorkerLocked();
+                        return;
+                    }
+                    // 取空的同时又来了signal，再取一轮；检查和退出必须在同一把锁里，否则会漏掉signal
+                    if (mDrainRequested && !mShutdown) {
+                        mDrainRequested = false;
+                        continue;
+                    }
+                    exitWorkerLocked();
+                    exited = true;
+                    return;
+                }
+            }
+        } finally {
+            if (!exited) {
+                synchronized (mLock) {
+                    if (mShutdown) {
+                        exitWorkerLocked();
+                    } else {
+                        // 任务抛了异常（包括Error），worker中途退出了。队列里可能还有任务，不管有没有欠着signal，
+                        // 都让这个worker重新排一次接着取，取空了它自己会退出
+                        mDrainRequested = false;
+                        resubmitWorkerLocked();
+                    }
+                }
+            }
+        }
+    }
+
+    private void startWorkerLocked() {
+        if (mActiveWorkers == 0) {
+            mCallback.onProcessingStarted();
+        }
+        mActiveWorkers++;
+        try {
+            mExecutor.execute(mWorker);
+        } catch (RuntimeException e) {
+            // 比如RejectedExecutionException：这个worker没有起来，不能一直算在mActiveWorkers里
+            workerGoneLocked();
+            throw e;
+        }
+    }
+
+    /**
+     * 同一个worker重新交给executor，worker的数量不变
+     */
+    private void resubmitWorkerLocked() {
+        mWorkerThreads.remove(Thread.currentThread());
+        try {
+            mExecutor.execute(mWorker);
+        } catch (RuntimeException e) {
+            workerGoneLocked();
+            throw e;
+        }
+    }
+
+    private void exitWorkerLocked() {
+        mWorkerThreads.remove(Thread.currentThread());
+        workerGoneLocked();
+    }
+
+    private void workerGoneLocked() {
+        mActiveWorkers--;
+        if (mActiveWorkers == 0 && !mShutdown) {
+            mCallback.onProcessingFinished();
+        }
+    }
+
+    /**
+     * @return true表示处理到了mMaxWorkPerRun个任务，worker应该让出线程
+     */
+    private boolean drain() {
+        final int maxWork = mMaxWorkPerRun;
+        int handled = 0;
+        W work;
+        while (!mShutdown && (work = mSource.poll()) != null) {
+            mCallback.onHandleWork(work);
+            if (++handled >= maxWork) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 一次取出最多mMaxBatchSize个任务交给onHandleWorkBatch；取不满的时候最多再等mBatchLingerMillis。
+     *
+     * @return true表示处理到了mMaxWorkPerRun个任务，worker应该让出线程
+     */
+    private boolean drainBatches() {
+        final int maxWork = mMaxWorkPerRun;
+        int handled = 0;
+        final int maxBatchSize = mMaxBatchSize;
+        final long lingerMillis = mBatchLingerMillis;
+        final Clock clock = mClock;
+        ArrayList<W> batch = new ArrayList<>(maxBatchSize);
+        W work;
+
+        while (!mShutdown && (work = mSource.poll()) != null) {
+            batch.add(work);
+            long deadline = clock.uptimeMillis() + lingerMillis;
+            while (batch.size() < maxBatchSize) {
+                W next = mSource.poll();
+                if (next != null) {
+                    batch.add(next);
+                    continue;
+                }
+                long remaining = deadline - clock.uptimeMillis();
+                if (remaining <= 0 || mCancelled) {
+                    break;
+                }
+                clock.sleep(Math.min(remaining, BATCH_LINGER_POLL_MILLIS));
+            }
+            mCallback.onHandleWorkBatch(batch);
+            handled += batch.size();
+            batch.clear();
+            if (handled >= maxWork) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 给worker线程起名字，方便看trace。
+     */
+    static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, name + "-" + mCount.incrementAndGet());
+            }
+        };
+    }
+
+    /**
+     * 固定workers个线程的线程池，给setMaxWorkers用。线程数可以用{@link #resizePool(ThreadPoolExecutor, int)}改。
+     */
+    static ThreadPoolExecutor newWorkerPool(String name, int workers) {
+        return new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), newThreadFactory(name));
+    }
+
+    /**
+     * 改线程数，已经在跑的任务不受影响；变小的时候多出来的线程做完手上的任务以后退出。
+     */
+    static void resizePool(ThreadPoolExecutor pool, int workers) {
+        // core不能大于max，所以变大的时候先改max，变小的时候先改core
+        if (workers > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(workers);
+            pool.setCorePoolSize(workers);
+        } else {
+            pool.setCorePoolSize(workers);
+            pool.setMaximumPoolSize(workers);
+        }
+    }
+
+    static ScheduledThreadPoolExecutor getTimer() {
+        ScheduledThreadPoolExecutor timer = sTimer;
+        if (timer == null) {
+            synchronized (WorkEngine.class) {
+                timer = sTimer;
+                if (timer == null) {
+                    timer = new ScheduledThreadPoolExecutor(1, newThreadFactory("WorkEngine-timer"));
+                    // cancel以后马上从队列里面移除，取消很多的时候队列不会越积越大
+                    timer.setRemoveOnCancelPolicy(true);
+                    sTimer = timer;
+                }
+            }
+        }
+        return timer;
+    }
+}
@@ -0,0 +1,209 @@
+package com.allan.services;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 几个服务共用的执行后端。默认每个服务各用各的线程：BelowOJobIntentService在AsyncTask.THREAD_POOL_EXECUTOR上，
+ * JobIntentXService一个常驻线程，AutoStopService一个小线程池，服务多了以后整个进程的线程数就控制不住了。
+ *
+ * 在Application.onCreate里面选一个后端，通过各个服务的setWorkExecutor（AutoStopService是setAsyncExecutor）交给它们，
+ * 线程就只有这里的这些。每个服务最多同时占几个线程由它自己决定：JobIntentService系列是maxWorkers，
+ * 其他的可以用{@link #limit(Executor, int)}包一层。
+ */
+public final class WorkExecutors {
+    private static final int POOL_SIZE = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+    private static volatile ThreadPoolExecutor sShared;
+    private static volatile ForkJoinPool sForkJoin;
+    private static Executor sVirtualThreads;
+    private static boolean sVirtualThreadsProbed;
+
+    private WorkExecutors() {
+    }
+
+    /**
+     * 有上限的共享线程池，线程数和CPU核数相当，空闲的线程会自己回收。onHandleWork里面阻塞的时间比较多的话，
+     * 服务的maxWorkers之和最好不要超过这里的线程数，否则多出来的worker只能排队。
+     */
+    @NonNull
+    public static Executor shared() {
+        ThreadPoolExecutor executor = sShared;
+        if (executor == null) {
+            synchronized (WorkExecutors.class) {
+                executor = sShared;
+                if (executor == null) {
+                    executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 30, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<Runnable>(), WorkEngine.newThreadFactory("WorkExecutors-shared"));
+                    executor.allowCoreThreadTimeOut(true);
+                    sShared = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * work-stealing的线程池，按FIFO执行（asyncMode）。任务都比较短、或者会再派生小任务的时候，线程之间互相偷任务，
+     * 比共用一个队列的竞争小；不适合长时间阻塞的任务。
+     */
+    @NonNull
+    public static Executor forkJoin() {
+        ForkJoinPool pool = sForkJoin;
+        if (pool == null) {
+            synchronized (WorkExecutors.class) {
+                pool = sForkJoin;
+                if (pool == null) {
+                    pool = new ForkJoinPool(POOL_SIZE, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                            ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {
+                            };
+                            thread.setName("WorkExecutors-fj-" + mCount.incrementAndGet());
+                            return thread;
+                        }
+                    }, null, true);
+                    sForkJoin = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * 每个任务一个虚拟线程，阻塞不占平台线程。
+     *
+     * @return 运行时不支持虚拟线程的话（目前的Android和JDK 21以前都不支持）返回{@link #shared()}，
+     * 需要区分的话先用{@link #isVirtualThreadsSupported()}判断
+     */
+    @NonNull
+    public static Executor virtualThreads() {
+        Executor executor = probeVirtualThreads();
+        return executor != null ? executor : shared();
+    }
+
+    public static boolean isVirtualThreadsSupported() {
+        return probeVirtualThreads() != null;
+    }
+
+    @Nullable
+    private static synchronized Executor probeVirtualThreads() {
+        if (!sVirtualThreadsProbed) {
+            sVirtualThreadsProbed = true;
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                sVirtualThreads = (Executor) factory.invoke(null);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                sVirtualThreads = null;
+            }
+        }
+        return sVirtualThreads;
+    }
+
+    /**
+     * 最多同时在backend上跑maxConcurrency个任务，多出来的在这里按顺序排队。
+     * 一个任务结束以后，下一个任务重新提交给backend，而不是占着这个线程接着跑，所以共用backend的其他服务也能轮到。
+     */
+    @NonNull
+    public static Executor limit(@NonNull Executor backend, int maxConcurrency) {
+        return new LimitedExecutor(backend, maxConcurrency);
+    }
+
+    static final class LimitedExecutor implements Executor {
+        private final Executor mBackend;
+        private final int mMaxConcurrency;
+        // 以下由this保护
+        private final ArrayDeque<Runnable> mQueue = new ArrayDeque<>();
+        private int mRunning;
+
+        LimitedExecutor(Executor backend, int maxConcurrency) {
+            if (maxConcurrency < 1) {
+                throw new IllegalArgumentException("maxConcurrency must be > 0, but " + maxConcurrency);
+            }
+            mBackend = backend;
+            mMaxConcurrency = maxConcurrency;
+        }
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            synchronized (this) {
+                mQueue.add(command);
+            }
+            try {
+                pump();
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    if (!mQueue.removeLastOccurrence(command)) {
+                        // command已经交出去了，被拒绝的是排在后面的别的任务，它还在队列里
+                        return;
+                    }
+                }
+                // 调用方看到了异常，它的任务就不能再执行
+                throw e;
+            }
+        }
+
+        /**
+         * 有空的名额就按顺序把排着的任务交给backend
+         */
+        private void pump() {
+            while (true) {
+                Runnable next;
+                synchronized (this) {
+                    if (mRunning >= mMaxConcurrency || (next = mQueue.poll()) == null) {
+                        return;
+                    }
+                    mRunning++;
+                }
+                try {
+                    mBackend.execute(new Task(next));
+                } catch (RuntimeException e) {
+                    // backend拒绝了（比如已经shutdown）：让出名额，任务放回队头，下一次execute的时候再试。
+                    // 不让出的话名额一直被占着，后面的任务永远排不上
+                    synchronized (this) {
+                        mRunning--;
+                        mQueue.addFirst(next);
+                    }
+                    throw e;
+                }
+            }
+        }
+
+        synchronized int getQueuedCount() {
+            return mQueue.size();
+        }
+
+        private final class Task implements Runnable {
+            private final Runnable mCommand;
+
+            Task(Runnable command) {
+                mCommand = command;
+            }
+
+            @Override
+            public void run() {
+                try {
+                    mCommand.run();
+                } finally {
+                    synchronized (LimitedExecutor.this) {
+                        mRunning--;
+                    }
+                    pump();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package com.allan.services;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * 不依赖Android的追加写日志，记录已经排队、还没有完成的任务，进程被杀以后可以从这里恢复。
+ *
+ * 文件通过mmap映射进来，追加一条记录只是往映射的内存里写几个字段，进程被杀的时候这些页还在内核里，不会丢；
+ * 防掉电的force()由后台线程合并成一次（group commit），不在入队的路径上做。
+ *
+ * 记录的格式：[type:1][id:8][length:4][payload:length][crc32:4]，每条记录后面紧跟一个0字节作为结尾，
+ * 重放的时候遇到0字节、crc不对（写了一半）或者越界就停下来。
+ * 所有任务都完成以后写位置直接回到文件头；用掉一半以后由后台线程把还活着的记录拷贝到新文件，再rename替换。
+ *
+ * 同一个文件在进程里只有一个实例，用{@link #open(File)}拿、{@link #close()}还，最后一个close才真正关掉。
+ * 否则服务重建的时候新旧两个实例会各自往同一个文件里写，压缩的时候还会把对方的文件rename掉。
+ */
+final class WorkJournal implements Closeable {
+    private static final int MAGIC = 0x574A524E;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_OVERHEAD = 1 + 8 + 4 + 4;
+
+    private static final byte TYPE_END = 0;
+    private static final byte TYPE_ADD = 1;
+    private static final byte TYPE_DONE = 2;
+
+    static final int DEFAULT_CAPACITY = 64 * 1024;
+    /**
+     * 最多攒这么久再force一次
+     */
+    static final long FLUSH_DELAY_MILLIS = 50;
+
+    /**
+     * 进程里打开着的日志，由WorkJournal.class保护
+     */
+    private static final HashMap<File, WorkJournal> sOpen = new HashMap<>();
+
+    private final File mFile;
+    private final int mMinCapacity;
+    private final CRC32 mCrc = new CRC32();
+    private final ScheduledExecutorService mFlusher;
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+    private final Runnable mCompact = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (WorkJournal.this) {
+                mCompactScheduled = false;
+                if (mClosed || mTail <= mBuffer.capacity() / 2) {
+                    return;
+                }
+                try {
+                    compactLocked();
+                } catch (IOException e) {
+                    // 下一次写满一半的时候再试；在那之前的记录照常写在旧文件里
+                    mCompactFailed = true;
+                }
+            }
+        }
+    };
+
+    // 以下由WorkJournal.class保护
+    private int mRefs = 1;
+
+    // 以下由this保护
+    private MappedByteBuffer mBuffer;
+    private int mTail;
+    private long mNextId = 1;
+    // id -> 记录在文件里的位置，按追加的顺序
+    private final LinkedHashMap<Long, Integer> mLive = new LinkedHashMap<>();
+    // 这个进程里已经交给队列的id，避免同一条记录被执行两次
+    private final HashSet<Long> mClaimed = new HashSet<>();
+    private boolean mFlushScheduled;
+    private boolean mCompactScheduled;
+    private boolean mCompactFailed;
+    private boolean mClosed;
+
+    /**
+     * 打开一个日志，这个文件在进程里已经打开了的话返回同一个实例。每次open都要对应一次{@link #close()}。
+     */
+    static WorkJournal open(File file) throws IOException {
+        return open(file, DEFAULT_CAPACITY);
+    }
+
+    static WorkJournal open(File file, int minCapacity) throws IOException {
+        File key = file.getCanonicalFile();
+        synchronized (WorkJournal.class) {
+            WorkJournal journal = sOpen.get(key);
+            if (journal != null) {
+                journal.mRefs++;
+                return journal;
+            }
+            journal = new WorkJournal(key, minCapacity);
+            sOpen.put(key, journal);
+            return journal;
+        }
+    }
+
+    private WorkJournal(File file, int minCapacity) throws IOException {
+        mFile = file;
+        mMinCapacity = Math.max(minCapacity, HEADER_SIZE + RECORD_OVERHEAD + 1);
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        ScheduledThreadPoolExecutor flusher = new ScheduledThreadPoolExecutor(1,
+                WorkEngine.newThreadFactory("WorkJournal-flush"));
+        flusher.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        mFlusher = flusher;
+        synchronized (this) {
+            mBuffer = map(file, (int) Math.max(mMinCapacity, Math.min(file.length(), Integer.MAX_VALUE)));
+            replayLocked();
+            // 去掉已经完成的记录，顺便把写了一半的尾巴清掉
+            compactLocked();
+        }
+    }
+
+    /**
+     * @return 重放出来、还没有完成的记录id，按追加的顺序
+     */
+    synchronized List<Long> liveIds() {
+        return new ArrayList<>(mLive.keySet());
+    }
+
+    /**
+     * @return 记录的内容；已经完成的话返回null
+     */
+    synchronized byte[] read(long id) {
+        Integer offset = mLive.get(id);
+        if (offset == null) {
+            return null;
+        }
+        int length = mBuffer.getInt(offset + 9);
+        byte[] payload = new byte[length];
+        copy(mBuffer, offset + 13, payload, length);
+        return payload;
+    }
+
+    /**
+     * 追加一条记录，它同时被认为已经交给了队列，见{@link #claim(long)}。
+     * 在入队的线程（一般是主线程）调用，所以这里不做压缩也不force，都交给后台线程。
+     *
+     * @return 记录的id，总是大于0
+     * @throws IOException 日志已经关了，或者后台还没来得及压缩、文件写满了；这个任务只存在内存里
+     */
+    synchronized long append(byte[] payload) throws IOException {
+        if (mClosed) {
+            throw new IOException("Journal " + mFile + " is closed");
+        }
+        int size = RECORD_OVERHEAD + payload.length;
+        if (mTail + size + 1 > mBuffer.capacity()) {
+            scheduleCompactLocked();
+            throw new IOException("Journal " + mFile + " is full");
+        }
+        long id = mNextId++;
+        int offset = mTail;
+        mCrc.reset();
+        mCrc.update(TYPE_ADD);
+        updateCrc(id);
+        updateCrc(payload.length);
+        mCrc.update(payload, 0, payload.length);
+        mBuffer.position(offset + 1);
+        mBuffer.putLong(id);
+        mBuffer.putInt(payload.length);
+        mBuffer.put(payload);
+        mBuffer.putInt((int) mCrc.getValue());
+        mBuffer.put(TYPE_END);
+        // type最后写，写了一半的记录在重放的时候看起来就是结尾
+        mBuffer.put(offset, TYPE_ADD);
+        mTail = offset + size;
+        mLive.put(id, offset);
+        mClaimed.add(id);
+        scheduleFlushLocked();
+        scheduleCompactLocked();
+        return id;
+    }
+
+    /**
+     * 把一条重放出来的记录交给队列。
+     *
+     * @return false表示它已经完成了，或者这个进程里已经交过一次了，不要再执行
+     */
+    synchronized boolean claim(long id) {
+        return mLive.containsKey(id) && mClaimed.add(id);
+    }
+
+    /**
+     * 记录完成。所有记录都完成以后写位置回到文件头，文件不会一直长下去。
+     */
+    synchronized void remove(long id) {
+        mClaimed.remove(id);
+        if (mClosed || mLive.remove(id) == null) {
+            // 关掉以后不能再写：这条记录会在下一次打开的时候重放，任务至少执行一次
+            return;
+        }
+        if (mLive.isEmpty()) {
+            mBuffer.put(HEADER_SIZE, TYPE_END);
+            mTail = HEADER_SIZE;
+            scheduleFlushLocked();
+            return;
+        }
+        if (mTail + RECORD_OVERHEAD + 1 > mBuffer.capacity()) {
+            // 写不下DONE了：后台压缩以后这条记录就不在文件里了；在那之前被杀的话它会被重放
+            scheduleCompactLocked();
+            return;
+        }
+        int offset = mTail;
+        mCrc.reset();
+        mCrc.update(TYPE_DONE);
+        updateCrc(id);
+        updateCrc(0);
+        mBuffer.position(offset + 1);
+        mBuffer.putLong(id);
+        mBuffer.putInt(0);
+        mBuffer.putInt((int) mCrc.getValue());
+        mBuffer.put(TYPE_END);
+        mBuffer.put(offset, TYPE_DONE);
+        mTail = offset + RECORD_OVERHEAD;
+        scheduleFlushLocked();
+        scheduleCompactLocked();
+    }
+
+    /**
+     * 还掉一次{@link #open(File)}。最后一个close以后不再接受写入，在后台线程最后force一次。
+     */
+    @Override
+    public void close() {
+        synchronized (WorkJournal.class) {
+            if (--mRefs > 0) {
+                return;
+            }
+            sOpen.remove(mFile);
+        }
+        synchronized (this) {
+            mClosed = true;
+        }
+        // shutdown之前已经提交的任务仍然会执行，还没到时间的延时任务被丢掉
+        mFlusher.execute(mFlush);
+        mFlusher.shutdown();
+    }
+
+    private void flush() {
+        MappedByteBuffer buffer;
+        synchronized (this) {
+            mFlushScheduled = false;
+            buffer = mBuffer;
+        }
+        // force可能要几毫秒，不能挡着append
+        buffer.force();
+    }
+
+    private void scheduleFlushLocked() {
+        if (!mFlushScheduled && !mClosed) {
+            mFlushScheduled = true;
+            mFlusher.schedule(mFlush, FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 用掉一半以后让后台线程压缩，压缩以后至少还有一半是空的，入队的线程一般不会碰到写满
+     */
+    private void scheduleCompactLocked() {
+        if (mCompactScheduled || mClosed || mTail <= mBuffer.capacity() / 2) {
+            return;
+        }
+        if (mCompactFailed) {
+            // 上一次失败了，等写满的时候再试，不要每次写都试一遍
+            if (mTail + RECORD_OVERHEAD + 1 <= mBuffer.capacity()) {
+                return;
+            }
+            mCompactFailed = false;
+        }
+        mCompactScheduled = true;
+        mFlusher.execute(mCompact);
+    }
+
+    private void replayLocked() {
+        MappedByteBuffer buffer = mBuffer;
+        mLive.clear();
+        mTail = HEADER_SIZE;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            return;
+        }
+        int limit = buffer.capacity();
+        int pos = HEADER_SIZE;
+        byte[] scratch = new byte[0];
+        while (pos + RECORD_OVERHEAD <= limit) {
+            byte type = buffer.get(pos);
+            if (type != TYPE_ADD && type != TYPE_DONE) {
+                break;
+            }
+            long id = buffer.getLong(pos + 1);
+            int length = buffer.getInt(pos + 9);
+            if (length < 0 || length > limit - pos - RECORD_OVERHEAD) {
+                break;
+            }
+            if (scratch.length < length) {
+                scratch = new byte[length];
+            }
+            copy(buffer, pos + 13, scratch, length);
+            mCrc.reset();
+            mCrc.update(type);
+            updateCrc(id);
+            updateCrc(length);
+            mCrc.update(scratch, 0, length);
+            if ((int) mCrc.getValue() != buffer.getInt(pos + 13 + length)) {
+                break;
+            }
+            if (type == TYPE_ADD) {
+                mLive.put(id, pos);
+            } else {
+                mLive.remove(id);
+            }
+            mNextId = Math.max(mNextId, id + 1);
+            pos += RECORD_OVERHEAD + length;
+        }
+        mTail = pos;
+    }
+
+    /**
+     * 把还活着的记录拷贝到一个新文件，force以后rename替换旧文件，这样任何时候被杀都有一个完整的文件。
+     * 新文件至少是活着的记录的两倍大，压缩完用掉的不超过一半。
+     */
+    private void compactLocked() throws IOException {
+        MappedByteBuffer old = mBuffer;
+        int liveBytes = 0;
+        for (Map.Entry<Long, Integer> entry : mLive.entrySet()) {
+            liveBytes += RECORD_OVERHEAD + old.getInt(entry.getValue() + 9);
+        }
+        int needed = HEADER_SIZE + liveBytes + 1;
+        int capacity = mMinCapacity;
+        while (capacity < needed * 2 && capacity < Integer.MAX_VALUE / 2) {
+            capacity <<= 1;
+        }
+
+        File tmp = new File(mFile.getPath() + ".tmp");
+        MappedByteBuffer buffer = map(tmp, capacity);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        int pos = HEADER_SIZE;
+        for (Iterator<Map.Entry<Long, Integer>> it = mLive.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Long, Integer> entry = it.next();
+            int from = entry.getValue();
+            int size = RECORD_OVERHEAD + old.getInt(from + 9);
+            ByteBuffer src = old.duplicate();
+            src.limit(from + size).position(from);
+            ByteBuffer dst = buffer.duplicate();
+            dst.position(pos);
+            dst.put(src);
+            entry.setValue(pos);
+            pos += size;
+        }
+        buffer.put(pos, TYPE_END);
+        buffer.force();
+        if (!tmp.renameTo(mFile)) {
+            throw new IOException("Can't rename " + tmp + " to " + mFile);
+        }
+        mBuffer = buffer;
+        mTail = pos;
+    }
+
+    private void updateCrc(long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            mCrc.update((int) (value >>> shift));
+        }
+    }
+
+    private void updateCrc(int value) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            mCrc.update(value >>> shift);
+        }
+    }
+
+    /**
+     * 从buffer的offset处整块拷贝length个字节，不动buffer本身的position
+     */
+    private static void copy(ByteBuffer buffer, int offset, byte[] to, int length) {
+        ByteBuffer src = buffer.duplicate();
+        src.position(offset);
+        src.get(to, 0, length);
+    }
+
+    private static MappedByteBuffer map(File file, int capacity) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(capacity);
+            // 映射在channel关闭以后仍然有效
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.allan.services;
+
+import android.content.Intent;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 一个服务的任务统计：收到了多少、排队等了多久、处理花了多久、被重新投递了多少次。
+ *
+ * 默认不打开，服务里面只有一次null判断；打开以后每个任务多两三次原子操作，没有锁也没有分配。
+ * 可以通过{@link #snapshot()}取一份快照，或者设置{@link Listener}拿到每个任务的时间点，
+ * 也可以直接用adb shell dumpsys activity service &lt;服务名&gt;看。
+ *
+ * 所有时间都是{@link SystemClock#elapsedRealtime()}，单位毫秒。
+ */
+public final class WorkMetrics {
+    /**
+     * long类型的extra，任务被enqueueWork的时间。只在有服务打开了统计以后才会写，服务取出来以后会删掉它，
+     * 所以onHandleWork里面看不到。
+     */
+    public static final String EXTRA_ENQUEUE_TIME = "com.allan.services.extra.ENQUEUE_TIME";
+
+    /**
+     * 进程里面有任何一个服务打开过统计，enqueueWork就开始给任务打上时间，
+     * 这样才能算上在JobScheduler或者startService路上等的时间。
+     */
+    static volatile boolean sStampEnqueueTime;
+
+    /**
+     * 直方图按2的幂分桶：第0个桶是0ms，第i个桶是[2^(i-1), 2^i)ms，最后一个桶放所有更大的值。
+     */
+    static final int BUCKETS = 24;
+
+    public interface Listener {
+        /**
+         * 每个任务处理完以后在worker线程回调，请不要在里面做耗时操作。
+         *
+         * @param enqueueTime 排队的时间，不知道的时候是0（比如打开统计之前就已经排队了）
+         * @param startTime 开始处理的时间
+         * @param completeTime 处理完的时间；批量模式下一批任务的开始和结束时间是相同的
+         */
+        void onWorkCompleted(@NonNull Intent intent, long enqueueTime, long startTime, long completeTime);
+    }
+
+    private final AtomicLong mReceived = new AtomicLong();
+    private final AtomicLong mCoalesced = new AtomicLong();
+    private final AtomicLong mStarted = new AtomicLong();
+    private final AtomicLong mDiscarded = new AtomicLong();
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final AtomicLong mRedelivered = new AtomicLong();
+    private final Recorder mWaitTime = new Recorder();
+    private final Recorder mServiceTime = new Recorder();
+    private volatile Listener mListener;
+
+    WorkMetrics() {
+        sStampEnqueueTime = true;
+    }
+
+    public void setListener(@Nullable Listener listener) {
+        mListener = listener;
+    }
+
+    @NonNull
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    static long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * 取出并删掉enqueueWork打上的时间。
+     *
+     * @return 没有打时间的话返回0
+     */
+    static long takeEnqueueTime(@NonNull Intent intent) {
+        long time = intent.getLongExtra(EXTRA_ENQUEUE_TIME, 0);
+        if (time != 0) {
+            intent.removeExtra(EXTRA_ENQUEUE_TIME);
+        }
+        return time;
+    }
+
+    /**
+     * enqueueWork的时候调用，work必须是已经复制过的intent，不能改调用方的对象。
+     */
+    static void stampEnqueueTime(@NonNull Intent work) {
+        if (sStampEnqueueTime) {
+            work.putExtra(EXTRA_ENQUEUE_TIME, now());
+        }
+    }
+
+    /**
+     * 服务收到了一个任务
+     */
+    void onReceived(boolean redelivered) {
+        mReceived.incrementAndGet();
+        if (redelivered) {
+            mRedelivered.incrementAndGet();
+        }
+    }
+
+    /**
+     * 收到的任务被合并进了还在排队的任务
+     */
+    void onCoalesced() {
+        mCoalesced.incrementAndGet();
+    }
+
+    /**
+     * 收到的任务没有执行就离开了服务：tag被取消了、容量满了被丢掉，或者job停止以后等着重新投递
+     */
+    void onDiscarded(int count) {
+        mDiscarded.addAndGet(count);
+    }
+
+    void onStarted(long enqueueTime, long startTime) {
+        mStarted.incrementAndGet();
+        if (enqueueTime != 0) {
+            mWaitTime.record(startTime - enqueueTime);
+        }
+    }
+
+    void onCompleted(@NonNull Intent intent, long enqueueTime, long startTime, long completeTime) {
+        mCompleted.incrementAndGet();
+        mServiceTime.record(completeTime - startTime);
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onWorkCompleted(intent, enqueueTime, startTime, completeTime);
+        }
+    }
+
+    /**
+     * 无锁的直方图，各个字段之间不保证是同一时刻的值，统计用足够了。
+     */
+    private static final class Recorder {
+        final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        final AtomicLong mSum = new AtomicLong();
+        final AtomicLong mMax = new AtomicLong();
+
+        void record(long millis) {
+            if (millis < 0) {
+                // 跨过了重启的时间戳，没有意义
+                return;
+            }
+            mBuckets.incrementAndGet(bucketOf(millis));
+            mSum.addAndGet(millis);
+            long max;
+            while (millis > (max = mMax.get()) && !mMax.compareAndSet(max, millis)) {
+                // retry
+            }
+        }
+
+        static int bucketOf(long millis) {
+            int bucket = 64 - Long.numberOfLeadingZeros(millis);
+            return bucket < BUCKETS ? bucket : BUCKETS - 1;
+        }
+    }
+
+    /**
+     * 一个直方图的快照
+     */
+    public static final class Histogram {
+        public final long count;
+        public final long sumMillis;
+        public final long maxMillis;
+        private final long[] mBuckets;
+
+        Histogram(Recorder recorder) {
+            mBuckets = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                mBuckets[i] = recorder.mBuckets.get(i);
+                count += mBuckets[i];
+            }
+            this.count = count;
+            sumMillis = recorder.mSum.get();
+            maxMillis = recorder.mMax.get();
+        }
+
+        public long getMeanMillis() {
+            return count == 0 ? 0 : sumMillis / count;
+        }
+
+        /**
+         * @param percentile 0到100
+         * @return 这个分位数所在的桶的上界，精度是2倍以内
+         */
+        public long getPercentileMillis(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long target = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS - 1; i++) {
+                seen += mBuckets[i];
+                if (seen >= Math.max(target, 1)) {
+                    return Math.min(i == 0 ? 0 : (1L << i) - 1, maxMillis);
+                }
+            }
+            return maxMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + " mean=" + getMeanMillis() + "ms p50=" + getPercentileMillis(50)
+                    + "ms p90=" + getPercentileMillis(90) + "ms p99=" + getPercentileMillis(99)
+                    + "ms max=" + maxMillis + "ms";
+        }
+    }
+
+    /**
+     * 某一时刻的统计
+     */
+    public static final class Snapshot {
+        /**
+         * 服务收到的任务数，包括被合并掉的
+         */
+        public final long received;
+        public final long coalesced;
+        public final long completed;
+        public final long redelivered;
+        /**
+         * 没有执行就离开了服务的任务数，见{@link WorkMetrics#onDiscarded(int)}
+         */
+        public final long discarded;
+        /**
+         * 已经到了服务、还没开始处理的任务数。androidO以上不包括还在JobScheduler里面的任务。
+         */
+        public final long queueDepth;
+        /**
+         * 从enqueueWork（没有打时间的话是服务收到的时候）到开始处理
+         */
+        public final Histogram waitTime;
+        /**
+         * 处理的耗时
+         */
+        public final Histogram serviceTime;
+
+        Snapshot(WorkMetrics metrics) {
+            // 先读started和discarded再读received，并发的时候depth只会偏大不会是负数
+            long started = metrics.mStarted.get();
+            discarded = metrics.mDiscarded.get();
+            completed = metrics.mCompleted.get();
+            coalesced = metrics.mCoalesced.get();
+            received = metrics.mReceived.get();
+            redelivered = metrics.mRedelivered.get();
+            queueDepth = Math.max(0, received - coalesced - started - discarded);
+            waitTime = new Histogram(metrics.mWaitTime);
+            serviceTime = new Histogram(metrics.mServiceTime);
+        }
+
+        public void dump(@NonNull PrintWriter writer, @NonNull String prefix) {
+            writer.print(prefix);
+            writer.println("received=" + received + " coalesced=" + coalesced + " completed=" + completed
+                    + " redelivered=" + redelivered + " discarded=" + discarded + " queueDepth=" + queueDepth);
+            writer.print(prefix);
+            writer.println("wait: " + waitTime);
+            writer.print(prefix);
+            writer.println("service: " + serviceTime);
+        }
+
+        @Override
+        public String toString() {
+            return "WorkMetrics{received=" + received + ", coalesced=" + coalesced + ", completed=" + completed
+                    + ", redelivered=" + redelivered + ", discarded=" + discarded + ", queueDepth=" + queueDepth
+                    + ", wait=[" + waitTime + "], service=[" + serviceTime + "]}";
+        }
+    }
+}
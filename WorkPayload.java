@@ -0,0 +1,64 @@
+package com.allan.services;
+
+import android.content.Intent;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 带类型的任务：任务对象由{@link Codec}编码成一个紧凑的byte[]，放在一个只有这一个extra的Intent里面排队。
+ * 需要tag、优先级这些控制用的extra的话，可以另外给一个base Intent，payload放进它的副本里。
+ * 跨进程（startService、JobScheduler.enqueue）的时候只需要Parcel这一段字节，不用再Parcel一大堆extras；
+ * 解码推迟到worker线程里面，在onHandleWork调用{@link #decode(Intent, Codec)}的时候才做。
+ */
+public final class WorkPayload {
+    /**
+     * byte[]类型的extra，编码以后的任务
+     */
+    public static final String EXTRA_PAYLOAD = "com.allan.services.extra.PAYLOAD";
+
+    public interface Codec<T> {
+        /**
+         * 在enqueueWork的线程调用
+         */
+        @NonNull
+        byte[] encode(@NonNull T work);
+
+        /**
+         * 在worker线程调用
+         */
+        @NonNull
+        T decode(@NonNull byte[] bytes);
+    }
+
+    private WorkPayload() {
+    }
+
+    /**
+     * @return 新建的Intent，只有{@link #EXTRA_PAYLOAD}，调用方可以直接拿去排队，不需要再复制
+     */
+    @NonNull
+    static <T> Intent encode(@NonNull Codec<T> codec, @NonNull T work) {
+        return new Intent().putExtra(EXTRA_PAYLOAD, codec.encode(work));
+    }
+
+    /**
+     * @param base 复制它的action和extras（比如tag、优先级、串行的key），再放进{@link #EXTRA_PAYLOAD}；base本身不会被修改
+     * @return 新建的Intent，调用方可以直接拿去排队，不需要再复制
+     */
+    @NonNull
+    static <T> Intent encode(@NonNull Intent base, @NonNull Codec<T> codec, @NonNull T work) {
+        return new Intent(base).putExtra(EXTRA_PAYLOAD, codec.encode(work));
+    }
+
+    /**
+     * 在onHandleWork里面调用，取出通过带类型的enqueueWork排队的任务。
+     *
+     * @return 这个Intent不是带类型的任务的话返回null
+     */
+    @Nullable
+    public static <T> T decode(@NonNull Intent intent, @NonNull Codec<T> codec) {
+        byte[] bytes = intent.getByteArrayExtra(EXTRA_PAYLOAD);
+        return bytes != null ? codec.decode(bytes) : null;
+    }
+}
@@ -0,0 +1,213 @@
+package com.allan.services;
+
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 不依赖Android的任务队列，由多条优先级通道组成，lane 0的优先级最高，每条通道内部是FIFO。
+ *
+ * 出列按权重轮转决定先看哪条通道：比如权重{4, 2, 1}，每7次出列里4次先看lane 0，2次先看lane 1，1次先看lane 2，
+ * 先看的通道为空的时候再从高到低找第一个不为空的通道。这样高优先级会先跑，低优先级也不会被饿死。
+ *
+ * 没有合并key的任务，入列和出列都是无锁的；有key的任务通过mIndex合并，mIndex同时也是这部分状态的锁。
+ * {@link #remove(Entry)}是O(1)的：只是把任务标记为已经取走，它在通道里的节点等出列的时候再跳过。
+ */
+final class WorkQueue<T extends WorkQueue.Entry> {
+    /**
+     * 队列里面的元素，记录合并相关的状态。
+     */
+    abstract static class Entry {
+        private static final AtomicIntegerFieldUpdater<Entry> TAKEN =
+                AtomicIntegerFieldUpdater.newUpdater(Entry.class, "mTaken");
+
+        // 出列和remove抢同一个任务，谁把它从0改成1谁拿到
+        private volatile int mTaken;
+        Object mCoalesceKey;
+        // 由mIndex保护：出列以后就不能再合并进来了，否则正在执行的任务会被改掉
+        boolean mDequeued;
+        // 入队的顺序，只有多条通道的时候才有，给pollOldest用
+        long mOrder;
+    }
+
+    /**
+     * 把新来的任务合并到还在排队的同key任务里面。
+     */
+    interface Merger<T> {
+        void merge(T pending, T incoming);
+    }
+
+    private final ConcurrentLinkedQueue<T>[] mLanes;
+    private final int[] mSchedule;
+    private final AtomicInteger mCursor = new AtomicInteger();
+    private final AtomicLong mOrder = new AtomicLong();
+    private final HashMap<Object, T> mIndex = new HashMap<>();
+
+    @SuppressWarnings("unchecked")
+    WorkQueue(int[] weights) {
+        if (weights.length == 0) {
+            throw new IllegalArgumentException("At least one lane is required");
+        }
+        mLanes = (ConcurrentLinkedQueue<T>[]) new ConcurrentLinkedQueue<?>[weights.length];
+        int total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            if (weights[i] < 1) {
+                throw new IllegalArgumentException("weight must be > 0, but " + weights[i]);
+            }
+            mLanes[i] = new ConcurrentLinkedQueue<>();
+            total += weights[i];
+        }
+        // 平滑加权轮转，把各个通道尽量均匀地穿插开，而不是4个lane 0挤在一起。
+        mSchedule = new int[total];
+        int[] current = new int[weights.length];
+        for (int n = 0; n < total; n++) {
+            int best = 0;
+            for (int i = 0; i < weights.length; i++) {
+                current[i] += weights[i];
+                if (current[i] > current[best]) {
+                    best = i;
+                }
+            }
+            current[best] -= total;
+            mSchedule[n] = best;
+        }
+    }
+
+    /**
+     * 无锁入队。超出范围的lane会被截到最近的通道。
+     */
+    void offer(T item, int lane) {
+        stampOrder(item);
+        mLanes[clampLane(lane)].offer(item);
+    }
+
+    /**
+     * 按key入队：如果同key的任务还在排队，就把item合并进去而不入队。
+     *
+     * @return 被合并进去的那个任务；null表示item正常入队了
+     */
+    T offer(T item, int lane, Object key, Merger<T> merger) {
+        synchronized (mIndex) {
+            T pending = mIndex.get(key);
+            if (pending != null && !pending.mDequeued) {
+                merger.merge(pending, item);
+                return pending;
+            }
+            item.mCoalesceKey = key;
+            mIndex.put(key, item);
+            stampOrder(item);
+            mLanes[clampLane(lane)].offer(item);
+            return null;
+        }
+    }
+
+    T poll() {
+        T item;
+        while ((item = pollLanes()) != null) {
+            if (take(item)) {
+                unindex(item);
+                return item;
+            }
+            // 已经被remove了，节点到这里才扔掉
+        }
+        return null;
+    }
+
+    /**
+     * 把还在排队的任务拿出来，O(1)。
+     *
+     * @return false表示它已经被取走了（出列了或者已经remove过）
+     */
+    boolean remove(T item) {
+        if (!take(item)) {
+            return false;
+        }
+        unindex(item);
+        return true;
+    }
+
+    /**
+     * 不管优先级，取出最早入队的任务，比如容量满了以后丢掉最早的。
+     */
+    T pollOldest() {
+        if (mLanes.length == 1) {
+            return poll();
+        }
+        while (true) {
+            ConcurrentLinkedQueue<T> oldestLane = null;
+            T oldest = null;
+            for (ConcurrentLinkedQueue<T> lane : mLanes) {
+                T head = lane.peek();
+                if (head != null && (oldest == null || head.mOrder - oldest.mOrder < 0)) {
+                    oldest = head;
+                    oldestLane = lane;
+                }
+            }
+            if (oldest == null) {
+                return null;
+            }
+            // 可能刚被worker取走了，再找一遍；被remove过的节点顺便扔掉
+            if (oldestLane.remove(oldest) && take(oldest)) {
+                unindex(oldest);
+                return oldest;
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        for (ConcurrentLinkedQueue<T> lane : mLanes) {
+            if (!lane.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean take(Entry item) {
+        return Entry.TAKEN.compareAndSet(item, 0, 1);
+    }
+
+    private void stampOrder(T item) {
+        if (mLanes.length > 1) {
+            item.mOrder = mOrder.getAndIncrement();
+        }
+    }
+
+    private void unindex(T item) {
+        if (item.mCoalesceKey != null) {
+            synchronized (mIndex) {
+                item.mDequeued = true;
+                if (mIndex.get(item.mCoalesceKey) == item) {
+                    mIndex.remove(item.mCoalesceKey);
+                }
+            }
+        }
+    }
+
+    private T pollLanes() {
+        if (mLanes.length == 1) {
+            return mLanes[0].poll();
+        }
+        int preferred = mSchedule[(mCursor.getAndIncrement() & Integer.MAX_VALUE) % mSchedule.length];
+        T item = mLanes[preferred].poll();
+        if (item != null) {
+            return item;
+        }
+        for (ConcurrentLinkedQueue<T> lane : mLanes) {
+            item = lane.poll();
+            if (item != null) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    private int clampLane(int lane) {
+        if (lane < 0) {
+            return 0;
+        }
+        return lane >= mLanes.length ? mLanes.length - 1 : lane;
+    }
+}
@@ -0,0 +1,81 @@
+package com.allan.services;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 不依赖Android的重试策略：onHandleWork抛了异常以后，过多久重新排队、最多试几次。
+ *
+ * 第n次重试前等待initialDelayMillis * multiplier^(n-1)，不超过maxDelayMillis；再在这个基础上随机减掉最多jitter的比例，
+ * 一批同时失败的任务（比如网络断了）不会在同一时刻一起回来。等待由定时器负责，不占worker线程。
+ */
+public final class WorkRetryPolicy {
+    /**
+     * int类型的extra，重新排队的任务已经失败过几次；第一次执行的任务没有这个extra。
+     * onHandleWork里面可以读它，比如最后一次尝试的时候换一种做法。
+     */
+    public static final String EXTRA_ATTEMPT = "com.allan.services.extra.RETRY_ATTEMPT";
+
+    private final int mMaxAttempts;
+    private final long mInitialDelayMillis;
+    private final long mMaxDelayMillis;
+    private final double mMultiplier;
+    private final double mJitter;
+
+    /**
+     * @param maxAttempts 最多执行几次，包括第一次；1表示不重试
+     * @param initialDelayMillis 第一次重试前等多久
+     * @param maxDelayMillis 等待时间的上限
+     * @param multiplier 每次重试等待时间的倍数，1表示固定间隔
+     * @param jitter 0到1，等待时间随机减掉的最大比例；0表示不随机
+     */
+    public WorkRetryPolicy(int maxAttempts, long initialDelayMillis, long maxDelayMillis,
+                           double multiplier, double jitter) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be > 0, but " + maxAttempts);
+        }
+        if (initialDelayMillis < 0 || maxDelayMillis < initialDelayMillis) {
+            throw new IllegalArgumentException("Illegal delay: " + initialDelayMillis + ", " + maxDelayMillis);
+        }
+        if (!(multiplier >= 1)) {
+            throw new IllegalArgumentException("multiplier must be >= 1, but " + multiplier);
+        }
+        if (!(jitter >= 0 && jitter <= 1)) {
+            throw new IllegalArgumentException("jitter must be in [0, 1], but " + jitter);
+        }
+        mMaxAttempts = maxAttempts;
+        mInitialDelayMillis = initialDelayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+        mMultiplier = multiplier;
+        mJitter = jitter;
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /**
+     * @param attempts 已经执行并失败了几次
+     */
+    boolean shouldRetry(int attempts) {
+        return attempts < mMaxAttempts;
+    }
+
+    /**
+     * @param attempts 已经执行并失败了几次，至少是1
+     * @return 下一次重试前等多久
+     */
+    long getDelayMillis(int attempts) {
+        double delay = mInitialDelayMillis * Math.pow(mMultiplier, Math.max(0, attempts - 1));
+        delay = Math.min(delay, mMaxDelayMillis);
+        if (mJitter > 0) {
+            delay -= delay * mJitter * ThreadLocalRandom.current().nextDouble();
+        }
+        return (long) delay;
+    }
+
+    @Override
+    public String toString() {
+        return "WorkRetryPolicy{maxAttempts=" + mMaxAttempts + ", delay=" + mInitialDelayMillis + ".."
+                + mMaxDelayMillis + "ms, multiplier=" + mMultiplier + ", jitter=" + mJitter + "}";
+    }
+}
@@ -0,0 +1,104 @@
+package com.allan.services;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * 不依赖Android的按key串行：key相同的任务按出列的顺序一个一个执行，key不同的任务在多个worker上并行。
+ *
+ * 出列的时候如果同一个key已经有任务在执行，新任务排在这个key后面，不占worker；前一个完成的时候把下一个放进ready，
+ * 调用方再signal一下engine来取。一个key没有任务了就马上清掉，所以表的大小只和还没完成的任务有关。
+ */
+final class WorkSerializer<W> {
+    static final class Slot<W> {
+        final Object mKey;
+        // 这个key正在执行的任务，由WorkSerializer保护
+        W mRunning;
+        ArrayDeque<W> mWaiting;
+
+        Slot(Object key, W running) {
+            mKey = key;
+            mRunning = running;
+        }
+    }
+
+    private final HashMap<Object, Slot<W>> mSlots = new HashMap<>();
+    private final ArrayDeque<Slot<W>> mReady = new ArrayDeque<>();
+    // 没有按key串行的任务的时候，出列只需要这一次volatile读
+    private volatile boolean mHasReady;
+
+    /**
+     * @return 可以马上执行的话返回它的slot，完成的时候交给{@link #finished(Slot)}；
+     * 返回null表示同一个key前面还有任务，这个任务排在后面，之后从{@link #pollReady()}取出来
+     */
+    synchronized Slot<W> start(Object key, W work) {
+        Slot<W> slot = mSlots.get(key);
+        if (slot == null) {
+            slot = new Slot<>(key, work);
+            mSlots.put(key, slot);
+            return slot;
+        }
+        if (slot.mWaiting == null) {
+            slot.mWaiting = new ArrayDeque<>();
+        }
+        slot.mWaiting.add(work);
+        return null;
+    }
+
+    /**
+     * @return 排在后面、现在可以执行的任务的slot，任务是它的mRunning；没有的话返回null
+     */
+    Slot<W> pollReady() {
+        if (!mHasReady) {
+            return null;
+        }
+        synchronized (this) {
+            Slot<W> slot = mReady.poll();
+            mHasReady = !mReady.isEmpty();
+            return slot;
+        }
+    }
+
+    /**
+     * slot正在执行的任务完成了。
+     *
+     * @return true表示有排在后面的任务可以执行了，调用方要通知worker来取
+     */
+    synchronized boolean finished(Slot<W> slot) {
+        if (mSlots.get(slot.mKey) != slot) {
+            // clear以前的任务
+            return false;
+        }
+        W next = slot.mWaiting != null ? slot.mWaiting.poll() : null;
+        if (next == null) {
+            mSlots.remove(slot.mKey);
+            return false;
+        }
+        if (slot.mWaiting.isEmpty()) {
+            slot.mWaiting = null;
+        }
+        slot.mRunning = next;
+        mReady.add(slot);
+        mHasReady = true;
+        return true;
+    }
+
+    /**
+     * 丢掉所有排着的任务，比如job被停止以后它们会被重新投递。之后完成的旧任务不会再影响新的任务。
+     *
+     * @return 丢掉的还没开始执行的任务数
+     */
+    synchronized int clear() {
+        // ready里的slot，mRunning是放出来了但还没被取走的任务
+        int count = mReady.size();
+        for (Slot<W> slot : mSlots.values()) {
+            if (slot.mWaiting != null) {
+                count += slot.mWaiting.size();
+            }
+        }
+        mSlots.clear();
+        mReady.clear();
+        mHasReady = false;
+        return count;
+    }
+}
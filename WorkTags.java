@@ -0,0 +1,174 @@
+package com.allan.services;
+
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * 不依赖Android的按tag取消：排队的时候给带tag的任务盖一个递增的序号（{@link #EXTRA_SEQ}），
+ * 取消的时候只记下"这个tag序号不超过N的都不要了"，出列的时候拿任务自己的序号比一下，一次查表就知道该不该执行。
+ *
+ * 不按个数去抵，所以优先级高的新任务、被重新投递的任务、按key排在后面的任务都不会用掉别的任务的取消。
+ * 正在执行的任务也是同样的比较，知道自己有没有被取消。服务自己能找到的排队中的任务（比如BelowOJobIntentService的队列）
+ * 可以在取消的时候马上移除，不用等到出列。
+ *
+ * 序号带着这个进程的随机前缀；没有序号或者前缀对不上的任务（别的进程、进程重启以前排的）当作最早排的，
+ * 这个tag取消过就会被丢掉。一个tag在这个进程里还有排队、等着被丢掉或者正在执行的任务，它的取消记录就一直在；
+ * 这些任务都走完以后整条记录清掉，所以表的大小不超过活着的tag数，也不会有被取消的任务因为记录被挤掉而又执行。
+ * 反过来，取消的时候这个进程里没有这个tag的任务的话什么也不记。
+ */
+final class WorkTags {
+    /**
+     * long类型的extra，排队时的序号
+     */
+    static final String EXTRA_SEQ = "com.allan.services.extra.WORK_SEQ";
+
+    private static final int COUNTER_BITS = 40;
+    private static final long COUNTER_MASK = (1L << COUNTER_BITS) - 1;
+
+    /**
+     * 一个tag在这个进程里的状态，三个计数都是0的时候从表里删掉
+     */
+    private static final class Tag {
+        // 排队、还没出列也没被取消的任务数
+        int mQueued;
+        // 被取消了、还没出列的任务数
+        int mDoomed;
+        // 出列了、还没完成的任务数
+        int mRunning;
+        // 最后一次取消时发出去的最大序号，-1表示没有取消过
+        long mCancelledSeq = -1;
+    }
+
+    private final long mPrefix;
+    // 以下由this保护
+    private long mLastSeq;
+    private final HashMap<String, Tag> mTags = new HashMap<>();
+
+    WorkTags() {
+        // 23位的前缀，序号总是正数
+        mPrefix = (long) (new Random().nextInt() & 0x7fffff) << COUNTER_BITS;
+    }
+
+    /**
+     * 排队之前调用：排队以后服务可能马上就出列了
+     *
+     * @return 这个任务的序号，放到{@link #EXTRA_SEQ}里
+     */
+    synchronized long enqueued(String tag) {
+        Tag state = mTags.get(tag);
+        if (state == null) {
+            state = new Tag();
+            mTags.put(tag, state);
+        }
+        state.mQueued++;
+        return mPrefix | ++mLastSeq;
+    }
+
+    /**
+     * 系统没有接受任务，撤销{@link #enqueued(String)}
+     */
+    synchronized void rejected(String tag, long seq) {
+        unqueueLocked(tag, seq);
+    }
+
+    /**
+     * 任务被合并进了别的任务，之后跟着那个任务走
+     */
+    synchronized void absorbed(String tag, long seq) {
+        unqueueLocked(tag, seq);
+    }
+
+    /**
+     * 出列的时候调用，每个任务只调用一次；被重新投递的任务用{@link #isCancelled(String, long)}。
+     * 返回true的任务完成的时候要调用{@link #finished(String)}。
+     *
+     * @return false表示这个任务已经被取消了，直接完成而不执行
+     */
+    synchronized boolean started(String tag, long seq) {
+        boolean cancelled = isCancelledLocked(tag, seq);
+        unqueueLocked(tag, seq);
+        if (cancelled) {
+            return false;
+        }
+        Tag state = mTags.get(tag);
+        if (state == null) {
+            // 不是这里排的
+            state = new Tag();
+            mTags.put(tag, state);
+        }
+        state.mRunning++;
+        return true;
+    }
+
+    /**
+     * {@link #started(String, long)}返回了true的任务完成了
+     */
+    synchronized void finished(String tag) {
+        Tag state = mTags.get(tag);
+        if (state != null && state.mRunning > 0) {
+            state.mRunning--;
+            removeIfIdleLocked(tag, state);
+        }
+    }
+
+    /**
+     * @return 这个任务排队以后tag有没有被取消过
+     */
+    synchronized boolean isCancelled(String tag, long seq) {
+        return isCancelledLocked(tag, seq);
+    }
+
+    /**
+     * 取消这个tag到目前为止排队的所有任务：还没出列的出列时丢掉，正在执行的通过{@link #isCancelled(String, long)}知道。
+     *
+     * @return 这个进程里排队、还没出列的任务数
+     */
+    synchronized int cancel(String tag) {
+        Tag state = mTags.get(tag);
+        if (state == null) {
+            // 这个进程里没有这个tag的任务，不需要记
+            return 0;
+        }
+        int queued = state.mQueued;
+        state.mDoomed += queued;
+        state.mQueued = 0;
+        state.mCancelledSeq = mLastSeq;
+        removeIfIdleLocked(tag, state);
+        return queued;
+    }
+
+    private boolean isCancelledLocked(String tag, long seq) {
+        Tag state = mTags.get(tag);
+        return state != null && localSeq(seq) <= state.mCancelledSeq;
+    }
+
+    private void unqueueLocked(String tag, long seq) {
+        long local = localSeq(seq);
+        Tag state = mTags.get(tag);
+        if (local == 0 || state == null) {
+            // 不是这里排的
+            return;
+        }
+        if (local <= state.mCancelledSeq) {
+            if (state.mDoomed > 0) {
+                state.mDoomed--;
+            }
+        } else if (state.mQueued > 0) {
+            state.mQueued--;
+        }
+        removeIfIdleLocked(tag, state);
+    }
+
+    private void removeIfIdleLocked(String tag, Tag state) {
+        if (state.mQueued == 0 && state.mDoomed == 0 && state.mRunning == 0) {
+            mTags.remove(tag);
+        }
+    }
+
+    /**
+     * @return 这个进程里的序号，不是这个进程排的任务返回0
+     */
+    private long localSeq(long seq) {
+        return (seq & ~COUNTER_MASK) == mPrefix ? seq & COUNTER_MASK : 0;
+    }
+}
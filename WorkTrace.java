@@ -0,0 +1,236 @@
+package com.allan.services;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 任务循环里面的跟踪点。热路径上只传事件编号和原始参数，不拼字符串，也不调用Intent.toString()；
+ * 没有设置{@link Sink}的时候每个跟踪点只有一次volatile读。
+ *
+ * 需要看日志的时候设置{@link #LOGCAT}；线上出问题以后想回头看最近发生了什么，设置一个{@link Recorder}，事后dump出来。
+ */
+public final class WorkTrace {
+    /** enqueueWork，obj是任务 */
+    public static final int EVENT_ENQUEUE = 1;
+    /** 服务收到了一个任务，arg0是startId（没有的话是-1），obj是任务 */
+    public static final int EVENT_RECEIVE = 2;
+    /** arg0的任务被合并进了arg1，obj是合并后的任务 */
+    public static final int EVENT_COALESCE = 3;
+    /** 开始处理，obj是任务 */
+    public static final int EVENT_WORK_BEGIN = 4;
+    /** 处理完了，obj是任务 */
+    public static final int EVENT_WORK_END = 5;
+    /** 开始处理一批，arg0是数量 */
+    public static final int EVENT_BATCH_BEGIN = 6;
+    /** 一批处理完了，arg0是数量 */
+    public static final int EVENT_BATCH_END = 7;
+    /** startId是arg0的任务结束了，arg1是可以stopSelf的startId，-1表示前面还有任务没完成 */
+    public static final int EVENT_FINISH = 8;
+    /** 从没有worker变为有worker */
+    public static final int EVENT_PROCESSING_STARTED = 9;
+    /** 所有worker都退出了 */
+    public static final int EVENT_PROCESSING_FINISHED = 10;
+    /** JobScheduler开始了job，obj是JobParameters */
+    public static final int EVENT_START_JOB = 11;
+    /** JobScheduler停止了job，obj是JobParameters */
+    public static final int EVENT_STOP_JOB = 12;
+    /** 容量满了，最早排队的任务被丢掉，obj是任务 */
+    public static final int EVENT_DROP = 13;
+    /** 任务失败了，arg0是已经失败的次数，arg1毫秒以后重新排队，obj是任务 */
+    public static final int EVENT_RETRY = 14;
+    /** 任务失败了arg0次，不再重试，放进死信，obj是任务 */
+    public static final int EVENT_DEAD_LETTER = 15;
+    /** 任务的tag被取消了，不执行直接完成，obj是任务 */
+    public static final int EVENT_CANCEL = 16;
+
+    public interface Sink {
+        /**
+         * 在产生事件的线程直接调用，请不要在里面做耗时操作；要格式化的话用{@link #format(int, long, long, Object)}。
+         */
+        void onEvent(@NonNull String tag, int event, long arg0, long arg1, @Nullable Object obj);
+    }
+
+    /**
+     * 逐条打到logcat，相当于原来的DEBUG日志。
+     */
+    public static final Sink LOGCAT = new Sink() {
+        @Override
+        public void onEvent(@NonNull String tag, int event, long arg0, long arg1, @Nullable Object obj) {
+            Log.d(tag, format(event, arg0, arg1, obj));
+        }
+    };
+
+    private static volatile Sink sSink;
+
+    private WorkTrace() {
+    }
+
+    /**
+     * @param sink null表示关闭（默认）
+     */
+    public static void setSink(@Nullable Sink sink) {
+        sSink = sink;
+    }
+
+    static void trace(String tag, int event, long arg0, long arg1, Object obj) {
+        Sink sink = sSink;
+        if (sink != null) {
+            sink.onEvent(tag, event, arg0, arg1, obj);
+        }
+    }
+
+    static void trace(String tag, int event, long arg0, Object obj) {
+        Sink sink = sSink;
+        if (sink != null) {
+            sink.onEvent(tag, event, arg0, -1, obj);
+        }
+    }
+
+    static void trace(String tag, int event, Object obj) {
+        Sink sink = sSink;
+        if (sink != null) {
+            sink.onEvent(tag, event, -1, -1, obj);
+        }
+    }
+
+    @NonNull
+    public static String format(int event, long arg0, long arg1, @Nullable Object obj) {
+        switch (event) {
+            case EVENT_ENQUEUE:
+                return "Enqueueing work: " + obj;
+            case EVENT_RECEIVE:
+                return "Received #" + arg0 + ": " + obj;
+            case EVENT_COALESCE:
+                return "Coalescing #" + arg0 + " into #" + arg1 + ": " + obj;
+            case EVENT_WORK_BEGIN:
+                return "Processing work: " + obj;
+            case EVENT_WORK_END:
+                return "Completing work: " + obj;
+            case EVENT_BATCH_BEGIN:
+                return "Processing batch of " + arg0;
+            case EVENT_BATCH_END:
+                return "Completing batch of " + arg0;
+            case EVENT_FINISH:
+                return arg1 < 0 ? "Finished #" + arg0 + ", earlier work still running"
+                        : "Finished #" + arg0 + ", stopping self: #" + arg1;
+            case EVENT_PROCESSING_STARTED:
+                return "Starting to dequeue work...";
+            case EVENT_PROCESSING_FINISHED:
+                return "Done processing work!";
+            case EVENT_START_JOB:
+                return "onStartJob: " + obj;
+            case EVENT_STOP_JOB:
+                return "onStopJob: " + obj;
+            case EVENT_DROP:
+                return "Dropping work: " + obj;
+            case EVENT_RETRY:
+                return "Failed " + arg0 + " times, retrying in " + arg1 + "ms: " + obj;
+            case EVENT_DEAD_LETTER:
+                return "Failed " + arg0 + " times, dead-lettering: " + obj;
+            case EVENT_CANCEL:
+                return "Cancelled work: " + obj;
+            default:
+                return "event " + event + " (" + arg0 + ", " + arg1 + "): " + obj;
+        }
+    }
+
+    /**
+     * 无锁的环形缓冲区，只保留最近的capacity条事件。记录的时候只写几个原子数组，不分配也不格式化。
+     * 不引用被记录的对象（Intent、JobWorkItem这些可能很大），只记下它的类和identityHashCode，
+     * dump出来的是"类名@id"，同一个任务的几条事件可以靠它对上。
+     */
+    public static final class Recorder implements Sink {
+        // 每个槽位在mSlots里占的long：序号、时间、线程、事件、arg0、arg1、对象的id
+        private static final int SEQ = 0;
+        private static final int TIME = 1;
+        private static final int THREAD = 2;
+        private static final int EVENT = 3;
+        private static final int ARG0 = 4;
+        private static final int ARG1 = 5;
+        private static final int OBJ_ID = 6;
+        private static final int LONGS = 7;
+        // 每个槽位在mRefs里占的引用：tag和对象的类，都是常量，不会让对象本身活得更久
+        private static final int TAG = 0;
+        private static final int OBJ_CLASS = 1;
+        private static final int REFS = 2;
+
+        private final int mMask;
+        private final AtomicLong mCursor = new AtomicLong();
+        // 序号是奇数表示正在写。所有字段都是volatile读写，dump的时候前后两次读到同一个偶数序号，中间读的字段就是完整的一条
+        private final AtomicLongArray mSlots;
+        private final AtomicReferenceArray<Object> mRefs;
+
+        /**
+         * @param capacity 会被向上取整到2的幂
+         */
+        public Recorder(int capacity) {
+            if (capacity < 1) {
+                throw new IllegalArgumentException("capacity must be > 0, but " + capacity);
+            }
+            int size = Integer.highestOneBit(capacity);
+            if (size < capacity) {
+                size <<= 1;
+            }
+            mMask = size - 1;
+            mSlots = new AtomicLongArray(size * LONGS);
+            mRefs = new AtomicReferenceArray<>(size * REFS);
+        }
+
+        @Override
+        public void onEvent(@NonNull String tag, int event, long arg0, long arg1, @Nullable Object obj) {
+            long index = mCursor.getAndIncrement();
+            int base = (int) (index & mMask) * LONGS;
+            int refs = (int) (index & mMask) * REFS;
+            mSlots.set(base + SEQ, 2 * index + 1);
+            mSlots.set(base + TIME, SystemClock.elapsedRealtime());
+            mSlots.set(base + THREAD, Thread.currentThread().getId());
+            mSlots.set(base + EVENT, event);
+            mSlots.set(base + ARG0, arg0);
+            mSlots.set(base + ARG1, arg1);
+            mSlots.set(base + OBJ_ID, obj != null ? System.identityHashCode(obj) : 0);
+            mRefs.set(refs + TAG, tag);
+            mRefs.set(refs + OBJ_CLASS, obj != null ? obj.getClass() : null);
+            mSlots.set(base + SEQ, 2 * index + 2);
+        }
+
+        /**
+         * 从旧到新打印缓冲区里面的事件，时间是相对现在的毫秒数。可以和记录同时进行，正在被写的条目会被跳过。
+         */
+        public void dump(@NonNull PrintWriter writer, @NonNull String prefix) {
+            long now = SystemClock.elapsedRealtime();
+            long end = mCursor.get();
+            long start = Math.max(0, end - mMask - 1);
+            for (long index = start; index < end; index++) {
+                int base = (int) (index & mMask) * LONGS;
+                int refs = (int) (index & mMask) * REFS;
+                long seq = mSlots.get(base + SEQ);
+                if (seq != 2 * index + 2) {
+                    continue;
+                }
+                long time = mSlots.get(base + TIME);
+                long threadId = mSlots.get(base + THREAD);
+                int event = (int) mSlots.get(base + EVENT);
+                long arg0 = mSlots.get(base + ARG0);
+                long arg1 = mSlots.get(base + ARG1);
+                long objId = mSlots.get(base + OBJ_ID);
+                Object tag = mRefs.get(refs + TAG);
+                Class<?> objClass = (Class<?>) mRefs.get(refs + OBJ_CLASS);
+                if (mSlots.get(base + SEQ) != seq) {
+                    continue;
+                }
+                String obj = objClass != null ? objClass.getSimpleName() + "@" + Long.toHexString(objId) : null;
+                writer.print(prefix);
+                writer.println((time - now) + "ms [" + threadId + "] " + tag + ": "
+                        + format(event, arg0, arg1, obj));
+            }
+        }
+    }
+}
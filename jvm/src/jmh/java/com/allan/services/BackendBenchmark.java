@@ -0,0 +1,228 @@
+package com.allan.services;
+
+import android.os.AsyncTask;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 几个服务共用一个执行后端时的尾延迟和上下文切换。SERVICES个服务各是一个maxWorkers=2的WorkEngine，
+ * 每个服务一个生产者线程，排一个任务、阻塞等它处理完再排下一个。
+ *
+ * dedicated是每个服务自己的线程池；asyncTask是大家都挤在AsyncTask.THREAD_POOL_EXECUTOR上；
+ * shared、forkJoin、limited（shared外面再包一层limit(1)）是{@link WorkExecutors}的后端。
+ * virtual需要JDK 21以上，用-p backend=virtual单独跑。
+ *
+ * latency看p0.99、p0.999；throughput的contextSwitches是测量期间整个进程的上下文切换总数，要和throughput一起看，
+ * 读的是Linux的/proc，别的系统是0。
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(BackendBenchmark.SERVICES)
+public class BackendBenchmark {
+    static final int SERVICES = 4;
+    static final int WORK_TOKENS = 2000;
+
+    static final class SimulatedService implements WorkEngine.Source<Long>, WorkEngine.Callback<Long> {
+        final ConcurrentLinkedQueue<Long> mQueue = new ConcurrentLinkedQueue<>();
+        final Semaphore mHandled = new Semaphore(0);
+        final WorkEngine<Long> mEngine;
+
+        SimulatedService(Executor executor) {
+            mEngine = new WorkEngine<>(this, this, executor);
+            mEngine.setMaxWorkers(2);
+        }
+
+        @Override
+        public Long poll() {
+            return mQueue.poll();
+        }
+
+        @Override
+        public void onProcessingStarted() {
+        }
+
+        @Override
+        public void onHandleWork(Long work) {
+            Blackhole.consumeCPU(WORK_TOKENS);
+            mHandled.release();
+        }
+
+        @Override
+        public void onHandleWorkBatch(List<Long> batch) {
+        }
+
+        @Override
+        public void onProcessingFinished() {
+        }
+    }
+
+    @Param({"dedicated", "asyncTask", "shared", "forkJoin", "limited"})
+    public String backend;
+
+    private final SimulatedService[] mServices = new SimulatedService[SERVICES];
+    private final ThreadPoolExecutor[] mDedicated = new ThreadPoolExecutor[SERVICES];
+    private final AtomicInteger mNextProducer = new AtomicInteger();
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < SERVICES; i++) {
+            Executor executor;
+            switch (backend) {
+                case "dedicated":
+                    mDedicated[i] = WorkEngine.newWorkerPool("service" + i, 2);
+                    executor = mDedicated[i];
+                    break;
+                case "asyncTask":
+                    executor = AsyncTask.THREAD_POOL_EXECUTOR;
+                    break;
+                case "shared":
+                    executor = WorkExecutors.shared();
+                    break;
+                case "forkJoin":
+                    executor = WorkExecutors.forkJoin();
+                    break;
+                case "limited":
+                    executor = WorkExecutors.limit(WorkExecutors.shared(), 1);
+                    break;
+                case "virtual":
+                    if (!WorkExecutors.isVirtualThreadsSupported()) {
+                        throw new IllegalStateException("Virtual threads are not supported by this runtime");
+                    }
+                    executor = WorkExecutors.virtualThreads();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown backend " + backend);
+            }
+            mServices[i] = new SimulatedService(executor);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (int i = 0; i < SERVICES; i++) {
+            mServices[i].mEngine.shutdown();
+            if (mDedicated[i] != null) {
+                mDedicated[i].shutdown();
+            }
+        }
+    }
+
+    /**
+     * 每个生产者线程固定对应一个服务
+     */
+    @State(Scope.Thread)
+    public static class Producer {
+        SimulatedService mService;
+
+        @Setup
+        public void setUp(BackendBenchmark benchmark) {
+            mService = benchmark.mServices[benchmark.mNextProducer.getAndIncrement() % SERVICES];
+        }
+    }
+
+    /**
+     * 整个进程的上下文切换次数，JMH把每次迭代的加起来。只由第一个生产者线程记录，不然会重复计数
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class ContextSwitches {
+        private static final AtomicInteger sRecorder = new AtomicInteger();
+
+        public long contextSwitches;
+        private boolean mRecording;
+        private long mStart;
+
+        @Setup(Level.Trial)
+        public void setUpTrial() {
+            mRecording = sRecorder.compareAndSet(0, 1);
+        }
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            contextSwitches = 0;
+            if (mRecording) {
+                mStart = read();
+            }
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            if (mRecording) {
+                contextSwitches = read() - mStart;
+            }
+        }
+
+        /**
+         * @return 进程里所有线程的voluntary和nonvoluntary切换之和，读不到的话返回0
+         */
+        static long read() {
+            File[] tasks = new File("/proc/self/task").listFiles();
+            if (tasks == null) {
+                return 0;
+            }
+            long total = 0;
+            for (File task : tasks) {
+                try {
+                    for (String line : Files.readAllLines(new File(task, "status").toPath(), StandardCharsets.UTF_8)) {
+                        if (line.startsWith("voluntary_ctxt_switches:")
+                                || line.startsWith("nonvoluntary_ctxt_switches:")) {
+                            total += Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // 线程刚好退出了
+                }
+            }
+            return total;
+        }
+    }
+
+    private static void handleOne(Producer producer) {
+        SimulatedService service = producer.mService;
+        service.mQueue.offer(System.nanoTime());
+        service.mEngine.signal();
+        service.mHandled.acquireUninterruptibly();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    public void latency(Producer producer) {
+        handleOne(producer);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public void throughput(Producer producer, ContextSwitches switches) {
+        handleOne(producer);
+    }
+}
@@ -0,0 +1,119 @@
+package com.allan.services;
+
+import android.content.Intent;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 排了backlog个任务以后全部出列要多久。arrayList是原来的mCompatQueue：锁住ArrayList再remove(0)，
+ * 每次出列都要搬动后面所有的元素；workQueue是现在的WorkQueue；service走完整的onStartCommand、dequeueWork和complete。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BacklogBenchmark {
+    static final class Item extends WorkQueue.Entry {
+    }
+
+    static final class DirectService extends BelowOJobIntentService {
+        @Override
+        protected void onHandleWork(Intent intent) {
+        }
+    }
+
+    @Param({"10000", "50000"})
+    public int backlog;
+
+    private Item[] mItems;
+    private DirectService mService;
+    private Intent mWork;
+    private int mStartId;
+
+    @Setup
+    public void setUp() {
+        mItems = new Item[backlog];
+        for (int i = 0; i < backlog; i++) {
+            mItems[i] = new Item();
+        }
+        mService = new DirectService();
+        new FakeContext().bind(mService);
+        // 出列由benchmark线程自己做
+        mService.setWorkExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+            }
+        });
+        mWork = new Intent().putExtra("payload", 1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mService.onDestroy();
+    }
+
+    @Benchmark
+    public int arrayList() {
+        ArrayList<Item> queue = new ArrayList<>();
+        for (Item item : mItems) {
+            synchronized (queue) {
+                queue.add(item);
+            }
+        }
+        int drained = 0;
+        while (true) {
+            synchronized (queue) {
+                if (queue.isEmpty()) {
+                    return drained;
+                }
+                queue.remove(0);
+            }
+            drained++;
+        }
+    }
+
+    @Benchmark
+    public int workQueue() {
+        WorkQueue<Item> queue = new WorkQueue<>(new int[] {1});
+        for (Item item : mItems) {
+            queue.offer(item, 0);
+        }
+        int drained = 0;
+        while (queue.poll() != null) {
+            drained++;
+        }
+        return drained;
+    }
+
+    @Benchmark
+    public int service() {
+        for (int i = 0; i < backlog; i++) {
+            mService.onStartCommand(mWork, 0, ++mStartId);
+        }
+        int drained = 0;
+        BelowOJobIntentService.GenericWorkItem work;
+        while ((work = mService.dequeueWork()) != null) {
+            work.complete();
+            drained++;
+        }
+        return drained;
+    }
+}
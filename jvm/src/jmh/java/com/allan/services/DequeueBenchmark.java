@@ -0,0 +1,83 @@
+package com.allan.services;
+
+import android.content.Intent;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BelowOJobIntentService里一个任务从onStartCommand到dequeueWork再到complete的耗时分布。
+ * engine的executor什么都不做，所以worker不会去抢队列，出列由benchmark线程自己调用；加上-prof gc就是每个任务分配的内存。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DequeueBenchmark {
+    static final class DirectService extends BelowOJobIntentService {
+        boolean mSerial;
+
+        @Override
+        protected Object getSerialKey(Intent intent) {
+            return mSerial ? "key" : null;
+        }
+
+        @Override
+        protected void onHandleWork(Intent intent) {
+        }
+    }
+
+    /**
+     * plain：默认的FIFO；serial：同一个key串行；tagged：带tag，出列时查一次WorkTags
+     */
+    @Param({"plain", "serial", "tagged"})
+    public String kind;
+
+    private DirectService mService;
+    private Intent mWork;
+    private int mStartId;
+
+    @Setup
+    public void setUp() {
+        mService = new DirectService();
+        new FakeContext().bind(mService);
+        mService.mSerial = "serial".equals(kind);
+        mService.setWorkExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+            }
+        });
+        mWork = new Intent().putExtra("payload", 1);
+        if ("tagged".equals(kind)) {
+            mWork.putExtra(BelowOJobIntentService.EXTRA_WORK_TAG, "sync");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mService.onDestroy();
+    }
+
+    @Benchmark
+    public int startDequeueComplete() {
+        mService.onStartCommand(mWork, 0, ++mStartId);
+        BelowOJobIntentService.GenericWorkItem work = mService.dequeueWork();
+        work.complete();
+        return mService.getLastStopId();
+    }
+}
@@ -0,0 +1,89 @@
+package com.allan.services;
+
+import android.app.job.JobParameters;
+import android.app.job.JobWorkItem;
+import android.content.Intent;
+import android.os.AsyncTask;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JobIntentXService里一个JobWorkItem从onStartJob到onHandleWork的延迟，每次只有一个任务，所以每次都是一轮新的处理。
+ *
+ * processor是现在的常驻处理线程；asyncTask是原来的做法，每一轮处理交给AsyncTask.THREAD_POOL_EXECUTOR；
+ * newThread是每一轮新建一个线程，也就是线程池里没有空闲线程时的情况。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DequeueToHandleBenchmark {
+    static final class HandledService extends JobIntentXService {
+        volatile long mHandled;
+
+        @Override
+        protected void onHandleWork(Intent intent) {
+            mHandled++;
+        }
+    }
+
+    @Param({"processor", "asyncTask", "newThread"})
+    public String backend;
+
+    private HandledService mService;
+    private JobIntentXService.JobServiceEngineImpl mJob;
+    private JobParameters mParams;
+    private Intent mWork;
+    private long mExpected;
+
+    @Setup
+    public void setUp() {
+        mService = new HandledService();
+        new FakeContext().bind(mService);
+        if ("asyncTask".equals(backend)) {
+            mService.setWorkExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        } else if ("newThread".equals(backend)) {
+            mService.setWorkExecutor(new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    new Thread(command).start();
+                }
+            });
+        }
+        mJob = (JobIntentXService.JobServiceEngineImpl) mService.mJobImpl;
+        mParams = new JobParameters(1);
+        mWork = new Intent().putExtra("payload", 1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mService.onDestroy();
+    }
+
+    @Benchmark
+    public long startJobToHandle() {
+        mParams.enqueue(new JobWorkItem(mWork));
+        mJob.onStartJob(mParams);
+        long expected = ++mExpected;
+        while (mService.mHandled != expected) {
+            // 忙等，测到的就是交给处理线程的延迟
+        }
+        return expected;
+    }
+}
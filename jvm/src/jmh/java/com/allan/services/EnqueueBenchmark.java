@@ -0,0 +1,76 @@
+package com.allan.services;
+
+import android.content.ComponentName;
+import android.content.Intent;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BelowOJobIntentService.enqueueWork的吞吐，1/4/16个线程同时排队：找WorkEnqueuer、复制Intent、
+ * startService、launch wakelock那一段锁。startService只是接受下来，不交给服务，所以测的只是排队这一侧。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnqueueBenchmark {
+    static final class NoopService extends BelowOJobIntentService {
+        @Override
+        protected void onHandleWork(Intent intent) {
+        }
+    }
+
+    private FakeContext mContext;
+    private ComponentName mComponent;
+    private Intent mWork;
+    private Intent mTaggedWork;
+
+    @Setup
+    public void setUp() {
+        mContext = new FakeContext();
+        mComponent = new ComponentName(mContext, NoopService.class);
+        mWork = new Intent().putExtra("payload", 1);
+        mTaggedWork = new Intent().putExtra("payload", 1).putExtra(BelowOJobIntentService.EXTRA_WORK_TAG, "sync");
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void enqueue1Producer() {
+        BelowOJobIntentService.enqueueWork(mContext, mComponent, 1, mWork);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void enqueue4Producers() {
+        BelowOJobIntentService.enqueueWork(mContext, mComponent, 1, mWork);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void enqueue16Producers() {
+        BelowOJobIntentService.enqueueWork(mContext, mComponent, 1, mWork);
+    }
+
+    /**
+     * 带tag的任务还要经过WorkTags的锁
+     */
+    @Benchmark
+    @Threads(4)
+    public void enqueueTagged4Producers() {
+        BelowOJobIntentService.enqueueWork(mContext, mComponent, 1, mTaggedWork);
+    }
+}
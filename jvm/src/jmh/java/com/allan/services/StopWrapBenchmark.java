@@ -0,0 +1,66 @@
+package com.allan.services;
+
+import android.content.Intent;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AutoStopService的onStartCommand加stopWrap：OnStartCmd类型的任务当场执行完就stopWrap。
+ * outstanding是一直没有完成的ExecuteAsync任务数，看InFlightIds在很多startId没完成的时候还快不快。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StopWrapBenchmark {
+    static final String EXTRA_TYPE = "type";
+
+    static final class DirectService extends AutoStopService {
+        @Override
+        protected int executeType(Intent intent) {
+            return intent.getIntExtra(EXTRA_TYPE, EXCUTE_TYPE_DIRECTLY_IN_OnStartCmd);
+        }
+
+        @Override
+        protected void onHandleWork(Intent intent, int executeType, int startId) {
+            // ExecuteAsync的任务不stopWrap，一直占着startId
+        }
+    }
+
+    @Param({"0", "100", "10000"})
+    public int outstanding;
+
+    private DirectService mService;
+    private Intent mWork;
+    private int mStartId;
+
+    @Setup
+    public void setUp() {
+        mService = new DirectService();
+        new FakeContext().bind(mService);
+        Intent async = new Intent().putExtra(EXTRA_TYPE, AutoStopService.EXCUTE_TYPE_DIRECTLY_IN_ExecuteAsync);
+        for (int i = 0; i < outstanding; i++) {
+            mService.onStartCommand(async, 0, ++mStartId);
+        }
+        mWork = new Intent();
+    }
+
+    @Benchmark
+    public int startAndStopWrap() {
+        return mService.onStartCommand(mWork, 0, ++mStartId);
+    }
+}
@@ -0,0 +1,68 @@
+package com.allan.services;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WorkQueue在1/4/16个线程同时入队、出列时的竞争。每次调用入队一个再出列一个，队列不会越跑越长；
+ * lanes=1是默认的FIFO，lanes=3多了入队序号和轮转的游标。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WorkQueueContentionBenchmark {
+    static final class Item extends WorkQueue.Entry {
+    }
+
+    @Param({"1", "3"})
+    public int lanes;
+
+    private WorkQueue<Item> mQueue;
+
+    @Setup
+    public void setUp() {
+        int[] weights = new int[lanes];
+        for (int i = 0; i < lanes; i++) {
+            weights[i] = lanes - i;
+        }
+        mQueue = new WorkQueue<>(weights);
+    }
+
+    private Item offerPoll() {
+        mQueue.offer(new Item(), 0);
+        return mQueue.poll();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Item offerPoll1Thread() {
+        return offerPoll();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Item offerPoll4Threads() {
+        return offerPoll();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public Item offerPoll16Threads() {
+        return offerPoll();
+    }
+}
@@ -0,0 +1,84 @@
+package com.allan.services;
+
+import android.content.ComponentName;
+import android.content.Intent;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BelowOJobIntentService在不同maxWorkers下的吞吐：每个onHandleWork阻塞1ms（比如一次磁盘或者网络），
+ * 一次排队BATCH个任务，等它们全部处理完。workers=1就是原来的顺序执行，跑在AsyncTask.THREAD_POOL_EXECUTOR上。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WorkerPoolBenchmark {
+    static final int BATCH = 32;
+    static final long WORK_MILLIS = 1;
+
+    static final class SlowService extends BelowOJobIntentService {
+        volatile CountDownLatch mDone;
+
+        @Override
+        protected void onHandleWork(Intent intent) {
+            try {
+                Thread.sleep(WORK_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mDone.countDown();
+        }
+    }
+
+    @Param({"1", "4", "8"})
+    public int workers;
+
+    private FakeContext mContext;
+    private SlowService mService;
+    private ComponentName mComponent;
+    private Intent mWork;
+
+    @Setup
+    public void setUp() {
+        mContext = new FakeContext();
+        mService = new SlowService();
+        mContext.bind(mService);
+        mService.setMaxWorkers(workers);
+        mComponent = new ComponentName(mContext, SlowService.class);
+        mWork = new Intent().putExtra("payload", 1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mService.onDestroy();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void handleBatch() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(BATCH);
+        mService.mDone = done;
+        for (int i = 0; i < BATCH; i++) {
+            BelowOJobIntentService.enqueueWork(mContext, mComponent, 1, mWork);
+        }
+        done.await();
+    }
+}
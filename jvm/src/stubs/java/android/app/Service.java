@@ -0,0 +1,71 @@
+package android.app;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.os.IBinder;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
+/**
+ * JVM上的替身：没有ActivityManager，stopSelf只是记下最大的startId。
+ * 几个worker乱序调用stopSelf的时候，框架不会因为后到的一个更早的startId又改变主意，这里也一样。
+ */
+public abstract class Service extends ContextWrapper {
+    public static final int START_STICKY = 1;
+    public static final int START_NOT_STICKY = 2;
+    public static final int START_REDELIVER_INTENT = 3;
+    public static final int START_FLAG_REDELIVERY = 1;
+    public static final int START_FLAG_RETRY = 2;
+
+    private volatile int mLastStopId = -2;
+
+    public Service() {
+        super(null);
+    }
+
+    /**
+     * 代替框架里隐藏的attach：测试和benchmark用它给服务一个Context。
+     */
+    public final void attach(Context base) {
+        attachBaseContext(base);
+    }
+
+    public void onCreate() {
+    }
+
+    public void onDestroy() {
+    }
+
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        return START_STICKY;
+    }
+
+    public abstract IBinder onBind(Intent intent);
+
+    public final void stopSelf() {
+        stopSelf(-1);
+    }
+
+    public final void stopSelf(int startId) {
+        stopSelfResult(startId);
+    }
+
+    public final synchronized boolean stopSelfResult(int startId) {
+        if (startId == -1 || startId > mLastStopId) {
+            mLastStopId = startId;
+        }
+        return true;
+    }
+
+    /**
+     * @return stopSelf过的最大startId，没有调用过的话返回-2
+     */
+    public final int getLastStopId() {
+        return mLastStopId;
+    }
+
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+    }
+}
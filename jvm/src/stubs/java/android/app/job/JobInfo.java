@@ -0,0 +1,42 @@
+package android.app.job;
+
+import android.content.ComponentName;
+
+/**
+ * JVM上的替身
+ */
+public class JobInfo {
+    private final int mId;
+    private final ComponentName mService;
+
+    JobInfo(int id, ComponentName service) {
+        mId = id;
+        mService = service;
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public ComponentName getService() {
+        return mService;
+    }
+
+    public static final class Builder {
+        private final int mId;
+        private final ComponentName mService;
+
+        public Builder(int jobId, ComponentName service) {
+            mId = jobId;
+            mService = service;
+        }
+
+        public Builder setOverrideDeadline(long maxExecutionDelayMillis) {
+            return this;
+        }
+
+        public JobInfo build() {
+            return new JobInfo(mId, mService);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package android.app.job;
+
+import java.util.ArrayDeque;
+
+/**
+ * JVM上的替身：一个内存里的JobWorkItem队列，completeWork只计数。
+ */
+public class JobParameters {
+    private final int mJobId;
+    private final ArrayDeque<JobWorkItem> mWork = new ArrayDeque<>();
+    private int mCompleted;
+
+    public JobParameters(int jobId) {
+        mJobId = jobId;
+    }
+
+    public int getJobId() {
+        return mJobId;
+    }
+
+    public synchronized void enqueue(JobWorkItem work) {
+        mWork.add(work);
+    }
+
+    public synchronized JobWorkItem dequeueWork() {
+        JobWorkItem work = mWork.poll();
+        if (work != null) {
+            work.delivered();
+        }
+        return work;
+    }
+
+    public synchronized void completeWork(JobWorkItem work) {
+        mCompleted++;
+    }
+
+    /**
+     * @return 还没有被取出来的任务数
+     */
+    public synchronized int getPendingCount() {
+        return mWork.size();
+    }
+
+    public synchronized int getCompletedCount() {
+        return mCompleted;
+    }
+}
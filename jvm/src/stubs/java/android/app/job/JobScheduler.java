@@ -0,0 +1,11 @@
+package android.app.job;
+
+/**
+ * JVM上的替身
+ */
+public abstract class JobScheduler {
+    public static final int RESULT_FAILURE = 0;
+    public static final int RESULT_SUCCESS = 1;
+
+    public abstract int enqueue(JobInfo job, JobWorkItem work);
+}
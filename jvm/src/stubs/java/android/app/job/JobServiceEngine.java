@@ -0,0 +1,26 @@
+package android.app.job;
+
+import android.app.Service;
+import android.os.IBinder;
+
+/**
+ * JVM上的替身
+ */
+public abstract class JobServiceEngine {
+    private final IBinder mBinder = new IBinder() {
+    };
+
+    public JobServiceEngine(Service service) {
+    }
+
+    public final IBinder getBinder() {
+        return mBinder;
+    }
+
+    public abstract boolean onStartJob(JobParameters params);
+
+    public abstract boolean onStopJob(JobParameters params);
+
+    public void jobFinished(JobParameters params, boolean wantsReschedule) {
+    }
+}
@@ -0,0 +1,36 @@
+package android.app.job;
+
+import android.content.Intent;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * JVM上的替身：每次从JobParameters取出来投递次数加一。
+ */
+public final class JobWorkItem {
+    private static final AtomicInteger sNextWorkId = new AtomicInteger();
+
+    private final Intent mIntent;
+    private final int mWorkId = sNextWorkId.incrementAndGet();
+    private volatile int mDeliveryCount;
+
+    public JobWorkItem(Intent intent) {
+        mIntent = intent;
+    }
+
+    public Intent getIntent() {
+        return mIntent;
+    }
+
+    public int getDeliveryCount() {
+        return mDeliveryCount;
+    }
+
+    public int getWorkId() {
+        return mWorkId;
+    }
+
+    void delivered() {
+        mDeliveryCount++;
+    }
+}
@@ -0,0 +1,49 @@
+package android.content;
+
+/**
+ * JVM上的替身：按包名和类名比较，可以当map的key。
+ */
+public final class ComponentName {
+    private final String mPackage;
+    private final String mClass;
+
+    public ComponentName(String pkg, String cls) {
+        mPackage = pkg;
+        mClass = cls;
+    }
+
+    public ComponentName(Context context, Class<?> cls) {
+        this(context.getPackageName(), cls.getName());
+    }
+
+    public String getPackageName() {
+        return mPackage;
+    }
+
+    public String getClassName() {
+        return mClass;
+    }
+
+    public String flattenToShortString() {
+        return mPackage + "/" + mClass;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ComponentName)) {
+            return false;
+        }
+        ComponentName other = (ComponentName) o;
+        return mPackage.equals(other.mPackage) && mClass.equals(other.mClass);
+    }
+
+    @Override
+    public int hashCode() {
+        return mPackage.hashCode() * 31 + mClass.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "ComponentInfo{" + flattenToShortString() + "}";
+    }
+}
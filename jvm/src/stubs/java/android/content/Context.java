@@ -0,0 +1,43 @@
+package android.content;
+
+import java.io.File;
+
+/**
+ * JVM上的替身。默认什么都不做，测试里继承它来提供startService和系统服务。
+ */
+public class Context {
+    public static final String POWER_SERVICE = "power";
+    public static final String JOB_SCHEDULER_SERVICE = "jobscheduler";
+
+    public Object getSystemService(String name) {
+        return null;
+    }
+
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    public ComponentName startService(Intent service) {
+        return null;
+    }
+
+    public String getPackageName() {
+        return "com.allan.services";
+    }
+
+    public ClassLoader getClassLoader() {
+        return Context.class.getClassLoader();
+    }
+
+    public File getFilesDir() {
+        return new File(System.getProperty("java.io.tmpdir"));
+    }
+
+    public File getNoBackupFilesDir() {
+        return getFilesDir();
+    }
+
+    public File getCacheDir() {
+        return getFilesDir();
+    }
+}
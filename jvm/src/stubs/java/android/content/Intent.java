@@ -0,0 +1,172 @@
+package android.content;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.HashMap;
+
+/**
+ * JVM上的替身：extras放在一个HashMap里，复制构造会复制extras。不能写进Parcel。
+ */
+public class Intent implements Parcelable {
+    public static final Parcelable.Creator<Intent> CREATOR = new Parcelable.Creator<Intent>() {
+        @Override
+        public Intent createFromParcel(Parcel in) {
+            throw new UnsupportedOperationException("Parcel is not available on the JVM");
+        }
+
+        @Override
+        public Intent[] newArray(int size) {
+            return new Intent[size];
+        }
+    };
+
+    private String mAction;
+    private String mType;
+    private ComponentName mComponent;
+    private HashMap<String, Object> mExtras;
+
+    public Intent() {
+    }
+
+    public Intent(String action) {
+        mAction = action;
+    }
+
+    public Intent(Context context, Class<?> cls) {
+        mComponent = new ComponentName(context, cls);
+    }
+
+    public Intent(Intent o) {
+        mAction = o.mAction;
+        mType = o.mType;
+        mComponent = o.mComponent;
+        if (o.mExtras != null) {
+            mExtras = new HashMap<>(o.mExtras);
+        }
+    }
+
+    public String getAction() {
+        return mAction;
+    }
+
+    public Intent setAction(String action) {
+        mAction = action;
+        return this;
+    }
+
+    public String getType() {
+        return mType;
+    }
+
+    public Intent setType(String type) {
+        mType = type;
+        return this;
+    }
+
+    public ComponentName getComponent() {
+        return mComponent;
+    }
+
+    public Intent setComponent(ComponentName component) {
+        mComponent = component;
+        return this;
+    }
+
+    public void setExtrasClassLoader(ClassLoader loader) {
+    }
+
+    public boolean hasExtra(String name) {
+        return mExtras != null && mExtras.containsKey(name);
+    }
+
+    public Intent removeExtra(String name) {
+        if (mExtras != null) {
+            mExtras.remove(name);
+        }
+        return this;
+    }
+
+    public Intent putExtra(String name, String value) {
+        return put(name, value);
+    }
+
+    public Intent putExtra(String name, int value) {
+        return put(name, value);
+    }
+
+    public Intent putExtra(String name, long value) {
+        return put(name, value);
+    }
+
+    public Intent putExtra(String name, boolean value) {
+        return put(name, value);
+    }
+
+    public Intent putExtra(String name, byte[] value) {
+        return put(name, value);
+    }
+
+    public Intent putExtra(String name, Parcelable value) {
+        return put(name, value);
+    }
+
+    public String getStringExtra(String name) {
+        Object value = get(name);
+        return value instanceof String ? (String) value : null;
+    }
+
+    public int getIntExtra(String name, int defaultValue) {
+        Object value = get(name);
+        return value instanceof Integer ? (Integer) value : defaultValue;
+    }
+
+    public long getLongExtra(String name, long defaultValue) {
+        Object value = get(name);
+        return value instanceof Long ? (Long) value : defaultValue;
+    }
+
+    public boolean getBooleanExtra(String name, boolean defaultValue) {
+        Object value = get(name);
+        return value instanceof Boolean ? (Boolean) value : defaultValue;
+    }
+
+    public byte[] getByteArrayExtra(String name) {
+        Object value = get(name);
+        return value instanceof byte[] ? (byte[]) value : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T extends Parcelable> T getParcelableExtra(String name) {
+        Object value = get(name);
+        return value instanceof Parcelable ? (T) value : null;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel out, int flags) {
+        throw new UnsupportedOperationException("Parcel is not available on the JVM");
+    }
+
+    @Override
+    public String toString() {
+        return "Intent { act=" + mAction + " typ=" + mType + " cmp=" + mComponent
+                + (mExtras != null ? " (has extras)" : "") + " }";
+    }
+
+    private Intent put(String name, Object value) {
+        if (mExtras == null) {
+            mExtras = new HashMap<>();
+        }
+        mExtras.put(name, value);
+        return this;
+    }
+
+    private Object get(String name) {
+        return mExtras != null ? mExtras.get(name) : null;
+    }
+}
@@ -0,0 +1,22 @@
+package android.os;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JVM上的替身，只有THREAD_POOL_EXECUTOR：和框架一样是有上限的线程池，线程都是daemon。
+ */
+public abstract class AsyncTask<Params, Progress, Result> {
+    public static final Executor THREAD_POOL_EXECUTOR = new ThreadPoolExecutor(1, 20, 3, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "AsyncTask");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+}
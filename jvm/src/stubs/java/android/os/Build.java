@@ -0,0 +1,17 @@
+package android.os;
+
+/**
+ * JVM上的替身，当作是androidN_MR1：BelowOJobIntentService走startService，AutoStopService可以用CompletableFuture。
+ */
+public class Build {
+    public static class VERSION {
+        public static final int SDK_INT = 25;
+    }
+
+    public static class VERSION_CODES {
+        public static final int KITKAT = 19;
+        public static final int LOLLIPOP = 21;
+        public static final int N = 24;
+        public static final int O = 26;
+    }
+}
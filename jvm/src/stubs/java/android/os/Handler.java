@@ -0,0 +1,57 @@
+package android.os;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JVM上的替身，支持post、postDelayed和removeCallbacks。
+ */
+public class Handler {
+    private final Looper mLooper;
+    // 还没执行的Runnable，给removeCallbacks用；由this保护
+    private final HashMap<Runnable, ArrayList<Future<?>>> mPending = new HashMap<>();
+
+    public Handler(Looper looper) {
+        mLooper = looper;
+    }
+
+    public final boolean post(Runnable r) {
+        return postDelayed(r, 0);
+    }
+
+    public final boolean postDelayed(final Runnable r, long delayMillis) {
+        final Future<?>[] self = new Future<?>[1];
+        synchronized (this) {
+            self[0] = mLooper.mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (Handler.this) {
+                        ArrayList<Future<?>> futures = mPending.get(r);
+                        if (futures != null && futures.remove(self[0]) && futures.isEmpty()) {
+                            mPending.remove(r);
+                        }
+                    }
+                    r.run();
+                }
+            }, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+            ArrayList<Future<?>> futures = mPending.get(r);
+            if (futures == null) {
+                futures = new ArrayList<>(1);
+                mPending.put(r, futures);
+            }
+            futures.add(self[0]);
+        }
+        return true;
+    }
+
+    public final synchronized void removeCallbacks(Runnable r) {
+        ArrayList<Future<?>> futures = mPending.remove(r);
+        if (futures != null) {
+            for (Future<?> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+}
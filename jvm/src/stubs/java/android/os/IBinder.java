@@ -0,0 +1,7 @@
+package android.os;
+
+/**
+ * JVM上的替身
+ */
+public interface IBinder {
+}
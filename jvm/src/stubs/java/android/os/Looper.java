@@ -0,0 +1,40 @@
+package android.os;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * JVM上的替身：主线程是一个daemon线程，按顺序执行post过来的Runnable。
+ */
+public final class Looper {
+    private static final Looper sMainLooper = new Looper("main");
+
+    final ScheduledThreadPoolExecutor mExecutor;
+    private volatile Thread mThread;
+
+    private Looper(final String name) {
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                mThread = thread;
+                return thread;
+            }
+        });
+        mExecutor.setRemoveOnCancelPolicy(true);
+        mExecutor.prestartAllCoreThreads();
+    }
+
+    public static Looper getMainLooper() {
+        return sMainLooper;
+    }
+
+    public static Looper myLooper() {
+        return Thread.currentThread() == sMainLooper.mThread ? sMainLooper : null;
+    }
+
+    public Thread getThread() {
+        return mThread;
+    }
+}
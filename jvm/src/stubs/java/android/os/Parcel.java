@@ -0,0 +1,27 @@
+package android.os;
+
+/**
+ * JVM上的替身：没有Binder，用到的时候抛UnsupportedOperationException（比如BelowOJobIntentService的磁盘日志）。
+ */
+public final class Parcel {
+    private Parcel() {
+    }
+
+    public static Parcel obtain() {
+        throw new UnsupportedOperationException("Parcel is not available on the JVM");
+    }
+
+    public void recycle() {
+    }
+
+    public byte[] marshall() {
+        throw new UnsupportedOperationException("Parcel is not available on the JVM");
+    }
+
+    public void unmarshall(byte[] data, int offset, int length) {
+        throw new UnsupportedOperationException("Parcel is not available on the JVM");
+    }
+
+    public void setDataPosition(int pos) {
+    }
+}
@@ -0,0 +1,42 @@
+package android.os;
+
+/**
+ * JVM上的替身：wakelock只记引用，不会真的让设备保持唤醒。
+ */
+public final class PowerManager {
+    public static final int PARTIAL_WAKE_LOCK = 1;
+
+    public WakeLock newWakeLock(int levelAndFlags, String tag) {
+        return new WakeLock();
+    }
+
+    public final class WakeLock {
+        private boolean mRefCounted = true;
+        private int mCount;
+
+        WakeLock() {
+        }
+
+        public synchronized void setReferenceCounted(boolean value) {
+            mRefCounted = value;
+        }
+
+        public synchronized void acquire() {
+            mCount = mRefCounted ? mCount + 1 : 1;
+        }
+
+        public void acquire(long timeout) {
+            acquire();
+        }
+
+        public synchronized void release() {
+            if (mCount > 0) {
+                mCount = mRefCounted ? mCount - 1 : 0;
+            }
+        }
+
+        public synchronized boolean isHeld() {
+            return mCount > 0;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.allan.services;
+
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class AutoStopServiceTest {
+    /**
+     * 任务都不自己完成，由用例调用stopWrap
+     */
+    static final class DeferredService extends AutoStopService {
+        @Override
+        protected int executeType(Intent intent) {
+            return EXCUTE_TYPE_DIRECTLY_IN_ExecuteAsync;
+        }
+
+        @Override
+        protected void onHandleWork(Intent intent, int executeType, int startId) {
+        }
+    }
+
+    /**
+     * onHandleWorkAsync还没返回future就抛了异常；ExecuteAsync只有一个名额
+     */
+    static final class ThrowingAsyncService extends AutoStopService {
+        volatile boolean mRejected;
+
+        @Override
+        protected int executeType(Intent intent) {
+            return EXCUTE_TYPE_DIRECTLY_IN_ExecuteAsync;
+        }
+
+        @Override
+        protected int getRouteQueueLimit(int executeType) {
+            return 1;
+        }
+
+        @Override
+        protected CompletableFuture<?> onHandleWorkAsync(Intent intent, int startId) {
+            throw new IllegalStateException("boom");
+        }
+
+        @Override
+        protected void onWorkRejected(Intent intent, int executeType, int startId) {
+            mRejected = true;
+        }
+    }
+
+    static final class MainRouteService extends AutoStopService {
+        final LinkedBlockingQueue<String> mOrder = new LinkedBlockingQueue<>();
+
+        @Override
+        protected int executeType(Intent intent) {
+            return EXCUTE_TYPE_IN_MainHandler;
+        }
+
+        @Override
+        protected void onHandleWork(Intent intent, int executeType, int startId) {
+            mOrder.add("work" + startId);
+        }
+    }
+
+    @Test
+    public void stopsOnlyAfterEveryStartIdIsWrapped() {
+        FakeContext context = new FakeContext();
+        DeferredService service = new DeferredService();
+        context.bind(service);
+        for (int i = 0; i < 100; i++) {
+            context.startService(new Intent());
+        }
+
+        // 倒着完成，最早的那个留到最后
+        for (int startId = 100; startId > 1; startId--) {
+            service.stopWrap(startId);
+        }
+        assertEquals(-2, service.getLastStopId());
+        service.stopWrap("1");
+        assertEquals(100, service.getLastStopId());
+        service.onDestroy();
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void wrappingAStartIdTwiceThrows() {
+        FakeContext context = new FakeContext();
+        DeferredService service = new DeferredService();
+        context.bind(service);
+        context.startService(new Intent());
+        context.startService(new Intent());
+        service.stopWrap(1);
+        service.stopWrap(1);
+    }
+
+    @Test
+    public void mainRouteRunsEachWorkAsItsOwnMessage() throws Exception {
+        FakeContext context = new FakeContext();
+        final MainRouteService service = new MainRouteService();
+        context.bind(service);
+        Handler main = new Handler(Looper.getMainLooper());
+        final CountDownLatch release = new CountDownLatch(1);
+        main.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        // 主线程被挡住的时候排了两个任务，之后又post了一条别的消息
+        context.startService(new Intent());
+        context.startService(new Intent());
+        main.post(new Runnable() {
+            @Override
+            public void run() {
+                service.mOrder.add("other");
+            }
+        });
+        release.countDown();
+
+        assertEquals("work1", service.mOrder.poll(5, TimeUnit.SECONDS));
+        assertEquals("other", service.mOrder.poll(5, TimeUnit.SECONDS));
+        assertEquals("work2", service.mOrder.poll(5, TimeUnit.SECONDS));
+        BelowOJobIntentServiceTest.awaitStopId(service, 2);
+        service.onDestroy();
+    }
+
+    @Test
+    public void asyncWorkThatThrowsReleasesItsPermitAndStartId() {
+        FakeContext context = new FakeContext();
+        ThrowingAsyncService service = new ThrowingAsyncService();
+        context.bind(service);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                context.startService(new Intent());
+                fail();
+            } catch (IllegalStateException expected) {
+            }
+            assertEquals(i + 1, service.getLastStopId());
+        }
+        // 第二次还拿得到名额
+        assertFalse(service.mRejected);
+        service.onDestroy();
+    }
+}
@@ -0,0 +1,658 @@
+package com.allan.services;
+
+import android.app.Service;
+import android.content.ComponentName;
+import android.content.Intent;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 在替身上把服务完整地跑一遍，确认benchmark测到的是真正的排队、出列和stopSelf。
+ *
+ * WorkEnqueuer按ComponentName全局缓存，并且记住了第一次的Context，所以每个用例用自己的服务类。
+ */
+public class BelowOJobIntentServiceTest {
+    static final class CountingService extends BelowOJobIntentService {
+        final CountDownLatch mHandled;
+
+        CountingService(int count) {
+            mHandled = new CountDownLatch(count);
+        }
+
+        @Override
+        protected void onHandleWork(Intent intent) {
+            mHandled.countDown();
+        }
+    }
+
+    /**
+     * 每个任务都等到有workers个任务同时在执行才返回，所以只有真的并行才能全部处理完
+     */
+    static final class ConcurrentService extends BelowOJobIntentService {
+        final CountDownLatch mAllRunning;
+        volatile boolean mOverlapped = true;
+
+        ConcurrentService(int workers) {
+            mAllRunning = new CountDownLatch(workers);
+        }
+
+        @Override
+        protected void onHandleWork(Intent intent) {
+            mAllRunning.countDown();
+            try {
+                if (!mAllRunning.await(5, TimeUnit.SECONDS)) {
+                    mOverlapped = false;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 第一个任务等第二个任务完成以后才完成
+     */
+    static final class OutOfOrderService extends BelowOJobIntentService {
+        final CountDownLatch mSecondDone = new CountDownLatch(1);
+        final CountDownLatch mReleaseFirst = new CountDownLatch(1);
+        final CountDownLatch mFirstDone = new CountDownLatch(1);
+
+        @Override
+        protected void onHandleWork(Intent intent) {
+            try {
+                if (intent.getIntExtra("i", 0) == 1) {
+                    mReleaseFirst.await(5, TimeUnit.SECONDS);
+                    mFirstDone.countDown();
+                } else {
+                    mSecondDone.countDown();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    static final class RacingService extends BelowOJobIntentService {
+        final CountDownLatch mHandled = new CountDownLatch(8);
+
+        @Override
+        protected void onHandleWork(Intent intent) {
+            mHandled.countDown();
+        }
+    }
+
+    static final class BatchService extends BelowOJobIntentService {
+        final List<Integer> mHandled = new ArrayList<>();
+
+        @Override
+        protected void onHandleWork(Intent intent) {
+            synchronized (mHandled) {
+                mHandled.add(intent.getIntExtra("i", -1));
+            }
+        }
+    }
+
+    static final class JobIdService extends BelowOJobIntentService {
+        @Override
+        protected void onHandleWork(Intent intent) {
+        }
+    }
+
+    static final class FailingService extends BelowOJobIntentService {
+        final LinkedBlockingQueue<Integer> mFailedAttempts = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onCreate() {
+            super.onCreate();
+            setRetryPolicy(new WorkRetryPolicy(3, 1, 1, 1, 0));
+        }
+
+        @Override
+        protected void onHandleWork(Intent intent) {
+            throw new IllegalStateException("attempt " + intent.getIntExtra(WorkRetryPolicy.EXTRA_ATTEMPT, 0));
+        }
+
+        @Override
+        protected void onWorkFailed(Intent intent, Throwable error, int attempts) {
+            mFailedAttempts.add(attempts);
+        }
+    }
+
+    /**
+     * worker不会启动，由用例自己调用dequeueWork
+     */
+    static class ManualService extends BelowOJobIntentService {
+        @Override
+        public void onCreate() {
+            super.onCreate();
+            setWorkExecutor(new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                }
+            });
+        }
+
+        @Override
+        protected void onHandleWork(Intent intent) {
+        }
+
+        int dequeue() {
+            GenericWorkItem work = dequeueWork();
+            if (work == null) {
+                return -1;
+            }
+            work.complete();
+            return work.getIntent().getIntExtra("i", 0);
+        }
+    }
+
+    static final class LanesService extends ManualService {
+    }
+
+    static final class TaggedService extends ManualService {
+    }
+
+    static final class CancelledService extends ManualService {
+    }
+
+    static final class SerialService extends ManualService {
+    }
+
+    static final class DropOldestService extends ManualService {
+    }
+
+    static final class DropRunningService extends ManualService {
+    }
+
+    static final class DelayedService extends ManualService {
+    }
+
+    static final class TypedService extends ManualService {
+    }
+
+    static final class CoalescingService extends ManualService {
+    }
+
+    /**
+     * key是extra "k"，合并出来的Intent换了一个key
+     */
+    static final BelowOJobIntentService.WorkCoalescer RENAMING_COALESCER = new BelowOJobIntentService.WorkCoalescer() {
+        @Override
+        public Object getCoalesceKey(Intent intent) {
+            return intent.getStringExtra("k");
+        }
+
+        @Override
+        public Intent merge(Intent pending, Intent incoming) {
+            return new Intent().putExtra("k", "merged");
+        }
+    };
+
+    static final WorkPayload.Codec<String> STRING_CODEC = new WorkPayload.Codec<String>() {
+        @Override
+        public byte[] encode(String work) {
+            return work.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String decode(byte[] bytes) {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+
+    /**
+     * 记下处理的顺序
+     */
+    static final class OrderService extends BelowOJobIntentService {
+        final int[] mOrder;
+        int mHandled;
+
+        OrderService(int count) {
+            mOrder = new int[count];
+        }
+
+        @Override
+        protected void onHandleWork(Intent intent) {
+            mOrder[mHandled++] = intent.getIntExtra("i", -1);
+        }
+    }
+
+    static final class MetricsService extends BelowOJobIntentService {
+        final CountDownLatch mHandled = new CountDownLatch(10);
+        volatile boolean mSawEnqueueTime;
+
+        @Override
+        public void onCreate() {
+            super.onCreate();
+            enableWorkMetrics();
+        }
+
+        @Override
+        protected void onHandleWork(Intent intent) {
+            if (intent.hasExtra(WorkMetrics.EXTRA_ENQUEUE_TIME)) {
+                mSawEnqueueTime = true;
+            }
+            mHandled.countDown();
+        }
+    }
+
+    @Test
+    public void handlesEveryWorkAndStopsWithTheLastStartId() throws Exception {
+        FakeContext context = new FakeContext();
+        CountingService service = new CountingService(100);
+        context.bind(service);
+        service.setMaxWorkers(4);
+
+        for (int i = 0; i < 100; i++) {
+            BelowOJobIntentService.enqueueWork(context, CountingService.class, 1, new Intent().putExtra("i", i));
+        }
+
+        assertTrue(service.mHandled.await(10, TimeUnit.SECONDS));
+        awaitStopId(service, 100);
+        service.onDestroy();
+    }
+
+    @Test
+    public void runsUpToMaxWorkersAtOnce() throws Exception {
+        FakeContext context = new FakeContext();
+        ConcurrentService service = new ConcurrentService(4);
+        context.bind(service);
+        service.setMaxWorkers(4);
+
+        for (int i = 0; i < 4; i++) {
+            BelowOJobIntentService.enqueueWork(context, ConcurrentService.class, 1, new Intent().putExtra("i", i));
+        }
+
+        awaitStopId(service, 4);
+        assertTrue(service.mOverlapped);
+        service.onDestroy();
+    }
+
+    @Test
+    public void stopsOnlyAfterOutOfOrderCompletion() throws Exception {
+        FakeContext context = new FakeContext();
+        OutOfOrderService service = new OutOfOrderService();
+        context.bind(service);
+        service.setMaxWorkers(2);
+
+        BelowOJobIntentService.enqueueWork(context, OutOfOrderService.class, 1, new Intent().putExtra("i", 1));
+        BelowOJobIntentService.enqueueWork(context, OutOfOrderService.class, 1, new Intent().putExtra("i", 2));
+
+        assertTrue(service.mSecondDone.await(5, TimeUnit.SECONDS));
+        // startId 2先完成，1还在执行，不能stopSelf
+        Thread.sleep(50);
+        assertEquals(-2, service.getLastStopId());
+
+        service.mReleaseFirst.countDown();
+        assertTrue(service.mFirstDone.await(5, TimeUnit.SECONDS));
+        awaitStopId(service, 2);
+        service.onDestroy();
+    }
+
+    @Test
+    public void drainsALargeBacklogInOrder() throws Exception {
+        FakeContext context = new FakeContext();
+        OrderService service = new OrderService(20000);
+        context.bind(service);
+
+        for (int i = 0; i < 20000; i++) {
+            BelowOJobIntentService.enqueueWork(context, OrderService.class, 1, new Intent().putExtra("i", i));
+        }
+
+        awaitStopId(service, 20000);
+        for (int i = 0; i < 20000; i++) {
+            assertEquals(i, service.mOrder[i]);
+        }
+        service.onDestroy();
+    }
+
+    @Test
+    public void firstEnqueuesFromManyThreadsShareOneEnqueuer() throws Exception {
+        final FakeContext context = new FakeContext();
+        RacingService service = new RacingService();
+        context.bind(service);
+        final CyclicBarrier barrier = new CyclicBarrier(8);
+        Thread[] producers = new Thread[8];
+        for (int i = 0; i < producers.length; i++) {
+            producers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        barrier.await();
+                    } catch (Exception e) {
+                        throw new AssertionError(e);
+                    }
+                    BelowOJobIntentService.enqueueWork(context, RacingService.class, 1, new Intent());
+                }
+            });
+            producers[i].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        assertTrue(service.mHandled.await(10, TimeUnit.SECONDS));
+        awaitStopId(service, 8);
+        service.onDestroy();
+    }
+
+    @Test
+    public void batchIsAcceptedAndHandledInOrder() throws Exception {
+        FakeContext context = new FakeContext();
+        BatchService service = new BatchService();
+        context.bind(service);
+        List<Intent> works = new ArrayList<>();
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            works.add(new Intent().putExtra("i", i));
+            expected.add(i);
+        }
+
+        assertEquals(50, BelowOJobIntentService.enqueueWork(context, BatchService.class, 1, works));
+        awaitStopId(service, 50);
+        synchronized (service.mHandled) {
+            assertEquals(expected, service.mHandled);
+        }
+        service.onDestroy();
+    }
+
+    @Test
+    public void interleavesPriorityLanesByWeight() {
+        LanesService service = new LanesService();
+        new FakeContext().bind(service);
+        service.setPriorityWeights(2, 1);
+        int startId = 0;
+        for (int i = 0; i < 30; i++) {
+            service.onStartCommand(new Intent().putExtra(BelowOJobIntentService.EXTRA_WORK_PRIORITY, 0), 0, ++startId);
+            service.onStartCommand(new Intent().putExtra(BelowOJobIntentService.EXTRA_WORK_PRIORITY, 1), 0, ++startId);
+        }
+
+        int high = 0;
+        for (int i = 0; i < 30; i++) {
+            BelowOJobIntentService.GenericWorkItem work = service.dequeueWork();
+            if (work.getIntent().getIntExtra(BelowOJobIntentService.EXTRA_WORK_PRIORITY, -1) == 0) {
+                high++;
+            }
+            work.complete();
+        }
+        // 2:1的权重，低优先级的通道也能分到三分之一
+        assertEquals(20, high);
+        service.onDestroy();
+    }
+
+    @Test
+    public void metricsCountEveryWorkAndHideTheEnqueueTime() throws Exception {
+        FakeContext context = new FakeContext();
+        MetricsService service = new MetricsService();
+        context.bind(service);
+        for (int i = 0; i < 10; i++) {
+            BelowOJobIntentService.enqueueWork(context, MetricsService.class, 1, new Intent().putExtra("i", i));
+        }
+
+        assertTrue(service.mHandled.await(5, TimeUnit.SECONDS));
+        awaitStopId(service, 10);
+        WorkMetrics.Snapshot snapshot = service.getWorkMetrics().snapshot();
+        assertEquals(10, snapshot.received);
+        assertEquals(10, snapshot.completed);
+        assertEquals(0, snapshot.queueDepth);
+        assertEquals(10, snapshot.waitTime.count);
+        assertEquals(10, snapshot.serviceTime.count);
+        // 排队时间的extra在onHandleWork之前已经拿掉了
+        assertFalse(service.mSawEnqueueTime);
+        service.onDestroy();
+    }
+
+    @Test
+    public void typedWorkKeepsTheExtrasOfItsBaseIntent() {
+        FakeContext context = new FakeContext();
+        TypedService service = new TypedService();
+        context.bind(service);
+
+        Intent base = new Intent().putExtra("i", 1);
+        BelowOJobIntentService.enqueueWork(context, TypedService.class, 1, base, STRING_CODEC, "first");
+        BelowOJobIntentService.enqueueWork(context, TypedService.class, 1, base.putExtra("i", 2),
+                STRING_CODEC, "second");
+
+        // 每次排的是base当时的副本，base本身没有被放进payload
+        assertNull(base.getByteArrayExtra(WorkPayload.EXTRA_PAYLOAD));
+        BelowOJobIntentService.GenericWorkItem work = service.dequeueWork();
+        assertEquals(1, work.getIntent().getIntExtra("i", 0));
+        assertEquals("first", WorkPayload.decode(work.getIntent(), STRING_CODEC));
+        work.complete();
+        work = service.dequeueWork();
+        assertEquals(2, work.getIntent().getIntExtra("i", 0));
+        assertEquals("second", WorkPayload.decode(work.getIntent(), STRING_CODEC));
+        work.complete();
+        assertEquals(2, service.getLastStopId());
+        service.onDestroy();
+    }
+
+    @Test
+    public void runWakeLockIsKeptBetweenBackToBackRounds() {
+        FakeContext context = new FakeContext();
+        ComponentName cn = new ComponentName(context, JobIdService.class);
+        BelowOJobIntentService.CompatWorkEnqueuer we = new BelowOJobIntentService.CompatWorkEnqueuer(context, cn);
+
+        // 第一轮还没有空闲时间的样本，结束的时候马上release
+        we.serviceProcessingStarted();
+        we.serviceProcessingFinished();
+        assertEquals(1, we.getWakeLockStats().acquireCount);
+
+        // 两轮之间几乎没有空闲，第二轮结束以后run wakelock多留一会儿，第三轮接着用，不用再acquire
+        we.serviceProcessingStarted();
+        we.serviceProcessingFinished();
+        we.serviceProcessingStarted();
+        assertEquals(2, we.getWakeLockStats().acquireCount);
+        we.serviceDestroyed();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsADifferentJobIdForTheSameService() {
+        FakeContext context = new FakeContext();
+        BelowOJobIntentService.enqueueWork(context, JobIdService.class, 1, new Intent());
+        BelowOJobIntentService.enqueueWork(context, JobIdService.class, 2, new Intent());
+    }
+
+    @Test
+    public void coalescedWorkReleasesTheKeysItWasQueuedWith() {
+        FakeContext context = new FakeContext();
+        CoalescingService service = new CoalescingService();
+        context.bind(service);
+        service.setWorkCoalescer(RENAMING_COALESCER);
+        WorkCapacity capacity = BelowOJobIntentService.setWorkCapacity(context, CoalescingService.class, 1,
+                1, WorkCapacity.OVERFLOW_COALESCE, 0, RENAMING_COALESCER);
+
+        assertEquals(WorkCapacity.ENQUEUE_ACCEPTED, BelowOJobIntentService.tryEnqueueWork(context,
+                CoalescingService.class, 1, new Intent().putExtra("k", "a")));
+        assertEquals(WorkCapacity.ENQUEUE_COALESCED, BelowOJobIntentService.tryEnqueueWork(context,
+                CoalescingService.class, 1, new Intent().putExtra("k", "a")));
+        BelowOJobIntentService.GenericWorkItem work = service.dequeueWork();
+        assertEquals("merged", work.getIntent().getStringExtra("k"));
+        work.complete();
+        assertEquals(0, capacity.getQueuedCount());
+
+        // "a"已经完成了，满了以后不能再按"a"合并进来
+        BelowOJobIntentService.tryEnqueueWork(context, CoalescingService.class, 1, new Intent().putExtra("k", "b"));
+        assertEquals(WorkCapacity.ENQUEUE_REJECTED, BelowOJobIntentService.tryEnqueueWork(context,
+                CoalescingService.class, 1, new Intent().putExtra("k", "a")));
+        service.onDestroy();
+    }
+
+    @Test
+    public void dropOldestDropsTheOldestQueuedWork() {
+        FakeContext context = new FakeContext();
+        DropOldestService service = new DropOldestService();
+        context.bind(service);
+        WorkCapacity capacity = BelowOJobIntentService.setWorkCapacity(context, DropOldestService.class, 1,
+                2, WorkCapacity.OVERFLOW_DROP_OLDEST, 0, null);
+
+        for (int i = 1; i <= 2; i++) {
+            assertEquals(WorkCapacity.ENQUEUE_ACCEPTED, BelowOJobIntentService.tryEnqueueWork(context,
+                    DropOldestService.class, 1, new Intent().putExtra("i", i)));
+        }
+        assertEquals(WorkCapacity.ENQUEUE_DROPPED_OLDEST, BelowOJobIntentService.tryEnqueueWork(context,
+                DropOldestService.class, 1, new Intent().putExtra("i", 3)));
+
+        assertEquals(2, service.dequeue());
+        assertEquals(3, service.dequeue());
+        assertEquals(-1, service.dequeue());
+        assertEquals(3, service.getLastStopId());
+        assertEquals(1, capacity.getDroppedCount());
+        assertEquals(0, capacity.getQueuedCount());
+        service.onDestroy();
+    }
+
+    @Test
+    public void dropOldestNeverDropsRunningWork() {
+        FakeContext context = new FakeContext();
+        DropRunningService service = new DropRunningService();
+        context.bind(service);
+        WorkCapacity capacity = BelowOJobIntentService.setWorkCapacity(context, DropRunningService.class, 1,
+                1, WorkCapacity.OVERFLOW_DROP_OLDEST, 0, null);
+
+        BelowOJobIntentService.tryEnqueueWork(context, DropRunningService.class, 1, new Intent().putExtra("i", 1));
+        // 取出来了、还在执行
+        BelowOJobIntentService.GenericWorkItem running = service.dequeueWork();
+        assertEquals(WorkCapacity.ENQUEUE_REJECTED, BelowOJobIntentService.tryEnqueueWork(context,
+                DropRunningService.class, 1, new Intent().putExtra("i", 2)));
+
+        running.complete();
+        assertEquals(1, service.getLastStopId());
+        assertEquals(0, capacity.getDroppedCount());
+        service.onDestroy();
+    }
+
+    @Test
+    public void delayedWorkIsEnqueuedWhenDueUnlessCancelled() throws Exception {
+        FakeContext context = new FakeContext();
+        DelayedService service = new DelayedService();
+        context.bind(service);
+        ScheduledFuture<?> cancelled = BelowOJobIntentService.enqueueWorkDelayed(context, DelayedService.class, 1,
+                new Intent().putExtra("i", 1), 200);
+        BelowOJobIntentService.enqueueWorkDelayed(context, DelayedService.class, 1,
+                new Intent().putExtra("i", 2), 200);
+        assertTrue(cancelled.cancel(false));
+        // 还没到期，服务没有被启动
+        assertEquals(0, context.getLastStartId());
+
+        int handled;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while ((handled = service.dequeue()) == -1 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(2, handled);
+        assertEquals(1, context.getLastStartId());
+        service.onDestroy();
+    }
+
+    @Test
+    public void failingWorkIsRetriedAndThenDeadLettered() throws Exception {
+        FakeContext context = new FakeContext();
+        FailingService service = new FailingService();
+        context.bind(service);
+        BelowOJobIntentService.enqueueWork(context, FailingService.class, 1, new Intent().putExtra("i", 1));
+
+        assertEquals(Integer.valueOf(3), service.mFailedAttempts.poll(10, TimeUnit.SECONDS));
+        // 每次重试都重新排队了一次
+        awaitStopId(service, 3);
+        WorkDeadLetters deadLetters = BelowOJobIntentService.getDeadLetters(
+                new ComponentName(context, FailingService.class));
+        assertEquals(1, deadLetters.size());
+        WorkDeadLetters.Entry entry = deadLetters.poll();
+        assertEquals(3, entry.attempts);
+        assertEquals(1, entry.intent.getIntExtra("i", 0));
+        assertEquals("attempt 2", entry.error.getMessage());
+        service.onDestroy();
+    }
+
+    @Test
+    public void cancelSkipsOnlyWorkQueuedBeforeIt() {
+        FakeContext context = new FakeContext();
+        TaggedService service = new TaggedService();
+        context.bind(service);
+        service.setPriorityWeights(1, 1);
+
+        BelowOJobIntentService.enqueueWork(context, TaggedService.class, 1, new Intent().putExtra("i", 1)
+                .putExtra(BelowOJobIntentService.EXTRA_WORK_TAG, "sync")
+                .putExtra(BelowOJobIntentService.EXTRA_WORK_PRIORITY, 1));
+        assertEquals(1, BelowOJobIntentService.cancelWork(context, TaggedService.class, "sync"));
+        // 取消以后排的同tag任务，优先级更高，先出列
+        BelowOJobIntentService.enqueueWork(context, TaggedService.class, 1, new Intent().putExtra("i", 2)
+                .putExtra(BelowOJobIntentService.EXTRA_WORK_TAG, "sync")
+                .putExtra(BelowOJobIntentService.EXTRA_WORK_PRIORITY, 0));
+
+        assertEquals(2, service.dequeue());
+        assertEquals(-1, service.dequeue());
+        assertEquals(2, service.getLastStopId());
+        service.onDestroy();
+    }
+
+    @Test
+    public void cancelRemovesQueuedWorkWithoutWaitingForAWorker() {
+        FakeContext context = new FakeContext();
+        CancelledService service = new CancelledService();
+        context.bind(service);
+
+        for (int i = 1; i <= 2; i++) {
+            BelowOJobIntentService.enqueueWork(context, CancelledService.class, 1, new Intent().putExtra("i", i)
+                    .putExtra(BelowOJobIntentService.EXTRA_WORK_TAG, "sync"));
+        }
+        BelowOJobIntentService.enqueueWork(context, CancelledService.class, 1, new Intent().putExtra("i", 3));
+        assertEquals(2, BelowOJobIntentService.cancelWork(context, CancelledService.class, "sync"));
+        // 没有worker出列，startId 1和2已经完成了
+        assertEquals(2, service.getLastStopId());
+
+        assertEquals(3, service.dequeue());
+        assertEquals(-1, service.dequeue());
+        assertEquals(3, service.getLastStopId());
+        service.onDestroy();
+    }
+
+    @Test
+    public void workWithTheSameSerialKeyWaitsForThePreviousOne() {
+        FakeContext context = new FakeContext();
+        SerialService service = new SerialService();
+        context.bind(service);
+        BelowOJobIntentService.enqueueWork(context, SerialService.class, 1, new Intent().putExtra("i", 1)
+                .putExtra(BelowOJobIntentService.EXTRA_SERIAL_KEY, "a"));
+        BelowOJobIntentService.enqueueWork(context, SerialService.class, 1, new Intent().putExtra("i", 2)
+                .putExtra(BelowOJobIntentService.EXTRA_SERIAL_KEY, "a"));
+        BelowOJobIntentService.enqueueWork(context, SerialService.class, 1, new Intent().putExtra("i", 3)
+                .putExtra(BelowOJobIntentService.EXTRA_SERIAL_KEY, "b"));
+
+        BelowOJobIntentService.GenericWorkItem first = service.dequeueWork();
+        assertEquals(1, first.getIntent().getIntExtra("i", 0));
+        // 2排在1后面，不占worker，另一个worker可以先做3
+        assertEquals(3, service.dequeue());
+        assertNull(service.dequeueWork());
+
+        first.complete();
+        assertEquals(2, service.dequeue());
+        assertEquals(-1, service.dequeue());
+        assertEquals(3, service.getLastStopId());
+        service.onDestroy();
+    }
+
+    static void awaitStopId(Service service, int stopId) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (service.getLastStopId() != stopId && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(stopId, service.getLastStopId());
+    }
+}
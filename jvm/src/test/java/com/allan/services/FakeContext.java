@@ -0,0 +1,49 @@
+package com.allan.services;
+
+import android.app.Service;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.os.PowerManager;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 测试和benchmark共用的Context：有PowerManager，startService可以直接交给一个服务。
+ *
+ * 没有设置服务的时候startService只是接受下来，用来单独测排队这一侧；设置了以后在调用方的线程里同步调用
+ * onStartCommand，startId从1开始递增，和系统一样。
+ */
+public class FakeContext extends Context {
+    private final PowerManager mPowerManager = new PowerManager();
+    private final AtomicInteger mStartId = new AtomicInteger();
+    private volatile Service mService;
+
+    /**
+     * 之后startService的任务都交给service，同时把自己attach给它并调用onCreate
+     */
+    public void bind(Service service) {
+        service.attach(this);
+        service.onCreate();
+        mService = service;
+    }
+
+    public int getLastStartId() {
+        return mStartId.get();
+    }
+
+    @Override
+    public Object getSystemService(String name) {
+        return POWER_SERVICE.equals(name) ? mPowerManager : null;
+    }
+
+    @Override
+    public ComponentName startService(Intent service) {
+        int startId = mStartId.incrementAndGet();
+        Service target = mService;
+        if (target != null) {
+            target.onStartCommand(service, 0, startId);
+        }
+        return service.getComponent();
+    }
+}
@@ -0,0 +1,381 @@
+package com.allan.services;
+
+import android.app.job.JobParameters;
+import android.app.job.JobWorkItem;
+import android.content.ComponentName;
+import android.content.Intent;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class JobIntentXServiceTest {
+    static final class ThreadRecordingService extends JobIntentXService {
+        final LinkedBlockingQueue<Thread> mThreads = new LinkedBlockingQueue<>();
+
+        @Override
+        protected void onHandleWork(Intent intent) {
+            mThreads.add(Thread.currentThread());
+        }
+    }
+
+    static final class BatchingService extends JobIntentXService {
+        final LinkedBlockingQueue<Integer> mBatchSizes = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onCreate() {
+            super.onCreate();
+            setWorkBatching(4, 0);
+        }
+
+        @Override
+        protected void onHandleWorkBatch(List<Intent> intents) {
+            mBatchSizes.add(intents.size());
+        }
+
+        @Override
+        protected void onHandleWork(Intent intent) {
+        }
+    }
+
+    /**
+     * worker不会启动，由用例自己调用dequeueWork
+     */
+    static class ManualService extends JobIntentXService {
+        @Override
+        public void onCreate() {
+            super.onCreate();
+            setWorkExecutor(new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                }
+            });
+        }
+
+        @Override
+        protected void onHandleWork(Intent intent) {
+        }
+    }
+
+    static final class RestartedService extends ManualService {
+    }
+
+    static final class CheckpointService extends ManualService {
+    }
+
+    static final class AbandoningService extends ManualService {
+        @Override
+        public boolean onStopCurrentWork() {
+            return false;
+        }
+    }
+
+    static final class DropOldestService extends ManualService {
+    }
+
+    static final class TaggedService extends ManualService {
+    }
+
+    static final class SerialService extends ManualService {
+    }
+
+    static final class CoalescingService extends ManualService {
+        @Override
+        public void onCreate() {
+            super.onCreate();
+            setWorkCoalescer(new WorkCoalescer() {
+                @Override
+                public Object getCoalesceKey(Intent intent) {
+                    return intent.getIntExtra("i", 0) % 2;
+                }
+
+                @Override
+                public Intent merge(Intent pending, Intent incoming) {
+                    return incoming;
+                }
+            });
+        }
+    }
+
+    @Test
+    public void coalescesOnlyWithinTheWindow() {
+        CoalescingService service = new CoalescingService();
+        new FakeContext().bind(service);
+        JobIntentXService.JobServiceEngineImpl job = (JobIntentXService.JobServiceEngineImpl) service.mJobImpl;
+        JobParameters params = new JobParameters(1);
+        for (int i = 0; i < 100; i++) {
+            params.enqueue(new JobWorkItem(new Intent().putExtra("i", i)));
+        }
+        job.onStartJob(params);
+
+        JobIntentXService.GenericWorkItem work = service.dequeueWork();
+        int window = JobIntentXService.JobServiceEngineImpl.COALESCE_WINDOW;
+        // 只取了一个窗口，窗口里的偶数合并成了一个
+        assertEquals(100 - window, params.getPendingCount());
+        assertEquals(window - 2, work.getIntent().getIntExtra("i", 0));
+        work.complete();
+        assertEquals(window / 2, params.getCompletedCount());
+        service.onDestroy();
+    }
+
+    @Test
+    public void coalescedWorkLeftByAStoppedJobLeavesTheQueueDepth() {
+        CoalescingService service = new CoalescingService();
+        new FakeContext().bind(service);
+        WorkMetrics metrics = service.enableWorkMetrics();
+        JobIntentXService.JobServiceEngineImpl job = (JobIntentXService.JobServiceEngineImpl) service.mJobImpl;
+        JobParameters params = new JobParameters(1);
+        for (int i = 0; i < 4; i++) {
+            params.enqueue(new JobWorkItem(new Intent().putExtra("i", i)));
+        }
+        job.onStartJob(params);
+
+        // 合并成了奇偶两个，取走一个以后另一个还在mPendingWork里
+        service.dequeueWork();
+        WorkMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(4, snapshot.received);
+        assertEquals(2, snapshot.coalesced);
+        assertEquals(2, snapshot.queueDepth);
+
+        job.onStopJob(params);
+        snapshot = metrics.snapshot();
+        assertEquals(1, snapshot.discarded);
+        // 取走的那个是用例自己出列的，没有经过engine开始处理，还算在排队
+        assertEquals(1, snapshot.queueDepth);
+        service.onDestroy();
+    }
+
+    @Test
+    public void workFromAStoppedJobIsNotCompletedOnTheNextOne() {
+        RestartedService service = new RestartedService();
+        new FakeContext().bind(service);
+        JobIntentXService.JobServiceEngineImpl job = (JobIntentXService.JobServiceEngineImpl) service.mJobImpl;
+        JobParameters first = new JobParameters(1);
+        first.enqueue(new JobWorkItem(new Intent()));
+        job.onStartJob(first);
+        JobIntentXService.GenericWorkItem running = service.dequeueWork();
+
+        // 旧的任务还在onHandleWork里面，job就被停止并且重新开始了
+        job.onStopJob(first);
+        JobParameters second = new JobParameters(1);
+        job.onStartJob(second);
+        running.complete();
+
+        assertEquals(0, first.getCompletedCount());
+        assertEquals(0, second.getCompletedCount());
+        // 换成了别的executor，没有建处理线程
+        assertNull(service.mProcessorExecutor);
+        service.onDestroy();
+    }
+
+    @Test
+    public void handsOutBatchesOfAtMostMaxBatchSize() throws Exception {
+        BatchingService service = new BatchingService();
+        new FakeContext().bind(service);
+        JobIntentXService.JobServiceEngineImpl job = (JobIntentXService.JobServiceEngineImpl) service.mJobImpl;
+        JobParameters params = new JobParameters(1);
+        for (int i = 0; i < 10; i++) {
+            params.enqueue(new JobWorkItem(new Intent().putExtra("i", i)));
+        }
+        job.onStartJob(params);
+
+        assertEquals(Integer.valueOf(4), service.mBatchSizes.poll(5, TimeUnit.SECONDS));
+        assertEquals(Integer.valueOf(4), service.mBatchSizes.poll(5, TimeUnit.SECONDS));
+        assertEquals(Integer.valueOf(2), service.mBatchSizes.poll(5, TimeUnit.SECONDS));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (params.getCompletedCount() != 10 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(10, params.getCompletedCount());
+        service.onDestroy();
+    }
+
+    @Test
+    public void checkpointIsSavedInTheBackgroundAndDeletedOnCompletion() throws Exception {
+        CheckpointService service = new CheckpointService();
+        new FakeContext().bind(service);
+        JobIntentXService.JobServiceEngineImpl job = (JobIntentXService.JobServiceEngineImpl) service.mJobImpl;
+        JobWorkItem item = new JobWorkItem(new Intent());
+        JobParameters first = new JobParameters(7);
+        first.enqueue(item);
+        job.onStartJob(first);
+        final JobIntentXService.JobServiceEngineImpl.WrapperWorkItem running =
+                (JobIntentXService.JobServiceEngineImpl.WrapperWorkItem) service.dequeueWork();
+        running.setCheckpoint(new byte[]{42});
+        service.mRunningWork.put(Thread.currentThread(), running);
+
+        job.onStopJob(first);
+        service.mRunningWork.remove(Thread.currentThread());
+        byte[] saved = null;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (saved == null && System.nanoTime() < deadline) {
+            saved = service.mCheckpoints.load(7, item.getWorkId());
+            Thread.sleep(1);
+        }
+        assertArrayEquals(new byte[]{42}, saved);
+        // 别的job里同一个workId的任务看不到这份进度
+        assertNull(service.mCheckpoints.load(8, item.getWorkId()));
+
+        // 重新投递
+        JobParameters second = new JobParameters(7);
+        second.enqueue(item);
+        job.onStartJob(second);
+        JobIntentXService.JobServiceEngineImpl.WrapperWorkItem redelivered =
+                (JobIntentXService.JobServiceEngineImpl.WrapperWorkItem) service.dequeueWork();
+        assertArrayEquals(new byte[]{42}, redelivered.getCheckpoint());
+        redelivered.complete();
+        assertNull(service.mCheckpoints.load(7, item.getWorkId()));
+        assertEquals(1, second.getCompletedCount());
+        service.onDestroy();
+    }
+
+    @Test
+    public void abandonedJobReleasesItsCapacity() {
+        FakeContext context = new FakeContext();
+        AbandoningService service = new AbandoningService();
+        context.bind(service);
+        WorkCapacity capacity = JobIntentXService.setWorkCapacity(context, AbandoningService.class, 1,
+                2, WorkCapacity.OVERFLOW_BLOCK, 0, null);
+        JobIntentXService.JobServiceEngineImpl job = (JobIntentXService.JobServiceEngineImpl) service.mJobImpl;
+        JobParameters params = new JobParameters(1);
+        for (int i = 0; i < 2; i++) {
+            capacity.acquire(null, false);
+            params.enqueue(new JobWorkItem(new Intent()));
+        }
+        job.onStartJob(params);
+        service.dequeueWork();
+
+        // 不重新调度，两个任务都不会再complete
+        job.onStopJob(params);
+        assertEquals(0, capacity.getQueuedCount());
+        assertEquals(WorkCapacity.ENQUEUE_ACCEPTED, capacity.acquire(null, false));
+        service.onDestroy();
+    }
+
+    @Test
+    public void dropOldestNeverDropsRedeliveredWork() {
+        FakeContext context = new FakeContext();
+        DropOldestService service = new DropOldestService();
+        context.bind(service);
+        WorkCapacity capacity = JobIntentXService.setWorkCapacity(context, DropOldestService.class, 1,
+                2, WorkCapacity.OVERFLOW_DROP_OLDEST, 0, null);
+        JobIntentXService.JobServiceEngineImpl job = (JobIntentXService.JobServiceEngineImpl) service.mJobImpl;
+        JobWorkItem running = new JobWorkItem(new Intent().putExtra("i", 1));
+        JobWorkItem queued = new JobWorkItem(new Intent().putExtra("i", 2));
+        capacity.acquire(null, false);
+        capacity.acquire(null, false);
+        JobParameters first = new JobParameters(1);
+        first.enqueue(running);
+        job.onStartJob(first);
+        service.dequeueWork();
+        job.onStopJob(first);
+
+        // 执行了一半的任务还占着位置，新任务进来的时候答应丢掉还在排队的那一个
+        assertEquals(WorkCapacity.ENQUEUE_DROPPED_OLDEST, capacity.acquire(null, false));
+        JobParameters second = new JobParameters(1);
+        second.enqueue(running);
+        second.enqueue(queued);
+        second.enqueue(new JobWorkItem(new Intent().putExtra("i", 3)));
+        job.onStartJob(second);
+
+        // 重新投递的排在最前面，但它已经出列过了
+        assertEquals(1, service.dequeueWork().getIntent().getIntExtra("i", 0));
+        assertEquals(3, service.dequeueWork().getIntent().getIntExtra("i", 0));
+        assertEquals(1, capacity.getDroppedCount());
+        assertEquals(2, capacity.getQueuedCount());
+        service.onDestroy();
+    }
+
+    @Test
+    public void cancelledWorkIsCompletedWithoutRunning() {
+        FakeContext context = new FakeContext();
+        TaggedService service = new TaggedService();
+        context.bind(service);
+        JobIntentXService.WorkEnqueuer we = JobIntentXService.getWorkEnqueuer(context,
+                new ComponentName(context, TaggedService.class), true, 1);
+        JobIntentXService.JobServiceEngineImpl job = (JobIntentXService.JobServiceEngineImpl) service.mJobImpl;
+        JobParameters params = new JobParameters(1);
+        // 和enqueueWork一样打上序号：取消之前排了一个，之后又排了一个
+        params.enqueue(new JobWorkItem(new Intent().putExtra("i", 1)
+                .putExtra(JobIntentXService.EXTRA_WORK_TAG, "sync")
+                .putExtra(WorkTags.EXTRA_SEQ, we.mTags.enqueued("sync"))));
+        assertEquals(1, JobIntentXService.cancelWork(context, TaggedService.class, "sync"));
+        params.enqueue(new JobWorkItem(new Intent().putExtra("i", 2)
+                .putExtra(JobIntentXService.EXTRA_WORK_TAG, "sync")
+                .putExtra(WorkTags.EXTRA_SEQ, we.mTags.enqueued("sync"))));
+        job.onStartJob(params);
+
+        JobIntentXService.GenericWorkItem work = service.dequeueWork();
+        assertEquals(2, work.getIntent().getIntExtra("i", 0));
+        // 被取消的那个出列的时候已经completeWork了
+        assertEquals(1, params.getCompletedCount());
+        work.complete();
+        assertEquals(2, params.getCompletedCount());
+        assertNull(service.dequeueWork());
+        service.onDestroy();
+    }
+
+    @Test
+    public void workWithTheSameSerialKeyWaitsForThePreviousOne() {
+        SerialService service = new SerialService();
+        new FakeContext().bind(service);
+        JobIntentXService.JobServiceEngineImpl job = (JobIntentXService.JobServiceEngineImpl) service.mJobImpl;
+        JobParameters params = new JobParameters(1);
+        String[] keys = {"a", "a", "b"};
+        for (int i = 0; i < keys.length; i++) {
+            params.enqueue(new JobWorkItem(new Intent().putExtra("i", i)
+                    .putExtra(JobIntentXService.EXTRA_SERIAL_KEY, keys[i])));
+        }
+        job.onStartJob(params);
+
+        JobIntentXService.GenericWorkItem first = service.dequeueWork();
+        assertEquals(0, first.getIntent().getIntExtra("i", 0));
+        // 1排在0后面，另一个worker可以先做2
+        JobIntentXService.GenericWorkItem other = service.dequeueWork();
+        assertEquals(2, other.getIntent().getIntExtra("i", 0));
+        assertNull(service.dequeueWork());
+
+        first.complete();
+        JobIntentXService.GenericWorkItem next = service.dequeueWork();
+        assertEquals(1, next.getIntent().getIntExtra("i", 0));
+        other.complete();
+        next.complete();
+        assertEquals(3, params.getCompletedCount());
+        service.onDestroy();
+    }
+
+    @Test
+    public void everyDrainRunsOnTheSameProcessorThread() throws Exception {
+        ThreadRecordingService service = new ThreadRecordingService();
+        new FakeContext().bind(service);
+        JobIntentXService.JobServiceEngineImpl job = (JobIntentXService.JobServiceEngineImpl) service.mJobImpl;
+        JobParameters params = new JobParameters(1);
+
+        Thread first = null;
+        for (int i = 0; i < 5; i++) {
+            // 每一轮都是取空以后才来的新任务
+            params.enqueue(new JobWorkItem(new Intent().putExtra("i", i)));
+            job.onStartJob(params);
+            Thread thread = service.mThreads.poll(5, TimeUnit.SECONDS);
+            if (first == null) {
+                first = thread;
+            }
+            assertSame(first, thread);
+            Thread.sleep(5);
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (params.getCompletedCount() != 5 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(5, params.getCompletedCount());
+        service.onDestroy();
+    }
+}
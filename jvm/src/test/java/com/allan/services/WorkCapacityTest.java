@@ -0,0 +1,104 @@
+package com.allan.services;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class WorkCapacityTest {
+    @Test
+    public void dropOldestNeedsWorkThatIsStillQueued() {
+        WorkCapacity capacity = new WorkCapacity(1, WorkCapacity.OVERFLOW_DROP_OLDEST, 0);
+        assertEquals(WorkCapacity.ENQUEUE_ACCEPTED, capacity.acquire(null, false));
+        // 唯一的任务已经在执行了，丢不掉
+        capacity.dequeued(1);
+        assertEquals(WorkCapacity.ENQUEUE_REJECTED, capacity.acquire(null, false));
+        assertEquals(1, capacity.getRejectedCount());
+
+        capacity.release(null);
+        assertEquals(WorkCapacity.ENQUEUE_ACCEPTED, capacity.acquire(null, false));
+    }
+
+    @Test
+    public void dropOldestKeepsTheQueueAtCapacity() {
+        WorkCapacity capacity = new WorkCapacity(2, WorkCapacity.OVERFLOW_DROP_OLDEST, 0);
+        capacity.acquire(null, false);
+        capacity.acquire(null, false);
+        assertEquals(WorkCapacity.ENQUEUE_DROPPED_OLDEST, capacity.acquire(null, false));
+        assertEquals(2, capacity.getQueuedCount());
+
+        // 服务收到新任务的时候丢掉最早的，被丢的任务也要完成
+        capacity.finishDrop(true);
+        capacity.dequeued(1);
+        capacity.release(null);
+        assertEquals(2, capacity.getQueuedCount());
+        assertEquals(1, capacity.getDroppedCount());
+    }
+
+    @Test
+    public void resetWakesBlockedProducers() throws Exception {
+        final WorkCapacity capacity = new WorkCapacity(1, WorkCapacity.OVERFLOW_BLOCK, 10000);
+        capacity.acquire(null, true);
+        final int[] result = {-1};
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result[0] = capacity.acquire(null, true);
+            }
+        });
+        producer.start();
+        Thread.sleep(20);
+
+        // 占着位置的任务永远不会完成了
+        capacity.reset();
+        producer.join(2000);
+        assertEquals(WorkCapacity.ENQUEUE_ACCEPTED, result[0]);
+        assertEquals(1, capacity.getQueuedCount());
+    }
+
+    @Test
+    public void dropThatFoundNothingIsNotCounted() {
+        WorkCapacity capacity = new WorkCapacity(1, WorkCapacity.OVERFLOW_DROP_OLDEST, 0);
+        capacity.acquire(null, false);
+        assertEquals(WorkCapacity.ENQUEUE_DROPPED_OLDEST, capacity.acquire(null, false));
+        // 排在前面的任务刚好被worker取走了
+        capacity.dequeued(1);
+        capacity.finishDrop(false);
+        assertEquals(2, capacity.getQueuedCount());
+        assertEquals(0, capacity.getDroppedCount());
+    }
+
+    @Test
+    public void cancelUndoesAnAcceptedDrop() {
+        WorkCapacity capacity = new WorkCapacity(1, WorkCapacity.OVERFLOW_DROP_OLDEST, 0);
+        capacity.acquire(null, false);
+        int result = capacity.acquire(null, false);
+        assertEquals(WorkCapacity.ENQUEUE_DROPPED_OLDEST, result);
+        capacity.cancel(null, result);
+        assertEquals(1, capacity.getQueuedCount());
+        assertEquals(0, capacity.getDroppedCount());
+    }
+
+    @Test
+    public void dropNewestRejectsWhenFull() {
+        WorkCapacity capacity = new WorkCapacity(1, WorkCapacity.OVERFLOW_DROP_NEWEST, 0);
+        capacity.acquire(null, false);
+        assertEquals(WorkCapacity.ENQUEUE_REJECTED, capacity.acquire(null, false));
+    }
+
+    @Test
+    public void coalesceAcceptsOnlyKnownKeysWhenFull() {
+        WorkCapacity capacity = new WorkCapacity(1, WorkCapacity.OVERFLOW_COALESCE, 0);
+        capacity.acquire("a", false);
+        assertEquals(WorkCapacity.ENQUEUE_COALESCED, capacity.acquire("a", false));
+        assertEquals(WorkCapacity.ENQUEUE_REJECTED, capacity.acquire("b", false));
+        assertEquals(1, capacity.getCoalescedCount());
+    }
+
+    @Test
+    public void blockTimesOutWhenNothingIsReleased() {
+        WorkCapacity capacity = new WorkCapacity(1, WorkCapacity.OVERFLOW_BLOCK, 20);
+        capacity.acquire(null, true);
+        assertEquals(WorkCapacity.ENQUEUE_REJECTED, capacity.acquire(null, false));
+        assertEquals(WorkCapacity.ENQUEUE_REJECTED, capacity.acquire(null, true));
+    }
+}
@@ -0,0 +1,342 @@
+package com.allan.services;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 用假的executor和时钟驱动WorkEngine：worker只在runAll的时候在当前线程执行，凑批的等待只是把时钟往前拨，
+ * 所以几十万个任务和几百毫秒的linger都是瞬间跑完，而且每次的结果都一样。
+ */
+public class WorkEngineTest {
+    static final class FakeExecutor implements Executor {
+        final ArrayDeque<Runnable> mPending = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command) {
+            mPending.add(command);
+        }
+
+        void runAll() {
+            Runnable next;
+            while ((next = mPending.poll()) != null) {
+                next.run();
+            }
+        }
+    }
+
+    static class FakeClock implements WorkEngine.Clock {
+        long mNow;
+        int mSleeps;
+
+        @Override
+        public long uptimeMillis() {
+            return mNow;
+        }
+
+        @Override
+        public void sleep(long millis) {
+            mSleeps++;
+            mNow += millis;
+            onSleep();
+        }
+
+        void onSleep() {
+        }
+    }
+
+    static final class Recorder implements WorkEngine.Callback<Integer> {
+        final ArrayList<Integer> mHandled = new ArrayList<>();
+        final ArrayList<Integer> mBatchSizes = new ArrayList<>();
+        int mStarted;
+        int mFinished;
+
+        @Override
+        public void onProcessingStarted() {
+            mStarted++;
+        }
+
+        @Override
+        public void onHandleWork(Integer work) {
+            mHandled.add(work);
+        }
+
+        @Override
+        public void onHandleWorkBatch(List<Integer> batch) {
+            mBatchSizes.add(batch.size());
+            mHandled.addAll(batch);
+        }
+
+        @Override
+        public void onProcessingFinished() {
+            mFinished++;
+        }
+    }
+
+    final ArrayDeque<Integer> mQueue = new ArrayDeque<>();
+    final WorkEngine.Source<Integer> mSource = new WorkEngine.Source<Integer>() {
+        @Override
+        public Integer poll() {
+            return mQueue.poll();
+        }
+    };
+    FakeExecutor mExecutor;
+    Recorder mRecorder;
+    WorkEngine<Integer> mEngine;
+
+    @Before
+    public void setUp() {
+        mExecutor = new FakeExecutor();
+        mRecorder = new Recorder();
+        mEngine = new WorkEngine<>(mSource, mRecorder, mExecutor);
+    }
+
+    void offer(int from, int count) {
+        for (int i = 0; i < count; i++) {
+            mQueue.add(from + i);
+        }
+    }
+
+    @Test
+    public void oneWorkerDrainsALargeBacklogInOrder() {
+        offer(0, 200000);
+        mEngine.signal();
+        mEngine.signal();
+        assertEquals(1, mExecutor.mPending.size());
+
+        mExecutor.runAll();
+
+        assertEquals(200000, mRecorder.mHandled.size());
+        for (int i = 0; i < 200000; i++) {
+            assertEquals(i, (int) mRecorder.mHandled.get(i));
+        }
+        assertEquals(1, mRecorder.mStarted);
+        assertEquals(1, mRecorder.mFinished);
+    }
+
+    @Test
+    public void signalAfterTheLastPollIsNotLost() {
+        // 生产者正好在worker取空之后、退出之前入队并signal
+        final boolean[] raced = new boolean[1];
+        mEngine = new WorkEngine<>(new WorkEngine.Source<Integer>() {
+            @Override
+            public Integer poll() {
+                Integer work = mQueue.poll();
+                if (work == null && !raced[0]) {
+                    raced[0] = true;
+                    mQueue.add(99);
+                    mEngine.signal();
+                }
+                return work;
+            }
+        }, mRecorder, mExecutor);
+        offer(0, 1);
+        mEngine.signal();
+
+        mExecutor.runAll();
+
+        assertEquals(2, mRecorder.mHandled.size());
+        assertEquals(99, (int) mRecorder.mHandled.get(1));
+        // 同一个worker再取了一轮，没有再起一个
+        assertEquals(1, mRecorder.mStarted);
+        assertEquals(1, mRecorder.mFinished);
+    }
+
+    @Test
+    public void startsAtMostMaxWorkers() {
+        mEngine.setMaxWorkers(3);
+        offer(0, 10);
+        for (int i = 0; i < 5; i++) {
+            mEngine.signal();
+        }
+        assertEquals(3, mExecutor.mPending.size());
+
+        mExecutor.runAll();
+
+        assertEquals(10, mRecorder.mHandled.size());
+        assertEquals(1, mRecorder.mStarted);
+        assertEquals(1, mRecorder.mFinished);
+        assertTrue(mExecutor.mPending.isEmpty());
+    }
+
+    @Test
+    public void workerYieldsAfterMaxWorkPerRun() {
+        mEngine.setMaxWorkPerRun(1);
+        offer(0, 3);
+        mEngine.signal();
+
+        // 每次只处理一个，然后把自己重新排到executor后面
+        mExecutor.mPending.poll().run();
+        assertEquals(1, mRecorder.mHandled.size());
+        assertEquals(1, mExecutor.mPending.size());
+        mExecutor.runAll();
+
+        assertEquals(3, mRecorder.mHandled.size());
+        assertEquals(1, mRecorder.mStarted);
+        assertEquals(1, mRecorder.mFinished);
+    }
+
+    @Test
+    public void fullBatchesDoNotWaitAndTheLastOneLingers() {
+        FakeClock clock = new FakeClock();
+        mEngine.setClock(clock);
+        mEngine.setBatching(10, 100);
+        offer(0, 25);
+        mEngine.signal();
+
+        mExecutor.runAll();
+
+        assertEquals(3, mRecorder.mBatchSizes.size());
+        assertEquals(10, (int) mRecorder.mBatchSizes.get(0));
+        assertEquals(10, (int) mRecorder.mBatchSizes.get(1));
+        assertEquals(5, (int) mRecorder.mBatchSizes.get(2));
+        // 只有最后一批凑不满，等满了linger
+        assertEquals(100, clock.mNow);
+        assertEquals(100 / WorkEngine.BATCH_LINGER_POLL_MILLIS, clock.mSleeps);
+    }
+
+    @Test
+    public void lingerPicksUpWorkArrivingWhileWaiting() {
+        FakeClock clock = new FakeClock() {
+            @Override
+            void onSleep() {
+                if (mSleeps <= 3) {
+                    mQueue.add(100 + mSleeps);
+                }
+            }
+        };
+        mEngine.setClock(clock);
+        mEngine.setBatching(10, 50);
+        offer(0, 1);
+        mEngine.signal();
+
+        mExecutor.runAll();
+
+        assertEquals(1, mRecorder.mBatchSizes.size());
+        assertEquals(4, (int) mRecorder.mBatchSizes.get(0));
+        assertEquals(50, clock.mNow);
+    }
+
+    @Test
+    public void cancelHandsOverTheBatchWithoutWaiting() {
+        FakeClock clock = new FakeClock() {
+            @Override
+            void onSleep() {
+                mEngine.cancel(false);
+            }
+        };
+        mEngine.setClock(clock);
+        mEngine.setBatching(10, 1000);
+        offer(0, 3);
+        mEngine.signal();
+
+        mExecutor.runAll();
+
+        assertEquals(1, mRecorder.mBatchSizes.size());
+        assertEquals(3, (int) mRecorder.mBatchSizes.get(0));
+        assertEquals(1, clock.mSleeps);
+        assertTrue(mEngine.isCancelled());
+
+        // 新的signal清掉cancel
+        offer(3, 1);
+        mEngine.signal();
+        assertTrue(!mEngine.isCancelled());
+    }
+
+    @Test
+    public void shutdownStopsDrainingAndStartingWorkers() {
+        offer(0, 5);
+        mEngine.signal();
+        mEngine.shutdown();
+
+        mExecutor.runAll();
+
+        assertTrue(mRecorder.mHandled.isEmpty());
+        assertEquals(1, mRecorder.mStarted);
+        // shutdown以后不再回调onProcessingFinished
+        assertEquals(0, mRecorder.mFinished);
+
+        mEngine.signal();
+        assertTrue(mExecutor.mPending.isEmpty());
+    }
+
+    @Test
+    public void workerThatThrowsIsResubmittedWithoutASignal() {
+        final Error failure = new Error("boom");
+        mEngine = new WorkEngine<>(mSource, new WorkEngine.Callback<Integer>() {
+            @Override
+            public void onProcessingStarted() {
+                mRecorder.onProcessingStarted();
+            }
+
+            @Override
+            public void onHandleWork(Integer work) {
+                if (work == 0) {
+                    throw failure;
+                }
+                mRecorder.onHandleWork(work);
+            }
+
+            @Override
+            public void onHandleWorkBatch(List<Integer> batch) {
+            }
+
+            @Override
+            public void onProcessingFinished() {
+                mRecorder.onProcessingFinished();
+            }
+        }, mExecutor);
+        offer(0, 2);
+        mEngine.signal();
+
+        try {
+            mExecutor.mPending.poll().run();
+        } catch (Error e) {
+            assertTrue(e == failure);
+        }
+        // 后面还有任务，没有人signal也要接着取
+        assertEquals(1, mExecutor.mPending.size());
+        mExecutor.runAll();
+
+        assertEquals(1, mRecorder.mHandled.size());
+        assertEquals(1, (int) mRecorder.mHandled.get(0));
+        // 还是同一个worker，没有结束过
+        assertEquals(1, mRecorder.mStarted);
+        assertEquals(1, mRecorder.mFinished);
+    }
+
+    @Test
+    public void rejectedWorkerIsNotCounted() {
+        mEngine.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException();
+            }
+        });
+        offer(0, 1);
+        try {
+            mEngine.signal();
+            fail();
+        } catch (RejectedExecutionException expected) {
+        }
+        assertEquals(1, mRecorder.mStarted);
+        assertEquals(1, mRecorder.mFinished);
+
+        // 换了executor以后可以再起worker
+        mEngine.setExecutor(mExecutor);
+        mEngine.signal();
+        mExecutor.runAll();
+        assertEquals(1, mRecorder.mHandled.size());
+        assertEquals(2, mRecorder.mStarted);
+        assertEquals(2, mRecorder.mFinished);
+    }
+}
@@ -0,0 +1,97 @@
+package com.allan.services;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+public class WorkExecutorsTest {
+    /**
+     * 手动执行的backend，mReject的时候拒绝
+     */
+    static final class ManualBackend implements Executor {
+        final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+        boolean mReject;
+
+        @Override
+        public void execute(Runnable command) {
+            if (mReject) {
+                throw new RejectedExecutionException();
+            }
+            mTasks.add(command);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = mTasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    static Runnable record(final List<String> order, final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                order.add(name);
+            }
+        };
+    }
+
+    @Test
+    public void rejectedHandOffReleasesTheSlotAndKeepsQueuedWork() {
+        ManualBackend backend = new ManualBackend();
+        WorkExecutors.LimitedExecutor limited = (WorkExecutors.LimitedExecutor) WorkExecutors.limit(backend, 1);
+        List<String> order = new ArrayList<>();
+        limited.execute(record(order, "a"));
+        limited.execute(record(order, "b"));
+        limited.execute(record(order, "c"));
+
+        // a跑完以后交出b的时候backend拒绝了
+        backend.mReject = true;
+        try {
+            backend.runAll();
+            fail();
+        } catch (RejectedExecutionException expected) {
+        }
+        assertEquals(2, limited.getQueuedCount());
+
+        // 名额已经让出来了，下一次execute把排着的任务按顺序交出去
+        backend.mReject = false;
+        limited.execute(record(order, "d"));
+        backend.runAll();
+        assertEquals(Arrays.asList("a", "b", "c", "d"), order);
+        assertEquals(0, limited.getQueuedCount());
+    }
+
+    @Test
+    public void rejectedCallerWorkIsNotRunLater() {
+        ManualBackend backend = new ManualBackend();
+        WorkExecutors.LimitedExecutor limited = (WorkExecutors.LimitedExecutor) WorkExecutors.limit(backend, 1);
+        List<String> order = new ArrayList<>();
+        backend.mReject = true;
+        try {
+            limited.execute(record(order, "a"));
+            fail();
+        } catch (RejectedExecutionException expected) {
+        }
+
+        backend.mReject = false;
+        limited.execute(record(order, "b"));
+        backend.runAll();
+        assertEquals(Arrays.asList("b"), order);
+    }
+
+    @Test
+    public void virtualThreadsFallsBackInsteadOfReturningNull() {
+        assertNotNull(WorkExecutors.virtualThreads());
+    }
+}
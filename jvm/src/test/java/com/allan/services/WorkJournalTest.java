@@ -0,0 +1,92 @@
+package com.allan.services;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class WorkJournalTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void sameFileSharesOneJournalUntilTheLastClose() throws IOException {
+        File file = new File(mFolder.getRoot(), "journal");
+        WorkJournal first = WorkJournal.open(file);
+        WorkJournal second = WorkJournal.open(new File(mFolder.getRoot(), "./journal"));
+        assertSame(first, second);
+
+        // 旧的服务关掉了，新的服务还在用
+        first.close();
+        long id = second.append(new byte[]{1, 2, 3});
+        second.close();
+        try {
+            second.append(new byte[]{4});
+            fail();
+        } catch (IOException expected) {
+        }
+        // 关掉以后完成的任务不再写，下一次打开的时候重放
+        second.remove(id);
+
+        WorkJournal reopened = WorkJournal.open(file);
+        try {
+            assertNotSame(first, reopened);
+            assertEquals(Arrays.asList(id), reopened.liveIds());
+            assertArrayEquals(new byte[]{1, 2, 3}, reopened.read(id));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void compactsInTheBackgroundWithoutLosingLiveRecords() throws Exception {
+        File file = new File(mFolder.getRoot(), "journal");
+        WorkJournal journal = WorkJournal.open(file, 1024);
+        List<Long> live = new ArrayList<>();
+        byte[] payload = new byte[40];
+        int full = 0;
+        try {
+            for (int i = 0; i < 2000; i++) {
+                payload[0] = (byte) i;
+                try {
+                    live.add(journal.append(payload.clone()));
+                } catch (IOException e) {
+                    // 后台还没压缩完，这一条只在内存里
+                    full++;
+                    Thread.sleep(1);
+                }
+                if (live.size() > 4) {
+                    journal.remove(live.remove(0));
+                }
+            }
+            assertEquals(live, journal.liveIds());
+        } finally {
+            journal.close();
+        }
+        // 一半空间留给入队的线程，绝大多数写入不会碰到写满
+        if (full > 200) {
+            fail("journal was full " + full + " times");
+        }
+
+        WorkJournal reopened = WorkJournal.open(file, 1024);
+        try {
+            assertEquals(live, reopened.liveIds());
+            for (long id : live) {
+                assertEquals(40, reopened.read(id).length);
+            }
+        } finally {
+            reopened.close();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.allan.services;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class WorkQueueTest {
+    static final class Item extends WorkQueue.Entry {
+        final int mId;
+        int mMerged;
+
+        Item(int id) {
+            mId = id;
+        }
+    }
+
+    static final WorkQueue.Merger<Item> MERGER = new WorkQueue.Merger<Item>() {
+        @Override
+        public void merge(Item pending, Item incoming) {
+            pending.mMerged++;
+        }
+    };
+
+    @Test
+    public void keepsFifoOrderForALargeBacklog() {
+        WorkQueue<Item> queue = new WorkQueue<>(new int[] {1});
+        for (int i = 0; i < 20000; i++) {
+            queue.offer(new Item(i), 0);
+        }
+        for (int i = 0; i < 20000; i++) {
+            assertEquals(i, queue.poll().mId);
+        }
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void interleavesLanesByWeight() {
+        WorkQueue<Item> queue = new WorkQueue<>(new int[] {2, 1});
+        for (int i = 0; i < 30; i++) {
+            queue.offer(new Item(i), 0);
+            queue.offer(new Item(100 + i), 1);
+        }
+        int high = 0;
+        for (int i = 0; i < 30; i++) {
+            if (queue.poll().mId < 100) {
+                high++;
+            }
+        }
+        assertEquals(20, high);
+    }
+
+    @Test
+    public void mergesOnlyWhileQueued() {
+        WorkQueue<Item> queue = new WorkQueue<>(new int[] {1});
+        Item first = new Item(1);
+        assertNull(queue.offer(first, 0, "k", MERGER));
+        assertSame(first, queue.offer(new Item(2), 0, "k", MERGER));
+        assertEquals(1, first.mMerged);
+
+        assertSame(first, queue.poll());
+        // 出列以后同key的任务正常入队
+        Item second = new Item(3);
+        assertNull(queue.offer(second, 0, "k", MERGER));
+        assertSame(second, queue.poll());
+    }
+
+    @Test
+    public void pollOldestIgnoresPriority() {
+        WorkQueue<Item> queue = new WorkQueue<>(new int[] {4, 1});
+        queue.offer(new Item(1), 1);
+        queue.offer(new Item(2), 0);
+        assertEquals(1, queue.pollOldest().mId);
+        assertEquals(2, queue.pollOldest().mId);
+        assertNull(queue.pollOldest());
+    }
+
+    @Test
+    public void removedItemsAreSkippedAndCanNoLongerBeMergedInto() {
+        WorkQueue<Item> queue = new WorkQueue<>(new int[] {1, 1});
+        Item keyed = new Item(1);
+        Item plain = new Item(2);
+        queue.offer(keyed, 0, "k", MERGER);
+        queue.offer(plain, 1);
+        queue.offer(new Item(3), 1);
+
+        assertTrue(queue.remove(keyed));
+        assertFalse(queue.remove(keyed));
+        // 同key的新任务不会合并进已经移除的任务
+        assertNull(queue.offer(new Item(4), 0, "k", MERGER));
+        assertTrue(queue.remove(plain));
+
+        assertEquals(3, queue.pollOldest().mId);
+        assertEquals(4, queue.poll().mId);
+        assertNull(queue.poll());
+        assertEquals(0, keyed.mMerged);
+    }
+
+    @Test
+    public void concurrentProducersAndConsumersSeeEveryItemOnce() throws Exception {
+        final WorkQueue<Item> queue = new WorkQueue<>(new int[] {2, 1});
+        final int producers = 4;
+        final int perProducer = 10000;
+        final AtomicInteger polled = new AtomicInteger();
+        final AtomicInteger duplicates = new AtomicInteger();
+        final AtomicIntegerArray seen = new AtomicIntegerArray(producers * perProducer);
+        final CountDownLatch done = new CountDownLatch(producers);
+        Thread[] threads = new Thread[producers * 2];
+        for (int p = 0; p < producers; p++) {
+            final int base = p * perProducer;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        queue.offer(new Item(base + i), i & 1);
+                    }
+                    done.countDown();
+                }
+            });
+            threads[producers + p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (true) {
+                        Item item = queue.poll();
+                        if (item != null) {
+                            if (seen.getAndSet(item.mId, 1) != 0) {
+                                duplicates.incrementAndGet();
+                            }
+                            polled.incrementAndGet();
+                        } else if (done.getCount() == 0 && queue.isEmpty()) {
+                            return;
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(producers * perProducer, polled.get());
+        assertEquals(0, duplicates.get());
+    }
+}
@@ -0,0 +1,39 @@
+package com.allan.services;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WorkRetryPolicyTest {
+    @Test
+    public void delayGrowsUpToTheMaximum() {
+        WorkRetryPolicy policy = new WorkRetryPolicy(5, 100, 300, 2, 0);
+        assertEquals(100, policy.getDelayMillis(1));
+        assertEquals(200, policy.getDelayMillis(2));
+        assertEquals(300, policy.getDelayMillis(3));
+        assertEquals(300, policy.getDelayMillis(4));
+    }
+
+    @Test
+    public void jitterOnlyShortensTheDelay() {
+        WorkRetryPolicy policy = new WorkRetryPolicy(5, 1000, 1000, 1, 0.5);
+        for (int i = 0; i < 100; i++) {
+            long delay = policy.getDelayMillis(1);
+            assertTrue(delay >= 500 && delay <= 1000);
+        }
+    }
+
+    @Test
+    public void maxAttemptsIncludesTheFirstOne() {
+        WorkRetryPolicy policy = new WorkRetryPolicy(2, 0, 0, 1, 0);
+        assertTrue(policy.shouldRetry(1));
+        assertFalse(policy.shouldRetry(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAMaxDelayBelowTheInitialDelay() {
+        new WorkRetryPolicy(2, 100, 10, 1, 0);
+    }
+}
@@ -0,0 +1,53 @@
+package com.allan.services;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class WorkSerializerTest {
+    @Test
+    public void sameKeyRunsOneAtATimeInOrder() {
+        WorkSerializer<String> serializer = new WorkSerializer<>();
+        WorkSerializer.Slot<String> a1 = serializer.start("a", "a1");
+        assertNotNull(a1);
+        assertNull(serializer.start("a", "a2"));
+        assertNull(serializer.start("a", "a3"));
+        // 别的key不受影响
+        assertNotNull(serializer.start("b", "b1"));
+        assertNull(serializer.pollReady());
+
+        assertTrue(serializer.finished(a1));
+        WorkSerializer.Slot<String> ready = serializer.pollReady();
+        assertSame(a1, ready);
+        assertEquals("a2", ready.mRunning);
+        assertNull(serializer.pollReady());
+
+        assertTrue(serializer.finished(ready));
+        assertEquals("a3", serializer.pollReady().mRunning);
+        assertFalse(serializer.finished(ready));
+        // 这个key空了，下一个任务马上可以执行
+        assertNotNull(serializer.start("a", "a4"));
+    }
+
+    @Test
+    public void clearDropsWaitingWorkAndIgnoresOldCompletions() {
+        WorkSerializer<String> serializer = new WorkSerializer<>();
+        WorkSerializer.Slot<String> a1 = serializer.start("a", "a1");
+        serializer.start("a", "a2");
+        WorkSerializer.Slot<String> b1 = serializer.start("b", "b1");
+        serializer.start("b", "b2");
+        serializer.start("b", "b3");
+        assertTrue(serializer.finished(b1));
+
+        // b2放出来了还没被取走，加上a2、b3
+        assertEquals(3, serializer.clear());
+        assertNull(serializer.pollReady());
+        assertFalse(serializer.finished(a1));
+        assertNotNull(serializer.start("a", "a5"));
+    }
+}
@@ -0,0 +1,88 @@
+package com.allan.services;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WorkTagsTest {
+    @Test
+    public void cancelOnlyAffectsWorkQueuedBeforeIt() {
+        WorkTags tags = new WorkTags();
+        long older = tags.enqueued("sync");
+        assertEquals(1, tags.cancel("sync"));
+        long newer = tags.enqueued("sync");
+
+        // 新任务先出列也不会用掉旧任务的取消
+        assertTrue(tags.started("sync", newer));
+        assertFalse(tags.started("sync", older));
+    }
+
+    @Test
+    public void runningWorkSeesTheCancel() {
+        WorkTags tags = new WorkTags();
+        long seq = tags.enqueued("sync");
+        assertTrue(tags.started("sync", seq));
+        assertFalse(tags.isCancelled("sync", seq));
+
+        assertEquals(0, tags.cancel("sync"));
+        assertTrue(tags.isCancelled("sync", seq));
+    }
+
+    @Test
+    public void otherTagsAreNotAffected() {
+        WorkTags tags = new WorkTags();
+        long sync = tags.enqueued("sync");
+        long upload = tags.enqueued("upload");
+        tags.cancel("sync");
+
+        assertFalse(tags.started("sync", sync));
+        assertTrue(tags.started("upload", upload));
+    }
+
+    @Test
+    public void countsOnlyWorkStillQueued() {
+        WorkTags tags = new WorkTags();
+        long a = tags.enqueued("sync");
+        long b = tags.enqueued("sync");
+        long c = tags.enqueued("sync");
+        tags.rejected("sync", a);
+        tags.absorbed("sync", b);
+        assertEquals(1, tags.cancel("sync"));
+        assertFalse(tags.started("sync", c));
+        // 取消以后的计数重新开始
+        tags.enqueued("sync");
+        assertEquals(1, tags.cancel("sync"));
+    }
+
+    @Test
+    public void foreignWorkCountsAsOldest() {
+        WorkTags tags = new WorkTags();
+        // 没有序号，或者是别的进程排的
+        assertTrue(tags.started("sync", 0));
+        tags.cancel("sync");
+        assertFalse(tags.started("sync", 0));
+        assertTrue(tags.isCancelled("sync", new WorkTags().enqueued("sync")));
+    }
+
+    @Test
+    public void keepsACancelUntilItsWorkIsGone() {
+        WorkTags tags = new WorkTags();
+        long queued = tags.enqueued("sync");
+        long running = tags.enqueued("sync");
+        assertTrue(tags.started("sync", running));
+        tags.cancel("sync");
+        for (int i = 0; i < 1000; i++) {
+            tags.cancel("tag" + i);
+        }
+        assertTrue(tags.isCancelled("sync", running));
+
+        assertFalse(tags.started("sync", queued));
+        assertTrue(tags.isCancelled("sync", running));
+        // 最后一个任务完成以后记录才清掉
+        tags.finished("sync");
+        assertFalse(tags.isCancelled("sync", running));
+        assertTrue(tags.started("sync", 0));
+    }
+}
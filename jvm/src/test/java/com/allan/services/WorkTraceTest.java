@@ -0,0 +1,52 @@
+package com.allan.services;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WorkTraceTest {
+    static final class Work {
+        @Override
+        public String toString() {
+            return "expensive";
+        }
+    }
+
+    static String dump(WorkTrace.Recorder recorder) {
+        StringWriter out = new StringWriter();
+        PrintWriter writer = new PrintWriter(out);
+        recorder.dump(writer, "");
+        writer.flush();
+        return out.toString();
+    }
+
+    @Test
+    public void recordsOnlyTheIdentityOfObjects() {
+        WorkTrace.Recorder recorder = new WorkTrace.Recorder(4);
+        Work work = new Work();
+        recorder.onEvent("tag", WorkTrace.EVENT_WORK_BEGIN, -1, -1, work);
+
+        String dump = dump(recorder);
+        assertTrue(dump, dump.contains("tag: Processing work: Work@" + Integer.toHexString(System.identityHashCode(work))));
+        assertFalse(dump.contains("expensive"));
+    }
+
+    @Test
+    public void keepsOnlyTheMostRecentEvents() {
+        WorkTrace.Recorder recorder = new WorkTrace.Recorder(3);
+        for (int i = 0; i < 10; i++) {
+            recorder.onEvent("tag", WorkTrace.EVENT_BATCH_BEGIN, i, -1, null);
+        }
+
+        String[] lines = dump(recorder).split("\n");
+        // 容量向上取整到4
+        assertEquals(4, lines.length);
+        assertTrue(lines[0].endsWith("Processing batch of 6"));
+        assertTrue(lines[3].endsWith("Processing batch of 9"));
+    }
+}